@@ -0,0 +1,12 @@
+#!/bin/bash
+
+# This script is written to execute the speechtools library class LMBenchmark
+# The LMBenchmark generates a synthetic ATC-like transcript corpus and runs the
+# ngram counting (Hadoop local job runner) and ARPA compilation stages end to
+# end, appending the time, throughput, shuffle bytes, peak heap and output size
+# of each stage to [workDir]/benchmark.tsv
+# ${1} - local working directory for the corpus, counts, models and report
+# ${2} - number of transcripts, or a comma separated list of corpus sizes (e.g., 10000,100000)
+
+# Run the benchmark on the local file system with the local job runner
+hadoop jar /home/kyle/workspace/speechtools/target/speechtools-0.0.1-SNAPSHOT-jar-with-dependencies.jar ripley.speechtools.benchmark.LMBenchmark -fs file:/// -D mapreduce.framework.name=local ${1} ${2}
@@ -0,0 +1,20 @@
+#!/bin/bash
+
+# This script is written to execute the speechtools library class SparkLMTrainer
+# The SparkLMTrainer is intended to perform the n-gram counting stage of
+# language model training on Apache Spark instead of Hadoop MapReduce
+# ${1} - input data path (file or directory) relative to the HDFS
+# ${2} - output data path (directory) relative to the HDFS for the ordered ngram count listing
+# ${3} - (optional) Spark master URL; Spark local mode is used when omitted
+
+MASTER_OPTION=""
+if [ -n "${3}" ]; then
+  MASTER_OPTION="--master ${3}"
+fi
+
+# Run spark application to create the intermediate ngram count listing
+spark-submit ${MASTER_OPTION} --class ripley.speechtools.client.SparkLMTrainer /home/kyle/workspace/speechtools/target/speechtools-0.0.1-SNAPSHOT-jar-with-dependencies.jar ${1} ${2}
+
+# The part files of the output are written in ngram order, and may be merged
+# into a single count document for ripley.speechtools.LMCompiler.KneserNeyLMCompiler
+# hadoop fs -getmerge ${2} [localCountFile]
@@ -0,0 +1,11 @@
+#!/bin/bash
+
+# This script is written to execute the speechtools library class StreamingLMTrainer
+# The StreamingLMTrainer tails a directory of transcript files, counts ngrams in a
+# sliding time window and writes a compiled ARPA model snapshot to the model
+# directory every ripley.streaming.snapshot.interval milliseconds, until stopped
+# ${1} - directory receiving the transcript files (local or HDFS)
+# ${2} - directory receiving the model snapshots (model-[timestamp].arpa)
+
+# Keep an hour of transcripts in one minute buckets, and write a snapshot every five minutes
+hadoop jar /home/kyle/workspace/speechtools/target/speechtools-0.0.1-SNAPSHOT-jar-with-dependencies.jar ripley.speechtools.streaming.StreamingLMTrainer -D ripley.streaming.bucket.millis=60000 -D ripley.streaming.window.buckets=60 -D ripley.streaming.snapshot.interval=300000 ${1} ${2}
@@ -0,0 +1,345 @@
+package ripley.speechtools.LMCompiler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.io.ArpaLmReader;
+import edu.berkeley.nlp.lm.io.ArpaLmReaderCallback;
+import edu.berkeley.nlp.lm.io.LmReader;
+import edu.berkeley.nlp.lm.values.ProbBackoffPair;
+
+/**
+ * The BackoffModel holds an estimated backoff language model (the log10
+ * probability and backoff weight of every ngram) in memory, so that it can be
+ * modified after estimation, e.g., pruned by the EntropyPruner, before it is
+ * written out.
+ *
+ * The model is an ArpaLmReaderCallback, and is filled by passing it to the
+ * parse(...) method of a Kneser-Ney callback in place of the ARPA file
+ * writer.  The ngrams are kept in a NgramCountTrie, whose count of each ngram
+ * carries its probability and backoff as two packed floats.  As with the
+ * trie, an ngram is identified by its zero based order and its index within
+ * the order, and the model takes 16 bytes per ngram.  Unlike the
+ * counts, an estimated model need not hold the suffix of every ngram (the
+ * Kneser-Ney callbacks leave out some lower order ngrams), so only ngrams
+ * whose context is missing are dropped.
+ *
+ * A model is not modified in place; retain(...) builds a new model from the
+ * ngrams of a model that are kept.  write(...) passes the model, in trie
+ * order, to another ArpaLmReaderCallback such as the ARPA file writer.
+ *
+ * A model may also be written to a binary file, in the layout of a
+ * NgramCountSnapshot (with the packed probabilities and backoffs as counts)
+ * but with its own magic number.  load(...) memory-maps the file read-only,
+ * so the model is not copied onto the Java heap, and processes on the same
+ * machine that load the same file share its pages in the page cache (see
+ * NbestRescorer).
+ *
+ * @author kyle
+ *
+ */
+public class BackoffModel implements ArpaLmReaderCallback<ProbBackoffPair>,
+    LmReader<ProbBackoffPair, ArpaLmReaderCallback<ProbBackoffPair>> {
+  // "RIPLYBLM"
+  public static final long MAGIC = 0x5249504C59424C4DL;
+  private static final String ARPA_DATA_LINE = "\\data\\";
+
+  private final int maxOrder;
+  private NgramCountTrie.Builder builder;
+  private NgramCountTrie trie;
+  private long dropped;
+
+  /**
+   * Creates an empty model to be filled as an ArpaLmReaderCallback.
+   * @param maxOrder - highest ngram order of the model
+   */
+  public BackoffModel(int maxOrder) {
+    this.maxOrder = maxOrder;
+  }
+
+  private BackoffModel(NgramCountTrie trie, long dropped) {
+    this.maxOrder = trie.getMaxOrder();
+    this.dropped = dropped;
+    this.trie = trie;
+  }
+
+  @Override
+  public void initWithLengths(List<Long> numNGrams) {
+    builder = new NgramCountTrie.Builder(maxOrder, false, false);
+  }
+
+  @Override
+  public void handleNgramOrderStarted(int order) {
+  }
+
+  @Override
+  public void handleNgramOrderFinished(int order) {
+  }
+
+  @Override
+  public void call(int[] ngram, int startPos, int endPos,
+      ProbBackoffPair value, String words) {
+    builder.add(ngram, startPos, endPos, pack(value.prob, value.backoff));
+  }
+
+  @Override
+  public void cleanup() {
+    dropped = builder.getDropped();
+    trie = builder.build();
+    builder = null;
+  }
+
+  public int getMaxOrder() {
+    return maxOrder;
+  }
+
+  /**
+   * The ngrams of the model, whose counts are not meaningful.
+   * @return
+   */
+  public NgramCountTrie getTrie() {
+    return trie;
+  }
+
+  /**
+   * Number of ngrams of the given order.
+   * @param ngramOrder - zero based order (i.e., 0 for unigrams)
+   * @return
+   */
+  public int size(int ngramOrder) {
+    return trie.size(ngramOrder);
+  }
+
+  /**
+   * Number of ngrams of all orders.
+   * @return
+   */
+  public long size() {
+    long size = 0;
+    for (int ngramOrder = 0; ngramOrder < maxOrder; ngramOrder++) {
+      size += trie.size(ngramOrder);
+    }
+    return size;
+  }
+
+  /**
+   * Number of ngrams passed to the model that were dropped because their
+   * context was missing.
+   * @return
+   */
+  public long getDropped() {
+    return dropped;
+  }
+
+  public float getProb(int ngramOrder, int index) {
+    return Float.intBitsToFloat((int) (trie.getCount(ngramOrder, index) >>> 32));
+  }
+
+  public float getBackoff(int ngramOrder, int index) {
+    return Float.intBitsToFloat((int) trie.getCount(ngramOrder, index));
+  }
+
+  /**
+   * The log10 probability of the last word of ngram[startPos] ...
+   * ngram[endPos - 1] given the preceding words, backing off from the
+   * longest explicit ngram as an ARPA model does.
+   * @param ngram
+   * @param startPos
+   * @param endPos
+   * @return the probability, or negative infinity for an unknown word
+   */
+  public double getLogProb(int[] ngram, int startPos, int endPos) {
+    double backoff = 0.0;
+    for (int start = startPos; start < endPos; start++) {
+      int index = trie.find(ngram, start, endPos);
+      if (0 <= index) {
+        return backoff + getProb(endPos - start - 1, index);
+      }
+      if (start < endPos - 1) {
+        int context = trie.find(ngram, start, endPos - 1);
+        if (0 <= context) {
+          backoff += getBackoff(endPos - start - 2, context);
+        }
+      }
+    }
+    return Double.NEGATIVE_INFINITY;
+  }
+
+  /**
+   * Builds a new model from the ngrams of this model that are not removed,
+   * with the given backoffs.  Every kept ngram must keep its context, or it
+   * is dropped from the new model.
+   * @param removed - removed[o][i] is true if ngram i of order o is removed
+   * @param newBackoffs - backoffs of the ngrams, parallel to removed
+   * @return
+   */
+  public BackoffModel retain(boolean[][] removed, float[][] newBackoffs) {
+    NgramCountTrie.Builder retained =
+        new NgramCountTrie.Builder(maxOrder, false, false);
+    for (int ngramOrder = 0; ngramOrder < maxOrder; ngramOrder++) {
+      int[] ngram = new int[ngramOrder + 1];
+      for (int i = 0; i < trie.size(ngramOrder); i++) {
+        if (false == removed[ngramOrder][i]) {
+          trie.getNgram(ngramOrder, i, ngram);
+          retained.add(ngram, 0, ngram.length,
+              pack(getProb(ngramOrder, i), newBackoffs[ngramOrder][i]));
+        }
+      }
+    }
+    return new BackoffModel(retained.build(), retained.getDropped());
+  }
+
+  /**
+   * Passes the model to callback, lower orders first, as the Kneser-Ney
+   * callbacks pass a model to the ARPA file writer.
+   * @param callback
+   */
+  public void write(ArpaLmReaderCallback<ProbBackoffPair> callback) {
+    parse(callback);
+  }
+
+  /**
+   * As write(callback), such that a model may be passed on wherever the
+   * Kneser-Ney callbacks are.
+   * @param callback
+   */
+  @Override
+  public void parse(ArpaLmReaderCallback<ProbBackoffPair> callback) {
+    List<Long> lengths = new ArrayList<Long>();
+    for (int ngramOrder = 0; ngramOrder < maxOrder; ngramOrder++) {
+      lengths.add((long) trie.size(ngramOrder));
+    }
+    callback.initWithLengths(lengths);
+
+    for (int ngramOrder = 0; ngramOrder < maxOrder; ngramOrder++) {
+      // The writer only reads the ngram during the call
+      int[] ngram = new int[ngramOrder + 1];
+      callback.handleNgramOrderStarted(ngramOrder + 1);
+      for (int i = 0; i < trie.size(ngramOrder); i++) {
+        trie.getNgram(ngramOrder, i, ngram);
+        callback.call(ngram, 0, ngram.length, new ProbBackoffPair(
+            getProb(ngramOrder, i), getBackoff(ngramOrder, i)), "");
+      }
+      callback.handleNgramOrderFinished(ngramOrder + 1);
+    }
+    callback.cleanup();
+  }
+
+  /**
+   * Writes the model and the vocabulary of swi to a binary file.
+   * @param fs
+   * @param file
+   * @param swi - WordIndexer the ngrams of the model were indexed with
+   * @throws IOException
+   */
+  public void write(FileSystem fs, Path file, StringWordIndexer swi)
+      throws IOException {
+    NgramCountSnapshot.write(fs, file, swi, trie, MAGIC);
+  }
+
+  /**
+   * Tells whether path is a binary model file, by its leading magic number.
+   * @param fs
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  public static boolean isModel(FileSystem fs, Path path) throws IOException {
+    return NgramCountSnapshot.hasMagic(fs, path, MAGIC);
+  }
+
+  /**
+   * Loads a binary model file by memory-mapping it.  As with a
+   * NgramCountSnapshot, the words of the model are added to swi, which must
+   * hold no other words than those registered before the model was written
+   * (see KneserNeyLMCompiler.createWordIndexer()).
+   * @param fs
+   * @param file
+   * @param swi
+   * @return
+   * @throws IOException
+   */
+  public static BackoffModel load(FileSystem fs, Path file,
+      StringWordIndexer swi) throws IOException {
+    return new BackoffModel(
+        NgramCountSnapshot.load(fs, file, swi, MAGIC).getTrie(), 0L);
+  }
+
+  /**
+   * Tells whether path is an ARPA model document, by its leading \data\
+   * line.
+   * @param fs
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  public static boolean isArpa(FileSystem fs, Path path) throws IOException {
+    if (false == fs.isFile(path)) {
+      return false;
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        fs.open(path), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while (null != (line = reader.readLine())) {
+        if (false == line.trim().isEmpty()) {
+          return ARPA_DATA_LINE.equals(line.trim());
+        }
+      }
+      return false;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Reads an ARPA model document into a model.  The words of the document
+   * are added to swi.  Files on other file systems than the local one are
+   * first copied to a local temporary file, as the berkeleylm ARPA reader
+   * only reads local files.
+   * @param fs
+   * @param file
+   * @param swi
+   * @param maxOrder - highest ngram order read from the document
+   * @return
+   * @throws IOException
+   */
+  public static BackoffModel readArpa(FileSystem fs, Path file,
+      StringWordIndexer swi, int maxOrder) throws IOException {
+    File localFile;
+    if ("file".equals(fs.getUri().getScheme())) {
+      localFile = new File(fs.makeQualified(file).toUri().getPath());
+    } else {
+      localFile = File.createTempFile("ripley-model-", ".arpa");
+      localFile.deleteOnExit();
+      fs.copyToLocalFile(false, file, new Path(localFile.getAbsolutePath()), true);
+    }
+    BackoffModel model = new BackoffModel(maxOrder);
+    new ArpaLmReader<String>(localFile.getPath(), swi, maxOrder).parse(model);
+    return model;
+  }
+
+  /**
+   * Creates a model over a trie whose counts are the packed probabilities
+   * and backoffs of its ngrams (see pack(...)).
+   * @param trie
+   * @return
+   */
+  static BackoffModel wrap(NgramCountTrie trie) {
+    return new BackoffModel(trie, 0L);
+  }
+
+  static long pack(float prob, float backoff) {
+    return ((long) Float.floatToIntBits(prob) << 32)
+        | (Float.floatToIntBits(backoff) & 0xffffffffL);
+  }
+}
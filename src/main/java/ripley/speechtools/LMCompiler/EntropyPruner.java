@@ -0,0 +1,439 @@
+package ripley.speechtools.LMCompiler;
+
+import java.nio.charset.StandardCharsets;
+
+import edu.berkeley.nlp.lm.StringWordIndexer;
+
+/**
+ * The EntropyPruner shrinks an estimated backoff model (see BackoffModel) by
+ * relative entropy pruning (A. Stolcke, "Entropy-based Pruning of Backoff
+ * Language Models", 1998), as with the -prune option of SRILM's ngram tool.
+ *
+ * Removing an explicit ngram (h, w) makes the model back off to
+ * bow'(h) * p(w | h'), where h' is h without its first word and the backoff
+ * weight bow'(h) is recomputed so that p(. | h) still sums to one.  The
+ * change this makes to the model is measured by the relative entropy
+ * between the model before and after the removal, weighted by the
+ * probability of the history h, and expressed as the relative increase in
+ * training set perplexity:
+ *
+ *   score(h, w) = 10^D(h, w) - 1, with
+ *   D(h, w) = -P(h) * [p(w | h) * (log p(w | h') + log bow'(h) - log p(w | h))
+ *                      + (1 - sum(p(. | h))) * (log bow'(h) - log bow(h))]
+ *
+ * Pruning proceeds in rounds.  Each round scores every ngram that may be
+ * removed on the current model and removes:
+ *   - every ngram scoring below the threshold, if one is given; and
+ *   - when the model exceeds a target size, the lowest scoring ngrams until
+ *     half of the excess is removed (all of it, once the excess is within
+ *     1% of the target).
+ * The backoffs of the contexts that lost ngrams are then recomputed, and
+ * the next round scores the pruned model, until a round removes nothing.
+ * The target is an ngram count or the byte size of the model's ARPA
+ * document.  Halving the excess per round lets the scores of the remaining
+ * ngrams follow the recomputed backoffs, and lets lower order ngrams compete
+ * once their extensions are gone.
+ *
+ * Unigrams are never removed, nor are ngrams that are the context of a
+ * higher order ngram of the model, so the pruned model stays a well-formed
+ * ARPA model.  As the Kneser-Ney models need not hold the suffix of every
+ * ngram, p(w | h') is found by backing off as an ARPA model reader does.
+ * The contexts of an order are scored and their backoffs recomputed
+ * independently of each other, so both are spread over the threads of a
+ * ParallelEstimator.
+ *
+ * @author kyle
+ *
+ */
+public class EntropyPruner {
+  // Fraction of the excess over the target size removed per round
+  private static final double TARGET_STEP = 0.5;
+
+  // Excess, relative to the target size, that is removed in a single round
+  private static final double FINAL_STEP = 0.01;
+
+  private final double threshold;
+  private final long targetNgrams;
+  private final long targetBytes;
+  private final int numThreads;
+  private final int startSymbol;
+  private final int endSymbol;
+  private final int[] wordBytes;
+
+  /**
+   * @param swi - WordIndexer of the models to prune
+   * @param threshold - largest relative perplexity increase of an ngram that
+   *                    is always removed, or 0
+   * @param targetNgrams - number of ngrams to prune to, or 0
+   * @param targetBytes - size in bytes of the ARPA document to prune to, or 0
+   * @param numThreads
+   */
+  public EntropyPruner(StringWordIndexer swi, double threshold,
+      long targetNgrams, long targetBytes, int numThreads) {
+    this.threshold = threshold;
+    this.targetNgrams = targetNgrams;
+    this.targetBytes = targetBytes;
+    this.numThreads = numThreads;
+    this.startSymbol = swi.getIndexPossiblyUnk(swi.getStartSymbol());
+    this.endSymbol = swi.getIndexPossiblyUnk(swi.getEndSymbol());
+    this.wordBytes = new int[swi.numWords()];
+    for (int i = 0; i < wordBytes.length; i++) {
+      wordBytes[i] = swi.getWord(i).getBytes(StandardCharsets.UTF_8).length;
+    }
+  }
+
+  /**
+   * Prunes model in rounds until a round removes no ngram.
+   * @param model
+   * @return the pruned model, or model itself if nothing was removed
+   */
+  public BackoffModel prune(BackoffModel model) {
+    ParallelEstimator executor = new ParallelEstimator(numThreads);
+    try {
+      BackoffModel current = model;
+      Round pruning = new Round(current, executor);
+      while (true) {
+        boolean[][] removed = pruning.selectRemovals();
+        if (0 == pruning.numRemoved) {
+          return current;
+        }
+        current = current.retain(removed, pruning.recomputeBackoffs(removed));
+        pruning = new Round(current, executor);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Statistics of the model being pruned in one round.
+   */
+  private final class Round {
+    private final BackoffModel model;
+    private final NgramCountTrie trie;
+    private final ParallelEstimator executor;
+    private final int maxOrder;
+    // Log probability of the last word of each ngram given its context
+    // without the first word, i.e., p(w | h') (orders above 0)
+    private final double[][] lowerProbs;
+    // Bytes taken by the words of each ngram in an ARPA line
+    private final int[][] ngramBytes;
+    private final long totalNgrams;
+    private final long totalBytes;
+    private int numRemoved;
+
+    Round(BackoffModel model, ParallelEstimator executor) {
+      this.model = model;
+      this.trie = model.getTrie();
+      this.executor = executor;
+      this.maxOrder = model.getMaxOrder();
+      this.lowerProbs = new double[maxOrder][];
+      this.ngramBytes = new int[maxOrder][];
+
+      long bytes = 0;
+      for (int ngramOrder = 0; ngramOrder < maxOrder; ngramOrder++) {
+        final int order = ngramOrder;
+        final double[] orderLowerProbs = new double[trie.size(order)];
+        final int[] orderBytes = new int[trie.size(order)];
+        executor.forRange(trie.size(order), new ParallelEstimator.RangeTask() {
+          @Override
+          public void run(int from, int to) {
+            int[] ngram = new int[order + 1];
+            for (int i = from; i < to; i++) {
+              int word = trie.getWord(order, i);
+              if (0 == order) {
+                orderBytes[i] = wordBytes[word];
+              } else {
+                orderBytes[i] = ngramBytes[order - 1][trie.getContext(order, i)]
+                    + 1 + wordBytes[word];
+                trie.getNgram(order, i, ngram);
+                orderLowerProbs[i] = model.getLogProb(ngram, 1, ngram.length);
+              }
+            }
+          }
+        });
+        lowerProbs[order] = orderLowerProbs;
+        ngramBytes[order] = orderBytes;
+        for (int i = 0; i < trie.size(order); i++) {
+          bytes += lineBytes(order, i);
+        }
+      }
+      this.totalNgrams = model.size();
+      this.totalBytes = bytes;
+    }
+
+    /**
+     * Scores the ngrams that may be removed and selects those to remove.
+     * @return removed[o][i] is true if ngram i of order o is to be removed
+     */
+    boolean[][] selectRemovals() {
+      boolean[][] removed = new boolean[maxOrder][];
+      removed[0] = new boolean[trie.size(0)];
+
+      // Ngrams that are the context of a higher order ngram
+      final boolean[][] extended = new boolean[maxOrder][];
+      for (int ngramOrder = 0; ngramOrder < maxOrder; ngramOrder++) {
+        extended[ngramOrder] = new boolean[trie.size(ngramOrder)];
+      }
+      for (int ngramOrder = 1; ngramOrder < maxOrder; ngramOrder++) {
+        final int order = ngramOrder;
+        final boolean[] lower = extended[order - 1];
+        // Concurrent tasks only ever set cells to true
+        executor.forRange(trie.size(order), new ParallelEstimator.RangeTask() {
+          @Override
+          public void run(int from, int to) {
+            for (int i = from; i < to; i++) {
+              lower[trie.getContext(order, i)] = true;
+            }
+          }
+        });
+      }
+
+      // Score the removable ngrams of every order above the unigrams
+      int numCandidates = 0;
+      for (int ngramOrder = 1; ngramOrder < maxOrder; ngramOrder++) {
+        removed[ngramOrder] = new boolean[trie.size(ngramOrder)];
+        for (int i = 0; i < trie.size(ngramOrder); i++) {
+          if (false == extended[ngramOrder][i]) {
+            numCandidates++;
+          }
+        }
+      }
+      long[] scores = new long[numCandidates];
+      long[] candidates = new long[numCandidates];
+      int candidate = 0;
+      for (int ngramOrder = 1; ngramOrder < maxOrder; ngramOrder++) {
+        final int order = ngramOrder;
+        final double[] leftover = new double[trie.size(order - 1)];
+        final double[] lowerLeftover = new double[trie.size(order - 1)];
+        final double[] historyProbs = historyLogProbs(order - 1);
+        final double[] orderScores = new double[trie.size(order)];
+        computeLeftovers(order, leftover, lowerLeftover);
+
+        executor.forRange(trie.size(order), new ParallelEstimator.RangeTask() {
+          @Override
+          public void run(int from, int to) {
+            for (int i = from; i < to; i++) {
+              if (false == extended[order][i]) {
+                int context = trie.getContext(order, i);
+                orderScores[i] = score(model.getProb(order, i),
+                    lowerProbs[order][i],
+                    model.getBackoff(order - 1, context), leftover[context],
+                    lowerLeftover[context], historyProbs[context]);
+              }
+            }
+          }
+        });
+
+        for (int i = 0; i < trie.size(order); i++) {
+          if (false == extended[order][i]) {
+            // Non-negative doubles sort as their bits do
+            scores[candidate] = Double.doubleToLongBits(
+                Math.max(0.0, orderScores[i]));
+            candidates[candidate] = ((long) order << 32) | i;
+            candidate++;
+          }
+        }
+      }
+      if (0 < numCandidates) {
+        NgramCountTrie.Builder.sort(scores, candidates, 0, numCandidates - 1);
+      }
+
+      // Remove the ngrams below the threshold, and then the lowest scoring
+      // ngrams until the step towards the target is made
+      long step = 0;
+      if (0 < targetBytes && totalBytes > targetBytes) {
+        step = getStep(totalBytes - targetBytes, targetBytes);
+      } else if (0 < targetNgrams && totalNgrams > targetNgrams) {
+        step = getStep(totalNgrams - targetNgrams, targetNgrams);
+      }
+      long removedCost = 0;
+      for (int i = 0; i < numCandidates; i++) {
+        if (Double.longBitsToDouble(scores[i]) >= threshold
+            && removedCost >= step) {
+          break;
+        }
+        int order = (int) (candidates[i] >>> 32);
+        int index = (int) candidates[i];
+        removed[order][index] = true;
+        removedCost += (0 < targetBytes) ? lineBytes(order, index) : 1;
+        numRemoved++;
+      }
+      return removed;
+    }
+
+    /**
+     * Recomputes the backoffs of the contexts that lose ngrams, such that the
+     * probabilities following each context still sum to one.  A context that
+     * loses all its ngrams gets a backoff of 0 (i.e., weight 1).
+     * @param removed
+     * @return backoffs of all ngrams, parallel to removed
+     */
+    float[][] recomputeBackoffs(final boolean[][] removed) {
+      float[][] backoffs = new float[maxOrder][];
+      for (int ngramOrder = 0; ngramOrder < maxOrder; ngramOrder++) {
+        final int order = ngramOrder;
+        final float[] orderBackoffs = new float[trie.size(order)];
+        for (int i = 0; i < orderBackoffs.length; i++) {
+          orderBackoffs[i] = model.getBackoff(order, i);
+        }
+        backoffs[order] = orderBackoffs;
+        if (order + 1 == maxOrder) {
+          continue;
+        }
+
+        executor.forRange(trie.size(order), new ParallelEstimator.RangeTask() {
+          @Override
+          public void run(int from, int to) {
+            for (int context = from; context < to; context++) {
+              int first = trie.firstChild(order + 1, context);
+              int last = trie.firstChild(order + 1, context + 1);
+              boolean changed = false;
+              boolean kept = false;
+              double leftover = 1.0;
+              double lowerLeftover = 1.0;
+              for (int i = first; i < last; i++) {
+                if (true == removed[order + 1][i]) {
+                  changed = true;
+                } else {
+                  kept = true;
+                  leftover -= Math.pow(10.0, model.getProb(order + 1, i));
+                  lowerLeftover -= Math.pow(10.0, lowerProbs[order + 1][i]);
+                }
+              }
+              if (false == changed) {
+                continue;
+              }
+              if (false == kept) {
+                orderBackoffs[context] = 0.0f;
+              } else if (0.0 < leftover && 0.0 < lowerLeftover) {
+                orderBackoffs[context] = (float) Math.log10(
+                    leftover / lowerLeftover);
+              }
+            }
+          }
+        });
+      }
+      return backoffs;
+    }
+
+    /**
+     * Computes, for every context of the ngrams of an order, the probability
+     * left to back off to (1 - sum(p(. | h))) and the probability of the same
+     * words in the backoff distribution (1 - sum(p(. | h'))).
+     * @param order
+     * @param leftover
+     * @param lowerLeftover
+     */
+    private void computeLeftovers(final int order, final double[] leftover,
+        final double[] lowerLeftover) {
+      executor.forRange(trie.size(order - 1), new ParallelEstimator.RangeTask() {
+        @Override
+        public void run(int from, int to) {
+          for (int context = from; context < to; context++) {
+            int first = trie.firstChild(order, context);
+            int last = trie.firstChild(order, context + 1);
+            double sum = 0.0;
+            double lowerSum = 0.0;
+            for (int i = first; i < last; i++) {
+              sum += Math.pow(10.0, model.getProb(order, i));
+              lowerSum += Math.pow(10.0, lowerProbs[order][i]);
+            }
+            leftover[context] = 1.0 - sum;
+            lowerLeftover[context] = 1.0 - lowerSum;
+          }
+        }
+      });
+    }
+
+    /**
+     * The log10 probability of each ngram of an order as a history, i.e.,
+     * the sum of the log probabilities of its prefixes.  A leading sentence
+     * start symbol has probability one.
+     * @param order
+     * @return
+     */
+    private double[] historyLogProbs(int order) {
+      double[] history = new double[trie.size(0)];
+      for (int i = 0; i < history.length; i++) {
+        history[i] = (startSymbol == trie.getWord(0, i))
+            ? 0.0 : model.getProb(0, i);
+      }
+      for (int ngramOrder = 1; ngramOrder <= order; ngramOrder++) {
+        double[] lower = history;
+        history = new double[trie.size(ngramOrder)];
+        for (int i = 0; i < history.length; i++) {
+          history[i] = lower[trie.getContext(ngramOrder, i)]
+              + model.getProb(ngramOrder, i);
+        }
+      }
+      return history;
+    }
+
+    /**
+     * Length of the ARPA line of an ngram, as written by the berkeleylm
+     * KneserNeyFileWritingLmReaderCallback ("%f\t%s[\t%f]\n").
+     * @param order
+     * @param index
+     * @return
+     */
+    private int lineBytes(int order, int index) {
+      int bytes = formattedLength(model.getProb(order, index)) + 1
+          + ngramBytes[order][index] + 1;
+      float backoff = model.getBackoff(order, index);
+      if (endSymbol != trie.getWord(order, index) && 0.0f != backoff) {
+        bytes += 1 + formattedLength(backoff);
+      }
+      return bytes;
+    }
+  }
+
+  /**
+   * The relative increase in perplexity caused by removing an ngram (h, w)
+   * (see class comments).  All probabilities are log10.
+   * @param prob - p(w | h)
+   * @param backoffProb - p(w | h')
+   * @param backoff - bow(h)
+   * @param leftover - 1 - sum(p(. | h))
+   * @param lowerLeftover - 1 - sum(p(. | h')) over the words following h
+   * @param historyProb - P(h)
+   * @return
+   */
+  static double score(double prob, double backoffProb, double backoff,
+      double leftover, double lowerLeftover, double historyProb) {
+    double newBackoff = Math.log10(leftover + Math.pow(10.0, prob))
+        - Math.log10(lowerLeftover + Math.pow(10.0, backoffProb));
+    double deltaProb = backoffProb + newBackoff - prob;
+    double deltaEntropy = -Math.pow(10.0, historyProb)
+        * (Math.pow(10.0, prob) * deltaProb + leftover * (newBackoff - backoff));
+    return Math.pow(10.0, deltaEntropy) - 1.0;
+  }
+
+  /**
+   * The part of the excess over the target size to remove in one round.
+   * @param excess
+   * @param target
+   * @return
+   */
+  private static long getStep(long excess, long target) {
+    if (excess <= FINAL_STEP * target) {
+      return excess;
+    }
+    return (long) Math.ceil(TARGET_STEP * excess);
+  }
+
+  /**
+   * Length of a float formatted with "%f", i.e., with six decimals.
+   * @param value
+   * @return
+   */
+  private static int formattedLength(float value) {
+    long integer = (long) Math.abs(value);
+    int length = (value < 0.0f) ? 8 : 7;
+    do {
+      length++;
+      integer /= 10;
+    } while (0 < integer);
+    return length;
+  }
+}
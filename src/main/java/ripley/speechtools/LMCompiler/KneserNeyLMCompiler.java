@@ -1,11 +1,22 @@
 package ripley.speechtools.LMCompiler;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.permission.FsPermission;
@@ -13,19 +24,123 @@ import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.hadoop.util.GenericOptionsParser;
 
+import edu.berkeley.nlp.lm.ConfigOptions;
 import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.io.ArpaLmReaderCallback;
 import edu.berkeley.nlp.lm.io.KneserNeyFileWritingLmReaderCallback;
+import edu.berkeley.nlp.lm.io.LmReader;
+import edu.berkeley.nlp.lm.io.LmReaderCallback;
+import edu.berkeley.nlp.lm.util.LongRef;
+import edu.berkeley.nlp.lm.values.ProbBackoffPair;
+
+import ripley.speechtools.mapper.NgramMapper;
+import ripley.speechtools.partitioner.NgramOrderPartitioner;
 
 /**
  * The KneserNeyLMCompiler is intended to transform the key/value pairs that
  * the reduce method outputs to the output records into a language model
  * in a standard format (ARPA n-gram format) with final n-gram probabilities
- * determined using Kneser-Ney probability smoothing.  The class currently
- * assumes construction of a trigram language model.
+ * determined using Kneser-Ney probability smoothing.  The order of the
+ * language model is set with ripley.ngram.order (see NgramMapper), which
+ * should match the largest ngram of the count documents.
  * 
  * The class should be able to be run via the hadoop command, and thus
  * implements the Tool interface (i.e., run via 'hadoop jar [ripleyjar] ...').
  * 
+ * The input may be a single, ordered ngram count document or a directory
+ * holding the per ngram order outputs of the counting job (e.g.,
+ * unigram-r-00000, bigram-r-00000, ...), which are then read in ngram order.
+ * 
+ * When the counting job was run over tagged input (see NgramMapper) the
+ * counts of each domain are found in a subdirectory per domain.  With the
+ * configuration property ripley.compiler.domains set to true, the input path
+ * is taken to be the directory holding the domain subdirectories, and a model
+ * is compiled for every domain, concurrently on up to ripley.compiler.threads
+ * threads, to [outputPath]/[domain].arpa.
+ * 
+ * When the counting job was run with ripley.ngram.maxorder.only set to true,
+ * the compiler must be run with the same property.  The count document then
+ * holds only maximum order and sentence-initial partial ngrams, from which the
+ * counts of every order are derived by the LowerOrderCountDeriver.  With the
+ * trie store the counts are derived into the trie directly, which keeps the
+ * memory of the derivation to that of the counted ngrams and the trie.  For
+ * the hash store they are summed in a trie as well, and then read in the
+ * order of complete counts, so that the same model is written as from the
+ * complete counts.
+ * 
+ * The configuration property ripley.compiler.store selects where the counts
+ * are kept during estimation:
+ *   hash - the berkeleylm HashNgramMap, with an object per ngram
+ *   trie - the compact NgramCountTrie of primitive arrays, which takes a
+ *          fraction of the memory and gives the garbage collector little to
+ *          trace (default, for every order).  With
+ *          ripley.compiler.store.offheap set to true the trie, including the
+ *          order being read, is kept in direct buffers outside the Java heap.
+ * The store changes only the representation of the counts: with fixed or
+ * estimated discounts and any minimum counts, both stores write the same
+ * probabilities and backoffs (see TrieKneserNeyLmReaderCallback), so models
+ * of every order are estimated alike.  The stores list the ngrams of an order
+ * in different orders.
+ * 
+ * With either store, the probabilities and backoffs are estimated on
+ * ripley.compiler.estimation.threads threads (by default the value of
+ * ripley.compiler.threads, or the number of processors), and the model
+ * document is the same for any number of threads (see ParallelEstimator).
+ * Domain models compiled concurrently each use that many threads.
+ * 
+ * The Kneser-Ney discounts are estimated from the numbers of one and two
+ * count ngrams of each order, unless ripley.compiler.kn.discounts gives them
+ * as a comma separated list, lowest order first (e.g., 0.5,0.7,0.8).  Ngrams
+ * of the two highest orders whose count is below the value for their order
+ * in ripley.compiler.kn.mincounts (by default 0,0,1,2,2,...) are left out of
+ * the model.
+ * 
+ * With ripley.compiler.snapshot set to a path, the parsed counts and the
+ * vocabulary are saved there as a binary NgramCountSnapshot.  With the hash
+ * store the counts are also gathered in a NgramCountTrie while they are read,
+ * which takes 16 bytes per ngram next to the HashNgramMap.  A snapshot may be
+ * given as the input path of later compiles in place of the count documents;
+ * it is memory-mapped, and only the estimation is repeated, e.g., to sweep
+ * the estimation parameters.  The trie store estimates from the mapped counts
+ * and the hash store reads them into its HashNgramMap, so either store
+ * compiles the same model from a snapshot as from the count documents.
+ * For domain models the snapshot path is a directory receiving a
+ * [domain].counts snapshot per domain, and such snapshots are accepted in
+ * place of the domain count directories.
+ * 
+ * The estimated model may be pruned before it is written, by relative
+ * entropy pruning (see EntropyPruner), with the configuration properties:
+ *   ripley.compiler.prune.threshold     - remove every ngram whose removal
+ *                                         increases the training set
+ *                                         perplexity by less than this
+ *                                         relative amount (e.g., 1e-8)
+ *   ripley.compiler.prune.target.ngrams - prune to at most this many ngrams
+ *   ripley.compiler.prune.target.bytes  - prune to an ARPA document of at
+ *                                         most this many bytes
+ * A pruned model is held in memory (see BackoffModel) and its ngrams are
+ * written in a different order within each ngram order.
+ * 
+ * With ripley.compiler.nextword.topk set to k, a NextWordIndex of the k most
+ * likely words after every context of the (pruned) model is written next to
+ * the model document, to [outputPath].next, for predictive lookups.
+ * 
+ * With ripley.compiler.binary set to true, the (pruned) model is also
+ * written as a binary BackoffModel to [outputPath].bin, which is
+ * memory-mapped rather than parsed when it is applied to data (see
+ * NbestRescorer).
+ * 
+ * With ripley.compiler.merge set to true, the input path is a comma separated
+ * list of models, which are merged into a single model by static linear
+ * interpolation (see ModelInterpolator), so that the decoder need not
+ * interpolate them at runtime.  Each model may be a binary BackoffModel, an
+ * ARPA model document, or ngram count document(s) or a snapshot, which are
+ * estimated first.  The interpolation weights are set with
+ * ripley.compiler.merge.weights as a comma separated list, one per model
+ * (uniform by default), and are tuned by expectation maximization on held-out
+ * text if ripley.compiler.merge.heldout names a transcript document, one
+ * sentence per line.  The merged model is pruned, indexed and written as a
+ * binary model as configured above.
+ * 
  * @author kyle
  *
  */
@@ -39,31 +154,79 @@ public class KneserNeyLMCompiler extends Configured implements Tool {
   private static final String WORD_INDEXER_END_SYMBOL = "</s>";
   private static final String WORD_INDEXER_UNKNOWN_SYMBOL = "<unk>";
 
-  // This value should match the largest ngram you wish to read from the
-  // intermediate ngram count document.
-  private static final int HARD_CODED_MAX_LM_ORDER = 3;
+  public static final String DOMAINS_KEY = "ripley.compiler.domains";
+  public static final String THREADS_KEY = "ripley.compiler.threads";
+  private static final String DOMAIN_MODEL_SUFFIX = ".arpa";
+  public static final String STORE_KEY = "ripley.compiler.store";
+  public static final String OFF_HEAP_KEY = "ripley.compiler.store.offheap";
+  public static final String ESTIMATION_THREADS_KEY =
+      "ripley.compiler.estimation.threads";
+  public static final String SNAPSHOT_KEY = "ripley.compiler.snapshot";
+  public static final String KN_DISCOUNTS_KEY = "ripley.compiler.kn.discounts";
+  public static final String KN_MIN_COUNTS_KEY = "ripley.compiler.kn.mincounts";
+  private static final String DOMAIN_SNAPSHOT_SUFFIX = ".counts";
+  public static final String PRUNE_THRESHOLD_KEY = "ripley.compiler.prune.threshold";
+  public static final String PRUNE_TARGET_NGRAMS_KEY =
+      "ripley.compiler.prune.target.ngrams";
+  public static final String PRUNE_TARGET_BYTES_KEY =
+      "ripley.compiler.prune.target.bytes";
+  public static final String NEXT_WORD_TOPK_KEY = "ripley.compiler.nextword.topk";
+  public static final String NEXT_WORD_INDEX_SUFFIX = ".next";
+  public static final String BINARY_MODEL_KEY = "ripley.compiler.binary";
+  public static final String BINARY_MODEL_SUFFIX = ".bin";
+  public static final String MERGE_KEY = "ripley.compiler.merge";
+  public static final String MERGE_WEIGHTS_KEY = "ripley.compiler.merge.weights";
+  public static final String MERGE_HELDOUT_KEY = "ripley.compiler.merge.heldout";
+
+  /**
+   * Stores holding the ngram counts during estimation.
+   */
+  public enum CountStore {
+    HASH,
+    TRIE
+  }
 
   private StringWordIndexer sWordIndexer;
   private int maxLmOrder;
 
   /**
    * The constructor primarily sets the configuration and WordIndexer to be used
-   * during the LM creation process.  It also sets the LM order of the process,
-   * which should match the largest ngram read from the intermediate ngram
-   * count document.
+   * during the LM creation process.  It also sets the LM order of the process
+   * from ripley.ngram.order, which should match the largest ngram read from
+   * the intermediate ngram count document.
    * @param swi
    * @param conf
    */
   public KneserNeyLMCompiler(StringWordIndexer swi, Configuration conf) {
     this.setConf(conf);
     this.sWordIndexer = swi;
-    this.sWordIndexer.setStartSymbol(WORD_INDEXER_START_SYMBOL);
-    this.sWordIndexer.setEndSymbol(WORD_INDEXER_END_SYMBOL);
-    this.sWordIndexer.setUnkSymbol(WORD_INDEXER_UNKNOWN_SYMBOL);
-    this.sWordIndexer.getOrAddIndexFromString(WORD_INDEXER_START_SYMBOL);
-    this.sWordIndexer.getOrAddIndexFromString(WORD_INDEXER_END_SYMBOL);
-    this.sWordIndexer.getOrAddIndexFromString(WORD_INDEXER_UNKNOWN_SYMBOL);
-    maxLmOrder = HARD_CODED_MAX_LM_ORDER;
+    prepareWordIndexer(this.sWordIndexer);
+    maxLmOrder = NgramMapper.getOrder(conf);
+  }
+
+  /**
+   * Creates a WordIndexer with the start, end and unknown word symbols
+   * registered as by the compiler, e.g., to load a binary BackoffModel.
+   * @return
+   */
+  public static StringWordIndexer createWordIndexer() {
+    StringWordIndexer swi = new StringWordIndexer();
+    prepareWordIndexer(swi);
+    return swi;
+  }
+
+  /**
+   * Registers the start, end and unknown word symbols with a WordIndexer
+   * that is about to index the words of an ngram count document.
+   * @param swi
+   */
+  private static void prepareWordIndexer(StringWordIndexer swi) {
+    swi.setStartSymbol(WORD_INDEXER_START_SYMBOL);
+    swi.setEndSymbol(WORD_INDEXER_END_SYMBOL);
+    swi.setUnkSymbol(WORD_INDEXER_UNKNOWN_SYMBOL);
+    swi.getOrAddIndexFromString(WORD_INDEXER_START_SYMBOL);
+    swi.getOrAddIndexFromString(WORD_INDEXER_END_SYMBOL);
+    swi.getOrAddIndexFromString(WORD_INDEXER_UNKNOWN_SYMBOL);
   }
 
   /**
@@ -89,6 +252,10 @@ public class KneserNeyLMCompiler extends Configured implements Tool {
       return 1;
     }
 
+    // The order may have been given as a generic option, which is parsed
+    // after construction (e.g., -D ripley.ngram.order=5)
+    maxLmOrder = NgramMapper.getOrder(getConf());
+
     // Trigger the sequence of actors in the stream of objects
     // that process the language model information in the act
     // of going from hadoop mapreduce ngram count documents to a
@@ -112,24 +279,263 @@ public class KneserNeyLMCompiler extends Configured implements Tool {
     Path sourceFile = new Path(args[0]);
     Path targetFile = new Path(args[1]);
     FileSystem fs = FileSystem.get(this.getConf());
-    InputStream is = fs.open(sourceFile);
+    String snapshot = this.getConf().get(SNAPSHOT_KEY);
+    Path snapshotPath = (null == snapshot) ? null : new Path(snapshot);
+
+    if (true == this.getConf().getBoolean(MERGE_KEY, false)) {
+      mergeModels(fs, args[0], targetFile);
+    } else if (true == this.getConf().getBoolean(DOMAINS_KEY, false)) {
+      compileDomainModels(fs, sourceFile, targetFile, snapshotPath);
+    } else {
+      compileModel(fs, sourceFile, targetFile, this.sWordIndexer, snapshotPath);
+    }
+  }
+
+  /**
+   * Compiles a single language model from the ngram count document(s) at
+   * sourceFile to an ARPA format document at targetFile.  If sourceFile is
+   * a NgramCountSnapshot, the counts are mapped from the snapshot instead.
+   * @param fs
+   * @param sourceFile
+   * @param targetFile
+   * @param swi - WordIndexer dedicated to this model
+   * @param snapshotFile - file receiving the parsed counts, or null
+   * @throws Exception
+   */
+  private void compileModel(FileSystem fs, Path sourceFile, Path targetFile,
+      StringWordIndexer swi, Path snapshotFile) throws Exception {
+    writeModel(readCounts(fs, sourceFile, swi, snapshotFile), fs, targetFile,
+        swi);
+  }
+
+  /**
+   * Reads the ngram count document(s) or NgramCountSnapshot at sourceFile
+   * into the configured count store, and returns the Kneser-Ney estimator
+   * of the counts.
+   * @param fs
+   * @param sourceFile
+   * @param swi - WordIndexer dedicated to this model
+   * @param snapshotFile - file receiving the parsed counts, or null
+   * @return
+   * @throws Exception
+   */
+  private LmReader<ProbBackoffPair, ArpaLmReaderCallback<ProbBackoffPair>>
+      readCounts(FileSystem fs, Path sourceFile, StringWordIndexer swi,
+      Path snapshotFile) throws Exception {
+
+    if (true == NgramCountSnapshot.isSnapshot(fs, sourceFile)) {
+      NgramCountSnapshot snapshot = NgramCountSnapshot.load(fs, sourceFile, swi);
+      if (CountStore.TRIE == getStore()) {
+        return new TrieKneserNeyLmReaderCallback(swi, snapshot.getTrie(),
+            getEstimationOptions(), getEstimationThreads());
+      }
+      // The hash store reads the counts of the snapshot as it would the count
+      // documents
+      return estimate(snapshot, fs, swi, null);
+    }
+
+    return estimate(openCounts(fs, sourceFile, swi, getStore()), fs, swi,
+        snapshotFile);
+  }
+
+  /**
+   * Opens the ngram count document(s) at sourceFile as a LmReader suited to
+   * the given count store.
+   * @param fs
+   * @param sourceFile
+   * @param swi - WordIndexer receiving the words of the ngrams
+   * @param store
+   * @return
+   * @throws IOException
+   */
+  private LmReader<LongRef, LmReaderCallback<LongRef>> openCounts(
+      FileSystem fs, Path sourceFile, StringWordIndexer swi, CountStore store)
+      throws IOException {
 
     // Create file to read input file in hdfs line by line, assuming one ngram
     // is present per line.
-    final MRKVTextReader lmReader = new MRKVTextReader(is, this.sWordIndexer);
+    boolean maxOrderOnly = this.getConf().getBoolean(
+        NgramMapper.MAX_ORDER_ONLY_KEY, false);
+    if (true == maxOrderOnly && CountStore.TRIE == store) {
+      // The trie sums the suffix counts itself
+      return LowerOrderCountDeriver.newReader(
+          MRKVTextReader.getLineIterator(openCountDocuments(fs, sourceFile)),
+          maxLmOrder, swi);
+    } else if (true == maxOrderOnly) {
+      return new MRKVTextReader(LowerOrderCountDeriver.derive(
+          MRKVTextReader.getLineIterator(openCountDocuments(fs, sourceFile)),
+          maxLmOrder), swi);
+    }
+    return new MRKVTextReader(openCountDocuments(fs, sourceFile), swi);
+  }
+
+  /**
+   * Wraps callback such that the counts it receives are also added to
+   * builder, e.g., to save them as a NgramCountSnapshot from the same pass
+   * over the count documents.
+   * @param callback
+   * @param builder
+   * @return
+   */
+  private static LmReaderCallback<LongRef> addingTo(
+      final LmReaderCallback<LongRef> callback,
+      final NgramCountTrie.Builder builder) {
+    return new LmReaderCallback<LongRef>() {
+      @Override
+      public void call(int[] ngram, int startPos, int endPos, LongRef value,
+          String words) {
+        builder.add(ngram, startPos, endPos, value.value);
+        callback.call(ngram, startPos, endPos, value, words);
+      }
+
+      @Override
+      public void cleanup() {
+        callback.cleanup();
+      }
+    };
+  }
+
+  /**
+   * Compiles a single language model from the lines of an ordered ngram count
+   * document (see MRKVTextReader) held in memory rather than in a file, e.g.,
+   * the windowed counts of the StreamingLMTrainer, to an ARPA format document
+   * at targetFile.  A new WordIndexer is used for every model.
+   * @param countLines - ngram count lines, lower orders first
+   * @param fs
+   * @param targetFile
+   * @throws Exception
+   */
+  public void compileModel(Iterator<String> countLines, FileSystem fs,
+      Path targetFile) throws Exception {
+    StringWordIndexer swi = new StringWordIndexer();
+    prepareWordIndexer(swi);
+    writeModel(estimate(new MRKVTextReader(countLines, swi), fs, swi, null),
+        fs, targetFile, swi);
+  }
+
+  /**
+   * Parses the counts of lmReader into the configured count store, and
+   * returns the Kneser-Ney estimator of the counts.
+   * @param lmReader
+   * @param fs
+   * @param swi - WordIndexer of lmReader
+   * @param snapshotFile - file receiving the parsed counts, or null
+   * @return
+   * @throws Exception
+   */
+  private LmReader<ProbBackoffPair, ArpaLmReaderCallback<ProbBackoffPair>>
+      estimate(LmReader<LongRef, LmReaderCallback<LongRef>> lmReader,
+      FileSystem fs, StringWordIndexer swi, Path snapshotFile)
+      throws Exception {
 
     // Create the LmReaderCallback object to receive data from the
-    // MRKVTextReader
-    RipleyKneserNeyLmReaderCallback kneserNeyReader = 
-        new RipleyKneserNeyLmReaderCallback(this.sWordIndexer, maxLmOrder);
+    // MRKVTextReader, and parse the input file with the LmReader object,
+    // outputting the parse results to the registered callback object.
+    final LmReader<ProbBackoffPair, ArpaLmReaderCallback<ProbBackoffPair>> kneserNeyReader;
+    int estimationThreads = getEstimationThreads();
+    if (CountStore.TRIE == getStore()) {
+      TrieKneserNeyLmReaderCallback trieReader = new TrieKneserNeyLmReaderCallback(
+          swi, maxLmOrder, this.getConf().getBoolean(OFF_HEAP_KEY, false),
+          getEstimationOptions(), estimationThreads);
+      lmReader.parse(trieReader);
+      if (null != snapshotFile) {
+        NgramCountSnapshot.write(fs, snapshotFile, swi, trieReader.getTrie());
+      }
+      kneserNeyReader = trieReader;
+    } else {
+      RipleyKneserNeyLmReaderCallback hashReader =
+          new RipleyKneserNeyLmReaderCallback(swi, maxLmOrder,
+              getEstimationOptions(), estimationThreads);
+      if (null != snapshotFile) {
+        // The counts are gathered for the snapshot in the same pass
+        NgramCountTrie.Builder builder = new NgramCountTrie.Builder(
+            maxLmOrder, this.getConf().getBoolean(OFF_HEAP_KEY, false));
+        lmReader.parse(addingTo(hashReader, builder));
+        NgramCountSnapshot.write(fs, snapshotFile, swi, builder.build());
+      } else {
+        lmReader.parse(hashReader);
+      }
+      kneserNeyReader = hashReader;
+    }
+    return kneserNeyReader;
+  }
+
+  /**
+   * The count store of ripley.compiler.store, by default the trie store.
+   * @return
+   */
+  private CountStore getStore() {
+    return CountStore.valueOf(this.getConf().get(STORE_KEY,
+        CountStore.TRIE.name()).trim().toUpperCase(Locale.ROOT));
+  }
+
+  /**
+   * The berkeleylm estimation options, with the discounts of
+   * ripley.compiler.kn.discounts and the minimum counts of
+   * ripley.compiler.kn.mincounts where they are set.
+   * @return
+   */
+  ConfigOptions getEstimationOptions() {
+    ConfigOptions opts = new ConfigOptions();
+    double[] discounts = getPerOrder(KN_DISCOUNTS_KEY);
+    if (null != discounts) {
+      opts.kneserNeyDiscounts = discounts;
+    }
+    double[] minCounts = getPerOrder(KN_MIN_COUNTS_KEY);
+    if (null != minCounts) {
+      opts.kneserNeyMinCounts = minCounts;
+    }
+    return opts;
+  }
+
+  /**
+   * Parses a comma separated list of values, lowest order first, with a value
+   * for every order of the model.
+   * @param key
+   * @return the values, or null if key is not set
+   */
+  private double[] getPerOrder(String key) {
+    String[] givenValues = this.getConf().getStrings(key);
+    if (null == givenValues) {
+      return null;
+    }
+    if (givenValues.length < maxLmOrder) {
+      throw new IllegalArgumentException(givenValues.length + " values in "
+          + key + " for a model of order " + maxLmOrder);
+    }
+    double[] values = new double[givenValues.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = Double.parseDouble(givenValues[i].trim());
+    }
+    return values;
+  }
 
-    // Parse the input file with the LmReader object, outputting the parse
-    // results to the registered callback object.
-    lmReader.parse(kneserNeyReader);
+  private int getEstimationThreads() {
+    return this.getConf().getInt(ESTIMATION_THREADS_KEY,
+        this.getConf().getInt(THREADS_KEY,
+            Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * Writes the model estimated by kneserNeyReader in ARPA format to
+   * targetFile, pruning it first and indexing its next words if the
+   * configuration asks for it.
+   * @param kneserNeyReader
+   * @param fs
+   * @param targetFile
+   * @param swi
+   * @throws IOException
+   */
+  private void writeModel(
+      LmReader<ProbBackoffPair, ArpaLmReaderCallback<ProbBackoffPair>> kneserNeyReader,
+      FileSystem fs, Path targetFile, StringWordIndexer swi) throws IOException {
 
     // Prepare for writing Ngram in ARPA format to destination Path
     OutputStream fsos = null;
     PrintWriter pw = null;
+    BackoffModel model = null;
+    int nextWordTopK = this.getConf().getInt(NEXT_WORD_TOPK_KEY, 0);
+    boolean binary = this.getConf().getBoolean(BINARY_MODEL_KEY, false);
     try {
       // Set up PrintWriter for target file
       fsos = FileSystem.create(fs, targetFile, FsPermission.getFileDefault());
@@ -138,12 +544,294 @@ public class KneserNeyLMCompiler extends Configured implements Tool {
       // Reuse berkeleylm class KneserNeyFileWritingLmReaderCallback as
       // a LmReaderCallback class with no modification for writing out the
       // ARPA format LM document
-      kneserNeyReader.parse(new KneserNeyFileWritingLmReaderCallback<String>(
-          pw, this.sWordIndexer));
+      ArpaLmReaderCallback<ProbBackoffPair> writer =
+          new KneserNeyFileWritingLmReaderCallback<String>(pw, swi);
+      double pruneThreshold = this.getConf().getDouble(PRUNE_THRESHOLD_KEY, 0.0);
+      long targetNgrams = this.getConf().getLong(PRUNE_TARGET_NGRAMS_KEY, 0L);
+      long targetBytes = this.getConf().getLong(PRUNE_TARGET_BYTES_KEY, 0L);
+      if (0.0 < pruneThreshold || 0 < targetNgrams || 0 < targetBytes) {
+        // Example:  -D ripley.compiler.prune.target.ngrams=1000000
+        model = new BackoffModel(maxLmOrder);
+        kneserNeyReader.parse(model);
+        model = new EntropyPruner(swi, pruneThreshold, targetNgrams,
+            targetBytes, getEstimationThreads()).prune(model);
+        model.write(writer);
+      } else if (0 < nextWordTopK || true == binary) {
+        // Keep the model for the index or binary model while writing it as
+        // estimated
+        model = new BackoffModel(maxLmOrder);
+        kneserNeyReader.parse(new TeeCallback(writer, model));
+      } else {
+        kneserNeyReader.parse(writer);
+      }
     } finally {
-      pw.close();
+      if (null != pw) {
+        pw.close();
+      }
+    }
+
+    if (true == binary) {
+      // Example:  -D ripley.compiler.binary=true
+      model.write(fs, getBinaryModelPath(targetFile), swi);
+    }
+    if (0 < nextWordTopK) {
+      // Example:  -D ripley.compiler.nextword.topk=10
+      NextWordIndex.write(fs, getNextWordIndexPath(targetFile), swi, model,
+          nextWordTopK, getEstimationThreads());
+    }
+  }
+
+  /**
+   * The path of the NextWordIndex written along with a model document.
+   * @param modelFile
+   * @return
+   */
+  public static Path getNextWordIndexPath(Path modelFile) {
+    return new Path(modelFile.getParent(),
+        modelFile.getName() + NEXT_WORD_INDEX_SUFFIX);
+  }
+
+  /**
+   * The path of the binary BackoffModel written along with a model document.
+   * @param modelFile
+   * @return
+   */
+  public static Path getBinaryModelPath(Path modelFile) {
+    return new Path(modelFile.getParent(),
+        modelFile.getName() + BINARY_MODEL_SUFFIX);
+  }
+
+  /**
+   * Passes an estimated model on to two callbacks at once.
+   */
+  private static final class TeeCallback
+      implements ArpaLmReaderCallback<ProbBackoffPair> {
+    private final ArpaLmReaderCallback<ProbBackoffPair> first;
+    private final ArpaLmReaderCallback<ProbBackoffPair> second;
+
+    TeeCallback(ArpaLmReaderCallback<ProbBackoffPair> first,
+        ArpaLmReaderCallback<ProbBackoffPair> second) {
+      this.first = first;
+      this.second = second;
+    }
+
+    @Override
+    public void initWithLengths(List<Long> numNGrams) {
+      first.initWithLengths(numNGrams);
+      second.initWithLengths(numNGrams);
     }
 
+    @Override
+    public void handleNgramOrderStarted(int order) {
+      first.handleNgramOrderStarted(order);
+      second.handleNgramOrderStarted(order);
+    }
+
+    @Override
+    public void handleNgramOrderFinished(int order) {
+      first.handleNgramOrderFinished(order);
+      second.handleNgramOrderFinished(order);
+    }
+
+    @Override
+    public void call(int[] ngram, int startPos, int endPos,
+        ProbBackoffPair value, String words) {
+      first.call(ngram, startPos, endPos, value, words);
+      second.call(ngram, startPos, endPos, value, words);
+    }
+
+    @Override
+    public void cleanup() {
+      first.cleanup();
+      second.cleanup();
+    }
+  }
+
+  /**
+   * Compiles a language model for each domain subdirectory of sourceDir.
+   * The domains are independent of each other (each has its own WordIndexer
+   * and count maps), so they are compiled concurrently.  Domain count
+   * snapshots ([domain].counts) are accepted in place of the subdirectories.
+   * @param fs
+   * @param sourceDir - directory holding one ngram count directory per domain
+   * @param targetDir - directory receiving one ARPA document per domain
+   * @param snapshotDir - directory receiving a count snapshot per domain, or
+   *                      null
+   * @throws Exception
+   */
+  private void compileDomainModels(final FileSystem fs, Path sourceDir,
+      final Path targetDir, final Path snapshotDir) throws Exception {
+    List<Future<Void>> results = new ArrayList<Future<Void>>();
+    List<FileStatus> domainDirs = new ArrayList<FileStatus>();
+
+    for (FileStatus status : fs.listStatus(sourceDir)) {
+      if (true == isHidden(status.getPath())) {
+        continue;
+      }
+      if (true == status.isDirectory() || (true == status.isFile()
+          && status.getPath().getName().endsWith(DOMAIN_SNAPSHOT_SUFFIX))) {
+        domainDirs.add(status);
+      }
+    }
+    if (true == domainDirs.isEmpty()) {
+      throw new IOException("No domain directories found in " + sourceDir);
+    }
+
+    int threads = this.getConf().getInt(THREADS_KEY,
+        Runtime.getRuntime().availableProcessors());
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(threads, domainDirs.size())));
+
+    try {
+      for (final FileStatus domainDir : domainDirs) {
+        results.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            StringWordIndexer swi = new StringWordIndexer();
+            prepareWordIndexer(swi);
+            String domain = domainDir.getPath().getName();
+            if (true == domainDir.isFile()) {
+              domain = domain.substring(0,
+                  domain.length() - DOMAIN_SNAPSHOT_SUFFIX.length());
+            }
+            compileModel(fs, domainDir.getPath(), new Path(targetDir,
+                domain + DOMAIN_MODEL_SUFFIX), swi, (null == snapshotDir) ? null
+                : new Path(snapshotDir, domain + DOMAIN_SNAPSHOT_SUFFIX));
+            return null;
+          }
+        }));
+      }
+
+      // Surface the first failure, if any, once all domains are submitted
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Merges the models listed in sources by static interpolation (see
+   * ModelInterpolator) into a single model document at targetFile.  Each
+   * model may be a binary BackoffModel, an ARPA model document, or ngram
+   * count document(s) or a NgramCountSnapshot, which are estimated first.
+   * The weights are those of ripley.compiler.merge.weights (uniform by
+   * default), tuned on the held-out text of ripley.compiler.merge.heldout if
+   * it is set.
+   * @param fs
+   * @param sources - comma separated paths of the models
+   * @param targetFile
+   * @throws Exception
+   */
+  private void mergeModels(FileSystem fs, String sources, Path targetFile)
+      throws Exception {
+    List<Path> sourceFiles = new ArrayList<Path>();
+    for (String source : sources.split(",")) {
+      if (false == source.trim().isEmpty()) {
+        sourceFiles.add(new Path(source.trim()));
+      }
+    }
+
+    double[] weights = new double[sourceFiles.size()];
+    String[] givenWeights = this.getConf().getStrings(MERGE_WEIGHTS_KEY);
+    if (null == givenWeights) {
+      Arrays.fill(weights, 1.0);
+    } else if (givenWeights.length != weights.length) {
+      throw new IllegalArgumentException(givenWeights.length + " weights in "
+          + MERGE_WEIGHTS_KEY + " for " + weights.length + " models");
+    } else {
+      for (int m = 0; m < weights.length; m++) {
+        weights[m] = Double.parseDouble(givenWeights[m].trim());
+      }
+    }
+
+    List<BackoffModel> models = new ArrayList<BackoffModel>();
+    List<StringWordIndexer> indexers = new ArrayList<StringWordIndexer>();
+    for (Path sourceFile : sourceFiles) {
+      StringWordIndexer swi = createWordIndexer();
+      BackoffModel model;
+      if (true == BackoffModel.isModel(fs, sourceFile)) {
+        model = BackoffModel.load(fs, sourceFile, swi);
+      } else if (true == BackoffModel.isArpa(fs, sourceFile)) {
+        model = BackoffModel.readArpa(fs, sourceFile, swi, maxLmOrder);
+      } else {
+        model = new BackoffModel(maxLmOrder);
+        readCounts(fs, sourceFile, swi, null).parse(model);
+      }
+      models.add(model);
+      indexers.add(swi);
+    }
+
+    ModelInterpolator interpolator = new ModelInterpolator(this.sWordIndexer,
+        models, indexers, getEstimationThreads());
+    String heldout = this.getConf().get(MERGE_HELDOUT_KEY);
+    if (null != heldout) {
+      // Example:  -D ripley.compiler.merge.heldout=/data/dev/transcripts.txt
+      weights = interpolator.estimateWeights(MRKVTextReader.getLineIterator(
+          openCountDocuments(fs, new Path(heldout))), weights);
+    }
+
+    // A binary model may be of a higher order than ripley.ngram.order
+    maxLmOrder = Math.max(maxLmOrder, interpolator.getMaxOrder());
+    writeModel(interpolator.interpolate(weights), fs, targetFile,
+        this.sWordIndexer);
+  }
+
+  /**
+   * Opens the ngram count document(s) at the given path in ngram order.
+   * A file is opened as is.  For a directory, the per ngram order outputs of
+   * the counting job (e.g., unigram-r-00000) are opened in ngram order.  If
+   * the directory holds no per ngram order outputs, its files are opened in
+   * name order instead, which suits count listings that are already ordered
+   * across part files (e.g., the output of the SparkLMTrainer).
+   * @param fs
+   * @param source
+   * @return
+   * @throws IOException
+   */
+  static List<InputStream> openCountDocuments(FileSystem fs, Path source)
+      throws IOException {
+    List<InputStream> inputs = new ArrayList<InputStream>();
+    List<Path> orderedFiles = new ArrayList<Path>();
+
+    if (false == fs.getFileStatus(source).isDirectory()) {
+      inputs.add(fs.open(source));
+      return inputs;
+    }
+
+    FileStatus[] statuses = fs.listStatus(source);
+    Arrays.sort(statuses);
+    Path[] files = new Path[statuses.length];
+    for (int i = 0; i < statuses.length; i++) {
+      files[i] = statuses[i].getPath();
+    }
+
+    for (NgramOrderPartitioner.Partitions partition
+        : NgramOrderPartitioner.Partitions.values()) {
+      for (Path file : files) {
+        if (true == file.getName().startsWith(partition.partitionName() + "-")) {
+          orderedFiles.add(file);
+        }
+      }
+    }
+
+    if (true == orderedFiles.isEmpty()) {
+      for (int i = 0; i < files.length; i++) {
+        if (true == statuses[i].isFile() && false == isHidden(files[i])) {
+          orderedFiles.add(files[i]);
+        }
+      }
+    }
+
+    for (Path file : orderedFiles) {
+      inputs.add(fs.open(file));
+    }
+    return inputs;
+  }
+
+  private static boolean isHidden(Path path) {
+    return path.getName().startsWith("_") || path.getName().startsWith(".");
   }
 
   /**
@@ -0,0 +1,305 @@
+package ripley.speechtools.LMCompiler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+
+import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.io.LmReader;
+import edu.berkeley.nlp.lm.io.LmReaderCallback;
+import edu.berkeley.nlp.lm.util.LongRef;
+
+/**
+ * The LowerOrderCountDeriver restores complete ngram counts of every order
+ * from the counts produced when the ngram counting job emits only maximum
+ * order ngrams and sentence-initial partial ngrams (see
+ * ripley.speechtools.analyzer.NgramTranscriptAnalyzer.setMaxOrderOnly(...)).
+ *
+ * Every ngram occurrence of any order is the suffix of exactly one counted
+ * ngram, so the count of each counted ngram is added to each of its suffixes
+ * (including itself).
+ *
+ * Example:  the counted trigram 'cleared to land 5' contributes 5 to each of
+ * 'cleared to land', 'to land' and 'land'.
+ *
+ * newReader(...) keeps only the counted ngrams, as word indexes in one flat
+ * array per ngram length (4 bytes per word plus 8 for the count), and passes
+ * every suffix of every counted ngram to its callback order by order.  It
+ * suits callbacks that sum the repeated counts of an ngram, as the
+ * TrieKneserNeyLmReaderCallback does in its NgramCountTrie.Builder, where
+ * each distinct ngram takes 16 bytes whatever its order, as it shares its
+ * context with its siblings.
+ *
+ * The berkeleylm HashNgramMap of the hash store does not sum repeated ngrams
+ * the same way, so derive(...) sums the suffixes in a NgramCountTrie itself,
+ * and presents the result as the lines of an ordered ngram count document, in
+ * the format described for MRKVTextReader.  The ngrams of each order are
+ * listed in the byte order of their UTF-8 encoding, which is the Text key
+ * order of the NgramReducer output, so the derived counts are parsed exactly
+ * as the complete counts of the same corpus would be, word indexes included.
+ *
+ * @author kyle
+ *
+ */
+public class LowerOrderCountDeriver {
+
+  private LowerOrderCountDeriver() {
+  }
+
+  /**
+   * Reads all lines of a count document with maximum order ngrams and
+   * partial ngrams, and returns the lines of the equivalent ordered count
+   * document with complete counts for every order up to maxOrder.  Lines
+   * that cannot be parsed are skipped, as in MRKVTextReader.
+   * @param lineIterator
+   * @param maxOrder
+   * @return
+   */
+  public static Iterator<String> derive(Iterator<String> lineIterator,
+      int maxOrder) {
+    StringWordIndexer swi = new StringWordIndexer();
+    final NgramCountTrie.Builder builder =
+        new NgramCountTrie.Builder(maxOrder, false);
+    newReader(lineIterator, maxOrder, swi).parse(
+        new LmReaderCallback<LongRef>() {
+          @Override
+          public void call(int[] ngram, int startPos, int endPos,
+              LongRef value, String words) {
+            builder.add(ngram, startPos, endPos, value.value);
+          }
+
+          @Override
+          public void cleanup() {
+          }
+        });
+    return new CountLineIterator(builder.build(), swi);
+  }
+
+  /**
+   * Lists the ngrams of a trie as count document lines, order by order, and
+   * within an order in the byte order of the UTF-8 encoded ngrams.  The
+   * ngrams of an order are sorted when the order is reached.
+   */
+  private static final class CountLineIterator implements Iterator<String> {
+    private static final int SPACE = ' ';
+
+    private final NgramCountTrie trie;
+    private final byte[][] wordBytes;
+    private final int[] first;
+    private final int[] second;
+    private int ngramOrder = -1;
+    private int[] sorted = new int[0];
+    private int position;
+
+    CountLineIterator(NgramCountTrie trie, StringWordIndexer swi) {
+      this.trie = trie;
+      this.wordBytes = new byte[swi.numWords()][];
+      for (int word = 0; word < wordBytes.length; word++) {
+        wordBytes[word] = swi.getWord(word).getBytes(StandardCharsets.UTF_8);
+      }
+      this.first = new int[trie.getMaxOrder()];
+      this.second = new int[trie.getMaxOrder()];
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (position == sorted.length) {
+        if (ngramOrder + 1 == trie.getMaxOrder()) {
+          return false;
+        }
+        ngramOrder++;
+        sorted = new int[trie.size(ngramOrder)];
+        for (int i = 0; i < sorted.length; i++) {
+          sorted[i] = i;
+        }
+        sort(sorted, new int[sorted.length], 0, sorted.length);
+        position = 0;
+      }
+      return true;
+    }
+
+    @Override
+    public String next() {
+      if (false == hasNext()) {
+        throw new NoSuchElementException();
+      }
+      int index = sorted[position++];
+      trie.getNgram(ngramOrder, index, first);
+      StringBuilder line = new StringBuilder();
+      for (int i = 0; i <= ngramOrder; i++) {
+        if (0 < i) {
+          line.append(' ');
+        }
+        line.append(new String(wordBytes[first[i]], StandardCharsets.UTF_8));
+      }
+      return line.append('\t').append(trie.getCount(ngramOrder, index))
+          .toString();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Merge sorts indexes[from, to) of the current order by compare(...).
+     */
+    private void sort(int[] indexes, int[] scratch, int from, int to) {
+      if (to - from < 2) {
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      sort(indexes, scratch, from, middle);
+      sort(indexes, scratch, middle, to);
+      if (0 >= compare(indexes[middle - 1], indexes[middle])) {
+        return;
+      }
+      System.arraycopy(indexes, from, scratch, from, to - from);
+      int left = from;
+      int right = middle;
+      for (int i = from; i < to; i++) {
+        if (right == to || (left < middle
+            && 0 >= compare(scratch[left], scratch[right]))) {
+          indexes[i] = scratch[left++];
+        } else {
+          indexes[i] = scratch[right++];
+        }
+      }
+    }
+
+    /**
+     * Compares two ngrams of the current order as the unsigned bytes of
+     * their UTF-8 encodings, with the words separated by single spaces.
+     */
+    private int compare(int index1, int index2) {
+      trie.getNgram(ngramOrder, index1, first);
+      trie.getNgram(ngramOrder, index2, second);
+      for (int i = 0; i <= ngramOrder; i++) {
+        byte[] word1 = wordBytes[first[i]];
+        byte[] word2 = wordBytes[second[i]];
+        int length = Math.min(word1.length, word2.length);
+        for (int j = 0; j < length; j++) {
+          if (word1[j] != word2[j]) {
+            return (word1[j] & 0xff) - (word2[j] & 0xff);
+          }
+        }
+        if (word1.length != word2.length) {
+          // The shorter word is followed by a space, or ends the ngram
+          boolean last = (i == ngramOrder);
+          if (word1.length < word2.length) {
+            return (true == last) ? -1 : SPACE - (word2[length] & 0xff);
+          }
+          return (true == last) ? 1 : (word1[length] & 0xff) - SPACE;
+        }
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * Returns a LmReader that reads all lines of a count document with maximum
+   * order ngrams and partial ngrams, and passes the suffixes of the counted
+   * ngrams, lower orders first, to its callback.  A derived ngram is passed
+   * once for every counted ngram it is a suffix of, so the callback must sum
+   * the counts of repeated ngrams, as the TrieKneserNeyLmReaderCallback does.
+   * Lines that cannot be parsed are skipped, as in derive(...).
+   * @param lineIterator
+   * @param maxOrder
+   * @param swi - WordIndexer receiving the words of the ngrams
+   * @return
+   */
+  public static LmReader<LongRef, LmReaderCallback<LongRef>> newReader(
+      Iterator<String> lineIterator, int maxOrder, StringWordIndexer swi) {
+    return new SuffixCountReader(lineIterator, maxOrder, swi);
+  }
+
+  /**
+   * The counted ngrams of each length, as word indexes in a flat array, and
+   * their counts.
+   */
+  private static final class SuffixCountReader
+      implements LmReader<LongRef, LmReaderCallback<LongRef>> {
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Iterator<String> lineIterator;
+    private final int maxOrder;
+    private final StringWordIndexer swi;
+    private final int[][] ngrams;
+    private final long[][] counts;
+    private final int[] sizes;
+
+    SuffixCountReader(Iterator<String> lineIterator, int maxOrder,
+        StringWordIndexer swi) {
+      this.lineIterator = lineIterator;
+      this.maxOrder = maxOrder;
+      this.swi = swi;
+      this.ngrams = new int[maxOrder][];
+      this.counts = new long[maxOrder][];
+      this.sizes = new int[maxOrder];
+      for (int length = 1; length <= maxOrder; length++) {
+        ngrams[length - 1] = new int[INITIAL_CAPACITY * length];
+        counts[length - 1] = new long[INITIAL_CAPACITY];
+      }
+    }
+
+    @Override
+    public void parse(LmReaderCallback<LongRef> callback) {
+      String[] words;
+      long observedCount;
+
+      while (true == lineIterator.hasNext()) {
+        words = WHITESPACE.split(lineIterator.next().trim());
+
+        // Consider line garbage if it does not contain at least two fields
+        if (words.length < 2 || words.length - 1 > maxOrder) {
+          continue;
+        }
+        try {
+          observedCount = Long.parseLong(words[words.length - 1]);
+        } catch (Exception ex) {
+          // Failed number parse.  Consider line garbage.
+          continue;
+        }
+        if (observedCount < 1) {
+          continue;
+        }
+        add(words, observedCount);
+      }
+
+      // Every suffix of the given order of every counted ngram, such that
+      // the contexts of an order are complete before it is passed on
+      final LongRef countRef = new LongRef(0);
+      for (int ngramOrder = 1; ngramOrder <= maxOrder; ngramOrder++) {
+        for (int length = ngramOrder; length <= maxOrder; length++) {
+          int[] flat = ngrams[length - 1];
+          for (int i = 0; i < sizes[length - 1]; i++) {
+            int end = (i + 1) * length;
+            countRef.value = counts[length - 1][i];
+            callback.call(flat, end - ngramOrder, end, countRef, null);
+          }
+        }
+      }
+      callback.cleanup();
+    }
+
+    private void add(String[] words, long count) {
+      int length = words.length - 1;
+      int size = sizes[length - 1];
+      if (size == counts[length - 1].length) {
+        int capacity = size + (size >> 1);
+        counts[length - 1] = Arrays.copyOf(counts[length - 1], capacity);
+        ngrams[length - 1] = Arrays.copyOf(ngrams[length - 1],
+            capacity * length);
+      }
+      for (int i = 0; i < length; i++) {
+        ngrams[length - 1][size * length + i] =
+            swi.getOrAddIndexFromString(words[i]);
+      }
+      counts[length - 1][size] = count;
+      sizes[length - 1] = size + 1;
+    }
+  }
+}
@@ -3,9 +3,13 @@ package ripley.speechtools.LMCompiler;
 import java.io.InputStream;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
 
 import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.collections.Iterators;
 import edu.berkeley.nlp.lm.io.IOUtils;
 import edu.berkeley.nlp.lm.io.LmReader;
 import edu.berkeley.nlp.lm.io.LmReaderCallback;
@@ -32,6 +36,8 @@ import edu.berkeley.nlp.lm.util.LongRef;
  *
  */
 public class MRKVTextReader implements LmReader<LongRef, LmReaderCallback<LongRef>> {
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
   private final StringWordIndexer sWordIndexer;
   private final Iterator<String> lineIterator;
   
@@ -39,6 +45,18 @@ public class MRKVTextReader implements LmReader<LongRef, LmReaderCallback<LongRe
     this(getLineIterator(is), swi);
   }
   
+  /**
+   * Reads the lines of several inputs one after another.  The inputs must be
+   * given in ngram order (e.g., the unigram, bigram and trigram outputs of the
+   * ngram counting job), such that the concatenation is ordered as described
+   * in the file comments above.
+   * @param orderedInputs
+   * @param swi
+   */
+  public MRKVTextReader(final List<InputStream> orderedInputs, final StringWordIndexer swi) {
+    this(getLineIterator(orderedInputs), swi);
+  }
+  
   public MRKVTextReader(Iterator<String> lineIterator, final StringWordIndexer swi) {
     this.lineIterator = lineIterator;
     this.sWordIndexer = swi;
@@ -49,11 +67,16 @@ public class MRKVTextReader implements LmReader<LongRef, LmReaderCallback<LongRe
    * format represented in the file comments above. Writes the ngrams with
    * observed count values to the provided LmReaderCallback object.
    * 
+   * The word index array and count holder passed to the callback are reused
+   * from line to line, as the callbacks copy what they keep, so that no
+   * objects are created per ngram beyond the split line itself.
+   * 
    * @param inputFiles
    * @param outputFile
    */
   public void parse(final LmReaderCallback<LongRef> callback) {
-    int[] indexedNgram;
+    int[] indexedNgram = new int[0];
+    final LongRef countRef = new LongRef(0);
     long observedCount;
     String[] words;
     String line;
@@ -62,7 +85,7 @@ public class MRKVTextReader implements LmReader<LongRef, LmReaderCallback<LongRe
       // Create ngram int array containing word indexes for each word in
       // the ngram by splitting on whitespace.
       line = lineIterator.next().trim();
-      words = line.split("\\s+");
+      words = WHITESPACE.split(line);
       
       // Consider line garbage if it does not contain at least two fields
       if (words.length < 2) {
@@ -78,7 +101,9 @@ public class MRKVTextReader implements LmReader<LongRef, LmReaderCallback<LongRe
       }
       
       // Utilize WordIndexer to fill in cells of int index array
-      indexedNgram = new int[words.length - 1];
+      if (indexedNgram.length < words.length - 1) {
+        indexedNgram = new int[words.length - 1];
+      }
       for (int i = 0; i < (words.length - 1); i++) {
         indexedNgram[i] = this.sWordIndexer.getOrAddIndexFromString(words[i]);
       }
@@ -90,7 +115,8 @@ public class MRKVTextReader implements LmReader<LongRef, LmReaderCallback<LongRe
       }
       
       // Add ngram to HashNgramMap
-      callback.call(indexedNgram, 0, indexedNgram.length, new LongRef(observedCount), line);
+      countRef.value = observedCount;
+      callback.call(indexedNgram, 0, words.length - 1, countRef, line);
     }
     
     callback.cleanup();
@@ -104,6 +130,14 @@ public class MRKVTextReader implements LmReader<LongRef, LmReaderCallback<LongRe
    * @param is
    * @return
    */
+  static Iterator<String> getLineIterator(final List<InputStream> inputs) {
+    List<Iterator<String>> lineIterators = new ArrayList<Iterator<String>>();
+    for (InputStream is : inputs) {
+      lineIterators.add(getLineIterator(is));
+    }
+    return Iterators.flatten(lineIterators.iterator()).iterator();
+  }
+  
   private static Iterator<String> getLineIterator(final InputStream is) {
     
     // Create BufferedReader to allow access to more file systems (e.g., 
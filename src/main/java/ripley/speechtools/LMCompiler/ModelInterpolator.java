@@ -0,0 +1,345 @@
+package ripley.speechtools.LMCompiler;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import edu.berkeley.nlp.lm.StringWordIndexer;
+
+/**
+ * The ModelInterpolator merges several backoff language models into a single
+ * backoff model by static linear interpolation, as with the -mix-lm and
+ * -write-lm options of SRILM's ngram tool, so that a decoder queries one
+ * model instead of interpolating several at runtime.
+ *
+ * The merged model holds every ngram of any of the models, with
+ *
+ *   p(w | h) = sum over models i of weight_i * p_i(w | h)
+ *
+ * where p_i(w | h) is found by backing off within model i as an ARPA model
+ * reader does, and is 0 for words outside the vocabulary of model i.  The
+ * backoff weight of each context h is recomputed so that p(. | h) sums to
+ * one in the merged model:
+ *
+ *   bow(h) = (1 - sum(p(w | h))) / (1 - sum(p(w | h'))),
+ *
+ * both sums running over the words w of the explicit ngrams (h, w), with h'
+ * the context h without its first word.  The result equals the runtime
+ * interpolation for every explicit ngram and approximates it elsewhere.
+ * As the backoffs are recomputed, the merged model is normalized even where
+ * the input models are not (e.g., the backoffs of contexts without explicit
+ * ngrams, or the rounding of an ARPA document).
+ *
+ * Each model may have its own vocabulary; the words are mapped to those of
+ * the merged model's WordIndexer.  The ngrams of all models are gathered
+ * order by order in a NgramCountTrie.Builder, which sorts them and merges
+ * the duplicates.  The probabilities of the ngrams of an order depend only
+ * on the input models, and the backoffs of the contexts of an order only on
+ * the merged probabilities and the backoffs of the lower orders, so both are
+ * computed a range of ngrams at a time on the threads of a ParallelEstimator,
+ * lower orders first.
+ *
+ * The models are merged in memory rather than by a streaming merge of their
+ * sorted ngrams: p_i(w | h) of an ngram that model i does not hold needs
+ * random access to the backoffs of model i, and the word indexes of the
+ * merged model differ from those of each model, so its ngrams are sorted
+ * anew.  Each model is read as a BackoffModel (memory-mapped when binary, on
+ * the heap when an ARPA or count document), the Builder takes 16 bytes per
+ * merged ngram while gathering them, and the merged model another 16 bytes
+ * per ngram, on the heap.
+ *
+ * The weights may be tuned on held-out text by expectation maximization
+ * (see estimateWeights(...)), which maximizes the held-out likelihood of the
+ * runtime interpolation.
+ *
+ * @author kyle
+ *
+ */
+public class ModelInterpolator {
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+  private static final int MAX_EM_ITERATIONS = 100;
+  // Relative change in held-out log likelihood at which EM stops
+  private static final double EM_TOLERANCE = 1e-6;
+
+  private final StringWordIndexer swi;
+  private final BackoffModel[] models;
+  // Merged word indexes of the words of each model
+  private final int[][] toMerged;
+  // Word indexes of each model by merged word index, or -1
+  private final int[][] fromMerged;
+  private final int maxOrder;
+  private final int numThreads;
+
+  /**
+   * @param swi - WordIndexer of the merged model, receiving the words of all
+   *              models
+   * @param models - the models to merge
+   * @param indexers - the WordIndexer of each model
+   * @param numThreads
+   */
+  public ModelInterpolator(StringWordIndexer swi, List<BackoffModel> models,
+      List<StringWordIndexer> indexers, int numThreads) {
+    this.swi = swi;
+    this.models = models.toArray(new BackoffModel[models.size()]);
+    this.numThreads = numThreads;
+
+    int order = 0;
+    this.toMerged = new int[this.models.length][];
+    for (int m = 0; m < this.models.length; m++) {
+      order = Math.max(order, this.models[m].getMaxOrder());
+      StringWordIndexer modelIndexer = indexers.get(m);
+      toMerged[m] = new int[modelIndexer.numWords()];
+      for (int word = 0; word < toMerged[m].length; word++) {
+        toMerged[m][word] = swi.getOrAddIndexFromString(
+            modelIndexer.getWord(word));
+      }
+    }
+    this.maxOrder = order;
+
+    this.fromMerged = new int[this.models.length][swi.numWords()];
+    for (int m = 0; m < this.models.length; m++) {
+      Arrays.fill(fromMerged[m], -1);
+      for (int word = 0; word < toMerged[m].length; word++) {
+        fromMerged[m][toMerged[m][word]] = word;
+      }
+    }
+  }
+
+  public int getMaxOrder() {
+    return maxOrder;
+  }
+
+  /**
+   * Tunes the interpolation weights on held-out sentences by expectation
+   * maximization.  Each sentence is lower cased and scored between the
+   * sentence start and end symbols (which are added unless present); words
+   * that no model can score are skipped.
+   * @param sentences
+   * @param initialWeights - starting weights, one per model
+   * @return the weights, summing to one
+   */
+  public double[] estimateWeights(Iterator<String> sentences,
+      double[] initialWeights) {
+    int numModels = models.length;
+    int startIndex = swi.getIndexPossiblyUnk(swi.getStartSymbol());
+    int endIndex = swi.getIndexPossiblyUnk(swi.getEndSymbol());
+
+    // The probability of every held-out word under every model
+    double[] wordProbs = new double[1024 * numModels];
+    int numEvents = 0;
+    int[] sentence = new int[64];
+    int[] scratch = new int[maxOrder];
+    while (true == sentences.hasNext()) {
+      String line = sentences.next().trim().toLowerCase(Locale.ROOT);
+      String[] tokens = line.isEmpty() ? new String[0] : WHITESPACE.split(line);
+      int from = (0 < tokens.length
+          && swi.getStartSymbol().equals(tokens[0])) ? 1 : 0;
+      int to = (from < tokens.length
+          && swi.getEndSymbol().equals(tokens[tokens.length - 1]))
+          ? tokens.length - 1 : tokens.length;
+      int length = to - from + 2;
+      if (sentence.length < length) {
+        sentence = new int[2 * length];
+      }
+      sentence[0] = startIndex;
+      for (int i = from; i < to; i++) {
+        sentence[i - from + 1] = swi.getIndexPossiblyUnk(tokens[i]);
+      }
+      sentence[length - 1] = endIndex;
+
+      for (int i = 1; i < length; i++) {
+        if (wordProbs.length < (numEvents + 1) * numModels) {
+          wordProbs = Arrays.copyOf(wordProbs, 2 * wordProbs.length);
+        }
+        int start = Math.max(0, i - maxOrder + 1);
+        boolean scored = false;
+        for (int m = 0; m < numModels; m++) {
+          double prob = Math.pow(10.0,
+              getLogProb(m, sentence, start, i + 1, scratch));
+          wordProbs[numEvents * numModels + m] = prob;
+          scored |= (0.0 < prob);
+        }
+        if (true == scored) {
+          numEvents++;
+        }
+      }
+    }
+    double[] weights = normalize(initialWeights);
+    if (0 == numEvents) {
+      return weights;
+    }
+    double[] posteriors = new double[numModels];
+    double lastLogLikelihood = Double.NEGATIVE_INFINITY;
+    for (int iteration = 1; iteration <= MAX_EM_ITERATIONS; iteration++) {
+      Arrays.fill(posteriors, 0.0);
+      double logLikelihood = 0.0;
+      for (int e = 0; e < numEvents; e++) {
+        double mixture = 0.0;
+        for (int m = 0; m < numModels; m++) {
+          mixture += weights[m] * wordProbs[e * numModels + m];
+        }
+        logLikelihood += Math.log10(mixture);
+        for (int m = 0; m < numModels; m++) {
+          posteriors[m] += weights[m] * wordProbs[e * numModels + m] / mixture;
+        }
+      }
+      for (int m = 0; m < numModels; m++) {
+        weights[m] = posteriors[m] / numEvents;
+      }
+      if (Math.abs(logLikelihood - lastLogLikelihood)
+          <= EM_TOLERANCE * Math.abs(logLikelihood)) {
+        break;
+      }
+      lastLogLikelihood = logLikelihood;
+    }
+    return weights;
+  }
+
+  /**
+   * Merges the models with the given weights.
+   * @param weights - one per model; normalized to sum to one
+   * @return the merged model, indexed with the merged WordIndexer
+   */
+  public BackoffModel interpolate(double[] weights) {
+    final double[] mixWeights = normalize(weights);
+
+    // The union of the ngrams of all models, lower orders first.  The count
+    // of an ngram is not used.
+    NgramCountTrie.Builder builder =
+        new NgramCountTrie.Builder(maxOrder, false, false);
+    for (int ngramOrder = 0; ngramOrder < maxOrder; ngramOrder++) {
+      int[] ngram = new int[ngramOrder + 1];
+      for (int m = 0; m < models.length; m++) {
+        if (ngramOrder >= models[m].getMaxOrder()) {
+          continue;
+        }
+        NgramCountTrie trie = models[m].getTrie();
+        for (int i = 0; i < trie.size(ngramOrder); i++) {
+          trie.getNgram(ngramOrder, i, ngram);
+          for (int j = 0; j < ngram.length; j++) {
+            ngram[j] = toMerged[m][ngram[j]];
+          }
+          builder.add(ngram, 0, ngram.length, 0L);
+        }
+      }
+    }
+    final NgramCountTrie ngrams = builder.build();
+
+    // The merged model is filled in place, so the backoffs of each order can
+    // be computed from the lower orders of the merged model itself
+    LongBuffer[] keys = new LongBuffer[maxOrder];
+    final LongBuffer[] values = new LongBuffer[maxOrder];
+    for (int ngramOrder = 0; ngramOrder < maxOrder; ngramOrder++) {
+      keys[ngramOrder] = ngrams.getKeys(ngramOrder);
+      values[ngramOrder] = LongBuffer.allocate(ngrams.size(ngramOrder));
+    }
+    final BackoffModel merged =
+        BackoffModel.wrap(NgramCountTrie.wrap(keys, values, false));
+
+    ParallelEstimator executor = new ParallelEstimator(numThreads);
+    try {
+      for (int ngramOrder = 0; ngramOrder < maxOrder; ngramOrder++) {
+        final int order = ngramOrder;
+        executor.forRange(ngrams.size(order), new ParallelEstimator.RangeTask() {
+          @Override
+          public void run(int from, int to) {
+            int[] ngram = new int[order + 1];
+            int[] scratch = new int[order + 1];
+            for (int i = from; i < to; i++) {
+              ngrams.getNgram(order, i, ngram);
+              double prob = 0.0;
+              for (int m = 0; m < models.length; m++) {
+                prob += mixWeights[m] * Math.pow(10.0,
+                    getLogProb(m, ngram, 0, ngram.length, scratch));
+              }
+              values[order].put(i, BackoffModel.pack(
+                  (float) Math.log10(prob), 0.0f));
+            }
+          }
+        });
+      }
+
+      // The backoffs of an order are stored once all are computed, as the
+      // backoffs of its contexts read the probabilities of the order
+      for (int ngramOrder = 0; ngramOrder + 1 < maxOrder; ngramOrder++) {
+        final int order = ngramOrder;
+        final float[] backoffs = new float[ngrams.size(order)];
+        executor.forRange(ngrams.size(order), new ParallelEstimator.RangeTask() {
+          @Override
+          public void run(int from, int to) {
+            int[] ngram = new int[order + 2];
+            for (int context = from; context < to; context++) {
+              int first = ngrams.firstChild(order + 1, context);
+              int last = ngrams.firstChild(order + 1, context + 1);
+              double leftover = 1.0;
+              double lowerLeftover = 1.0;
+              for (int i = first; i < last; i++) {
+                ngrams.getNgram(order + 1, i, ngram);
+                leftover -= Math.pow(10.0, merged.getProb(order + 1, i));
+                lowerLeftover -= Math.pow(10.0,
+                    merged.getLogProb(ngram, 1, ngram.length));
+              }
+              if (first < last && 0.0 < leftover && 0.0 < lowerLeftover) {
+                backoffs[context] = (float) Math.log10(leftover / lowerLeftover);
+              }
+            }
+          }
+        });
+        for (int context = 0; context < backoffs.length; context++) {
+          values[order].put(context, BackoffModel.pack(
+              merged.getProb(order, context), backoffs[context]));
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+    return merged;
+  }
+
+  /**
+   * The log10 probability under model m of the last word of the merged
+   * ngram[startPos] ... ngram[endPos - 1], backing off within the model.
+   * @param m
+   * @param ngram - merged word indexes
+   * @param startPos
+   * @param endPos
+   * @param scratch - at least (endPos - startPos) cells
+   * @return the probability, or negative infinity
+   */
+  private double getLogProb(int m, int[] ngram, int startPos, int endPos,
+      int[] scratch) {
+    int length = endPos - startPos;
+    for (int i = 0; i < length; i++) {
+      int word = ngram[startPos + i];
+      // Words added to the merged indexer after construction are unknown
+      scratch[i] = (word < fromMerged[m].length) ? fromMerged[m][word] : -1;
+    }
+    return models[m].getLogProb(scratch, 0, length);
+  }
+
+  private double[] normalize(double[] weights) {
+    if (weights.length != models.length) {
+      throw new IllegalArgumentException(weights.length
+          + " interpolation weights given for " + models.length + " models");
+    }
+    double sum = 0.0;
+    for (double weight : weights) {
+      if (0.0 > weight) {
+        throw new IllegalArgumentException("Negative interpolation weight "
+            + weight);
+      }
+      sum += weight;
+    }
+    if (0.0 >= sum) {
+      throw new IllegalArgumentException("Interpolation weights sum to zero");
+    }
+    double[] normalized = new double[weights.length];
+    for (int m = 0; m < weights.length; m++) {
+      normalized[m] = weights[m] / sum;
+    }
+    return normalized;
+  }
+}
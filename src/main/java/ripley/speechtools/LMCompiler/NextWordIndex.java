@@ -0,0 +1,646 @@
+package ripley.speechtools.LMCompiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.berkeley.nlp.lm.StringWordIndexer;
+
+/**
+ * The NextWordIndex answers "what are the most likely words after this
+ * context?" for a compiled language model with a single lookup, instead of
+ * scoring every word of the vocabulary against the model.  It is built by the
+ * KneserNeyLMCompiler (see ripley.compiler.nextword.topk) from the estimated
+ * model, and holds for each context the top k words with their log10
+ * probabilities, most likely first.
+ *
+ * The probabilities are those of the backoff model: the words following a
+ * context h are ranked over its explicit ngrams (h, w) together with all
+ * other words at bow(h) * p(w | h'), found by merging the explicit ngrams of
+ * h with the ranking of its backoff context h', and so on down to the
+ * unigrams.  A list is stored for every context with explicit ngrams or a
+ * backoff weight, and for the empty context.  Any other context predicts
+ * exactly as its longest stored suffix, so a query finds the longest stored
+ * suffix of the given context and returns its list.  The sentence start
+ * symbol is never predicted.
+ *
+ * The contexts are kept in a context trie of the same form as the
+ * NgramCountTrie, and the file holds, in big-endian byte order:
+ *   magic (8 bytes), version (4 bytes), number of context orders (4 bytes),
+ *   k (4 bytes), index of the unknown word (4 bytes), vocabulary size
+ *   (4 bytes), the words in index order, each as a 4 byte length and UTF-8
+ *   bytes, zero padding to a multiple of 8 bytes,
+ *   the list of the empty context (8 bytes),
+ *   for each context order:  the number of contexts (8 bytes), the trie keys
+ *   and the lists of the contexts (8 bytes each),
+ *   the number of list entries (8 bytes) and the entries (8 bytes each).
+ * A list is its first entry << 16 | its length, and an entry is a word index
+ * << 32 | the bits of its float log10 probability.  Loading maps everything
+ * but the vocabulary read-only, so a query touches a few pages of the file:
+ * one binary search per context order and the k entries.
+ *
+ * Possible Usage:  NextWordIndex index = NextWordIndex.load(fs, indexFile);
+ *                  List<NextWordIndex.Prediction> next =
+ *                      index.predict(Arrays.asList("cleared", "to"));
+ *
+ * @author kyle
+ *
+ */
+public class NextWordIndex {
+  // "RIPLYNXT"
+  public static final long MAGIC = 0x5249504C594E5854L;
+  private static final int VERSION = 1;
+
+  // Largest number of longs held by a single mapped buffer
+  private static final long MAX_MAPPED_LONGS = Integer.MAX_VALUE / 8;
+
+  // Largest number of words in a list
+  public static final int MAX_TOP_K = 0xffff;
+
+  /**
+   * A predicted word and its log10 probability after the context.
+   */
+  public static class Prediction {
+    private final String word;
+    private final float logProb;
+
+    public Prediction(String word, float logProb) {
+      this.word = word;
+      this.logProb = logProb;
+    }
+
+    public String getWord() {
+      return word;
+    }
+
+    public float getLogProb() {
+      return logProb;
+    }
+
+    @Override
+    public String toString() {
+      return word + "\t" + logProb;
+    }
+  }
+
+  private final StringWordIndexer wordIndexer;
+  private final int topK;
+  private final int unknownWord;
+  private final long rootList;
+  private final NgramCountTrie contexts;
+  private final LongBuffer entries;
+
+  private NextWordIndex(StringWordIndexer wordIndexer, int topK,
+      int unknownWord, long rootList, NgramCountTrie contexts,
+      LongBuffer entries) {
+    this.wordIndexer = wordIndexer;
+    this.topK = topK;
+    this.unknownWord = unknownWord;
+    this.rootList = rootList;
+    this.contexts = contexts;
+    this.entries = entries;
+  }
+
+  public int getTopK() {
+    return topK;
+  }
+
+  /**
+   * Number of context words a query looks at, i.e., the model order less one.
+   * @return
+   */
+  public int getMaxContextLength() {
+    return contexts.getMaxOrder();
+  }
+
+  public StringWordIndexer getWordIndexer() {
+    return wordIndexer;
+  }
+
+  /**
+   * Predicts the most likely words after the given context words.  Words
+   * outside the vocabulary are taken as the unknown word.
+   * @param context - preceding words, most recent last; may be empty
+   * @return up to k predictions, most likely first
+   */
+  public List<Prediction> predict(List<String> context) {
+    int[] words = new int[context.size()];
+    for (int i = 0; i < words.length; i++) {
+      words[i] = getIndex(context.get(i));
+    }
+    int[] predicted = new int[topK];
+    float[] logProbs = new float[topK];
+    int count = predict(words, 0, words.length, predicted, logProbs);
+
+    List<Prediction> predictions = new ArrayList<Prediction>(count);
+    for (int i = 0; i < count; i++) {
+      predictions.add(new Prediction(wordIndexer.getWord(predicted[i]),
+          logProbs[i]));
+    }
+    return predictions;
+  }
+
+  /**
+   * Predicts the most likely words after the context words
+   * context[startPos] ... context[endPos - 1], given as word indexes, without
+   * allocating.  Safe for concurrent calls.
+   * @param context
+   * @param startPos
+   * @param endPos
+   * @param words - receives the predicted word indexes
+   * @param logProbs - receives the log10 probabilities of the words
+   * @return number of predictions, at most min(k, words.length)
+   */
+  public int predict(int[] context, int startPos, int endPos, int[] words,
+      float[] logProbs) {
+    long list = rootList;
+    for (int start = Math.max(startPos, endPos - contexts.getMaxOrder());
+        start < endPos; start++) {
+      int index = contexts.find(context, start, endPos);
+      if (0 <= index) {
+        list = contexts.getCount(endPos - start - 1, index);
+        break;
+      }
+    }
+
+    int first = (int) (list >>> 16);
+    int count = Math.min((int) (list & 0xffff), words.length);
+    for (int i = 0; i < count; i++) {
+      long entry = entries.get(first + i);
+      words[i] = (int) (entry >>> 32);
+      logProbs[i] = Float.intBitsToFloat((int) entry);
+    }
+    return count;
+  }
+
+  /**
+   * The index of a word, or of the unknown word if it is not in the
+   * vocabulary.
+   * @param word
+   * @return
+   */
+  public int getIndex(String word) {
+    int index = wordIndexer.getIndexPossiblyUnk(word);
+    return (0 > index) ? unknownWord : index;
+  }
+
+  /**
+   * Builds the index of the top k next words of model and writes it to file.
+   * The lists of the contexts are ranked concurrently on numThreads threads.
+   * @param fs
+   * @param file
+   * @param swi - WordIndexer of model
+   * @param model
+   * @param topK
+   * @param numThreads
+   * @throws IOException
+   */
+  public static void write(FileSystem fs, Path file, StringWordIndexer swi,
+      BackoffModel model, int topK, int numThreads) throws IOException {
+    if (topK < 1 || topK > MAX_TOP_K) {
+      throw new IllegalArgumentException("Invalid number of next words: "
+          + topK);
+    }
+    int numOrders = Math.max(1, model.getMaxOrder() - 1);
+    Ranker ranker = new Ranker(model,
+        swi.getIndexPossiblyUnk(swi.getStartSymbol()));
+
+    // The contexts with a list, as indexes into the model's orders
+    final int[][] indexed = new int[numOrders][];
+    long[] rootEntries = new long[topK];
+    int rootCount = ranker.rank(-1, -1, rootEntries, 0, topK);
+    long numEntries = rootCount;
+    for (int ngramOrder = 0; ngramOrder < numOrders; ngramOrder++) {
+      indexed[ngramOrder] = ranker.getContexts(ngramOrder);
+      numEntries += (long) indexed[ngramOrder].length * topK;
+    }
+    if (numEntries > MAX_MAPPED_LONGS) {
+      throw new IOException("Too many next word entries for an index: "
+          + numEntries);
+    }
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        fs.create(file, true), 1 << 16));
+    ParallelEstimator executor = new ParallelEstimator(numThreads);
+    try {
+      out.writeLong(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(numOrders);
+      out.writeInt(topK);
+      out.writeInt(swi.getIndexPossiblyUnk(swi.getUnkSymbol()));
+      out.writeInt(swi.numWords());
+      for (int i = 0; i < swi.numWords(); i++) {
+        byte[] word = swi.getWord(i).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(word.length);
+        out.write(word);
+      }
+      while (0 != out.size() % 8) {
+        out.writeByte(0);
+      }
+      out.writeLong(toList(0, rootCount));
+
+      // Rank the lists of each order, keyed in the context trie of the index.
+      // The lists are ranked into k entries per context and written compactly.
+      List<long[]> orderEntries = new ArrayList<long[]>();
+      List<int[]> orderCounts = new ArrayList<int[]>();
+      long nextEntry = rootCount;
+      NgramCountTrie trie = model.getTrie();
+      for (int ngramOrder = 0; ngramOrder < numOrders; ngramOrder++) {
+        final int order = ngramOrder;
+        final int[] orderContexts = indexed[order];
+        final long[] ranked = new long[orderContexts.length * topK];
+        final int[] counts = new int[orderContexts.length];
+        final Ranker orderRanker = ranker;
+        final int k = topK;
+        executor.forRange(orderContexts.length, new ParallelEstimator.RangeTask() {
+          @Override
+          public void run(int from, int to) {
+            for (int i = from; i < to; i++) {
+              counts[i] = orderRanker.rank(order, orderContexts[i], ranked,
+                  i * k, k);
+            }
+          }
+        });
+
+        out.writeLong(orderContexts.length);
+        for (int i = 0; i < orderContexts.length; i++) {
+          int context = (0 == order) ? 0 : indexOf(indexed[order - 1],
+              trie.getContext(order, orderContexts[i]));
+          out.writeLong(NgramCountTrie.toKey(context,
+              trie.getWord(order, orderContexts[i])));
+        }
+        for (int i = 0; i < orderContexts.length; i++) {
+          out.writeLong(toList(nextEntry, counts[i]));
+          nextEntry += counts[i];
+        }
+        orderEntries.add(ranked);
+        orderCounts.add(counts);
+      }
+
+      out.writeLong(nextEntry);
+      for (int i = 0; i < rootCount; i++) {
+        out.writeLong(rootEntries[i]);
+      }
+      for (int ngramOrder = 0; ngramOrder < numOrders; ngramOrder++) {
+        long[] ranked = orderEntries.get(ngramOrder);
+        int[] counts = orderCounts.get(ngramOrder);
+        for (int i = 0; i < counts.length; i++) {
+          for (int j = 0; j < counts[i]; j++) {
+            out.writeLong(ranked[i * topK + j]);
+          }
+        }
+      }
+    } finally {
+      executor.shutdown();
+      out.close();
+    }
+  }
+
+  /**
+   * Tells whether path is a next word index file, by its leading magic number.
+   * @param fs
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  public static boolean isIndex(FileSystem fs, Path path) throws IOException {
+    if (false == fs.isFile(path) || fs.getFileStatus(path).getLen() < 8) {
+      return false;
+    }
+    DataInputStream in = fs.open(path);
+    try {
+      return MAGIC == in.readLong();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Loads an index by memory-mapping its contexts and lists.  Files on other
+   * file systems than the local one are first copied to a local temporary
+   * file.
+   * @param fs
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static NextWordIndex load(FileSystem fs, Path file) throws IOException {
+    File localFile;
+    if ("file".equals(fs.getUri().getScheme())) {
+      localFile = new File(fs.makeQualified(file).toUri().getPath());
+    } else {
+      localFile = File.createTempFile("ripley-nextword-", ".index");
+      localFile.deleteOnExit();
+      fs.copyToLocalFile(false, file, new Path(localFile.getAbsolutePath()), true);
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(localFile, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          Channels.newInputStream(channel), 1 << 16));
+
+      if (MAGIC != in.readLong()) {
+        throw new IOException("Not a next word index: " + file);
+      }
+      int version = in.readInt();
+      if (VERSION != version) {
+        throw new IOException("Unsupported next word index version "
+            + version + ": " + file);
+      }
+      int numOrders = in.readInt();
+      int topK = in.readInt();
+      int unknownWord = in.readInt();
+      int numWords = in.readInt();
+      long position = 28;
+
+      StringWordIndexer swi = new StringWordIndexer();
+      for (int i = 0; i < numWords; i++) {
+        byte[] word = new byte[in.readInt()];
+        in.readFully(word);
+        position += 4 + word.length;
+        swi.getOrAddIndexFromString(new String(word, StandardCharsets.UTF_8));
+      }
+      if (0 <= unknownWord && unknownWord < numWords) {
+        swi.setUnkSymbol(swi.getWord(unknownWord));
+      }
+      position += (8 - position % 8) % 8;
+      long rootList = readLong(channel, position);
+      position += 8;
+
+      LongBuffer[] keys = new LongBuffer[numOrders];
+      LongBuffer[] lists = new LongBuffer[numOrders];
+      for (int ngramOrder = 0; ngramOrder < numOrders; ngramOrder++) {
+        long size = readLong(channel, position);
+        checkSize(size, file);
+        position += 8;
+        keys[ngramOrder] = channel.map(FileChannel.MapMode.READ_ONLY,
+            position, 8 * size).asLongBuffer();
+        position += 8 * size;
+        lists[ngramOrder] = channel.map(FileChannel.MapMode.READ_ONLY,
+            position, 8 * size).asLongBuffer();
+        position += 8 * size;
+      }
+      long numEntries = readLong(channel, position);
+      checkSize(numEntries, file);
+      position += 8;
+      LongBuffer entries = channel.map(FileChannel.MapMode.READ_ONLY,
+          position, 8 * numEntries).asLongBuffer();
+
+      return new NextWordIndex(swi, topK, unknownWord, rootList,
+          NgramCountTrie.wrap(keys, lists, true), entries);
+    } finally {
+      // The mappings remain valid once the file is closed
+      raf.close();
+    }
+  }
+
+  private static void checkSize(long size, Path file) throws IOException {
+    if (size < 0 || size > MAX_MAPPED_LONGS) {
+      throw new IOException("Invalid size in next word index " + file + ": "
+          + size);
+    }
+  }
+
+  private static long readLong(FileChannel channel, long position)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(8);
+    while (buffer.hasRemaining()) {
+      if (0 > channel.read(buffer, position + buffer.position())) {
+        throw new IOException("Unexpected end of next word index");
+      }
+    }
+    buffer.flip();
+    return buffer.getLong();
+  }
+
+  private static long toList(long firstEntry, int count) {
+    return (firstEntry << 16) | count;
+  }
+
+  private static long toEntry(int word, float logProb) {
+    return ((long) word << 32) | (Float.floatToIntBits(logProb) & 0xffffffffL);
+  }
+
+  /**
+   * Position of value in the sorted array values.
+   */
+  private static int indexOf(int[] values, int value) {
+    int low = 0;
+    int high = values.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (values[mid] < value) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Ranks the words following the contexts of a BackoffModel.  The explicit
+   * ngrams of every context are sorted by probability once, and a ranking is
+   * produced lazily by merging them with the ranking of the backoff context,
+   * such that only the words ahead of the k-th are visited.
+   */
+  private static final class Ranker {
+    private final BackoffModel model;
+    private final NgramCountTrie trie;
+    private final int startSymbol;
+    // The ngrams of each order sorted by context, then by probability
+    // descending (the unigrams by probability alone)
+    private final int[][] sorted;
+
+    Ranker(BackoffModel model, int startSymbol) {
+      this.model = model;
+      this.trie = model.getTrie();
+      this.startSymbol = startSymbol;
+      this.sorted = new int[model.getMaxOrder()][];
+
+      for (int ngramOrder = 0; ngramOrder < model.getMaxOrder(); ngramOrder++) {
+        int size = trie.size(ngramOrder);
+        long[] keys = new long[size];
+        long[] indexes = new long[size];
+        for (int i = 0; i < size; i++) {
+          // Non-negative floats sort as their bits do
+          int rank = Float.floatToIntBits(
+              Math.max(0.0f, -model.getProb(ngramOrder, i)));
+          keys[i] = ((long) trie.getContext(ngramOrder, i) << 32) | rank;
+          indexes[i] = i;
+        }
+        if (0 < size) {
+          NgramCountTrie.Builder.sort(keys, indexes, 0, size - 1);
+        }
+        sorted[ngramOrder] = new int[size];
+        for (int i = 0; i < size; i++) {
+          sorted[ngramOrder][i] = (int) indexes[i];
+        }
+      }
+    }
+
+    /**
+     * The ngrams of an order that need a list:  those with explicit ngrams
+     * following them or a backoff weight.
+     * @param ngramOrder
+     * @return indexes of the contexts in ascending order
+     */
+    int[] getContexts(int ngramOrder) {
+      int size = trie.size(ngramOrder);
+      boolean[] needed = new boolean[size];
+      int count = 0;
+      for (int i = 0; i < size; i++) {
+        needed[i] = 0.0f != model.getBackoff(ngramOrder, i);
+      }
+      if (ngramOrder + 1 < model.getMaxOrder()) {
+        for (int i = 0; i < trie.size(ngramOrder + 1); i++) {
+          needed[trie.getContext(ngramOrder + 1, i)] = true;
+        }
+      }
+      for (int i = 0; i < size; i++) {
+        if (true == needed[i]) {
+          count++;
+        }
+      }
+      int[] contexts = new int[count];
+      count = 0;
+      for (int i = 0; i < size; i++) {
+        if (true == needed[i]) {
+          contexts[count++] = i;
+        }
+      }
+      return contexts;
+    }
+
+    /**
+     * Writes the top k words after a context to entries[offset...].
+     * @param ngramOrder - order of the context, or -1 for the empty context
+     * @param context - index of the context in its order
+     * @param entries
+     * @param offset
+     * @param k
+     * @return number of words written
+     */
+    int rank(int ngramOrder, int context, long[] entries, int offset, int k) {
+      int[] words = new int[ngramOrder + 1];
+      if (0 <= ngramOrder) {
+        trie.getNgram(ngramOrder, context, words);
+      }
+      Cursor cursor = createCursor(words, 0);
+      int count = 0;
+      while (count < k && true == cursor.advance()) {
+        entries[offset + count] = toEntry(cursor.word, (float) cursor.logProb);
+        count++;
+      }
+      return count;
+    }
+
+    /**
+     * Creates the cursor ranking the words after words[start...], or after
+     * the empty context if start is words.length.
+     */
+    private Cursor createCursor(int[] words, int start) {
+      if (start == words.length) {
+        return new Cursor(0, 0, 0, 0.0, null);
+      }
+      Cursor lower = createCursor(words, start + 1);
+      int ngramOrder = words.length - start;
+      if (ngramOrder >= model.getMaxOrder()) {
+        return lower;
+      }
+      int context = trie.find(words, start, words.length);
+      if (0 > context) {
+        // A context outside the model backs off with weight one
+        return lower;
+      }
+      return new Cursor(ngramOrder, context, trie.firstChild(ngramOrder, context),
+          model.getBackoff(ngramOrder - 1, context), lower);
+    }
+
+    /**
+     * Walks the words after a context in descending probability.
+     */
+    private final class Cursor {
+      private final int ngramOrder;
+      private final int context;
+      private final double backoff;
+      private final Cursor lower;
+      private int next;
+      private final int end;
+      private boolean lowerPending;
+      int word;
+      double logProb;
+
+      Cursor(int ngramOrder, int context, int first, double backoff,
+          Cursor lower) {
+        this.ngramOrder = ngramOrder;
+        this.context = context;
+        this.backoff = backoff;
+        this.lower = lower;
+        this.next = first;
+        if (null == lower) {
+          this.end = trie.size(0);
+        } else {
+          this.end = trie.firstChild(ngramOrder, context + 1);
+        }
+        this.lowerPending = (null != lower) && lower.advance();
+        skipLower();
+      }
+
+      /**
+       * Moves to the next word.
+       * @return false once every word has been visited
+       */
+      boolean advance() {
+        while (true) {
+          boolean explicit = next < end;
+          if (false == explicit && false == lowerPending) {
+            return false;
+          }
+          double explicitProb = (true == explicit) ? model.getProb(ngramOrder,
+              sorted[ngramOrder][next]) : Double.NEGATIVE_INFINITY;
+          if (true == explicit && (false == lowerPending
+              || explicitProb >= backoff + lower.logProb)) {
+            word = trie.getWord(ngramOrder, sorted[ngramOrder][next]);
+            logProb = explicitProb;
+            next++;
+          } else {
+            word = lower.word;
+            logProb = backoff + lower.logProb;
+            lowerPending = lower.advance();
+            skipLower();
+          }
+          if (startSymbol != word) {
+            return true;
+          }
+        }
+      }
+
+      /**
+       * Skips the words of the lower ranking that follow this context
+       * explicitly, as those are ranked by their explicit probability.
+       */
+      private void skipLower() {
+        while (true == lowerPending
+            && 0 <= trie.find(ngramOrder, context, lower.word)) {
+          lowerPending = lower.advance();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,286 @@
+package ripley.speechtools.LMCompiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.io.LmReader;
+import edu.berkeley.nlp.lm.io.LmReaderCallback;
+import edu.berkeley.nlp.lm.util.LongRef;
+
+/**
+ * The NgramCountSnapshot saves the parsed ngram counts of a compile, that is
+ * the vocabulary and the NgramCountTrie, to a binary file, and loads them back
+ * by memory-mapping the file.  A compile started from a snapshot skips reading
+ * and parsing the text count documents and rebuilding the vocabulary and trie;
+ * only the Kneser-Ney statistics and estimates are computed, so sweeps over
+ * the estimation parameters (e.g., discounts or minimum counts) cost only the
+ * estimation phase.
+ *
+ * The file holds, in big-endian byte order:
+ *   magic (8 bytes), version (4 bytes), language model order (4 bytes),
+ *   vocabulary size (4 bytes),
+ *   the words in index order, each as a 4 byte length and UTF-8 bytes,
+ *   zero padding to a multiple of 8 bytes,
+ *   for each ngram order:  the number of ngrams (8 bytes), the trie keys and
+ *   the counts (8 bytes each).
+ * The keys and counts of each order are mapped read-only in place, so the
+ * trie of a loaded snapshot lives in the page cache rather than on the Java
+ * heap, and compiles running one after another share the cached pages.
+ * Files on other file systems than the local one are first copied to a local
+ * temporary file.  As with the off-heap trie, an order may hold at most
+ * 268,435,455 ngrams.
+ *
+ * The trie store estimates from the mapped trie directly.  As a LmReader the
+ * snapshot also lists its counts, order by order, to another count store
+ * (e.g., the RipleyKneserNeyLmReaderCallback of the hash store), as the count
+ * documents would.
+ *
+ * @author kyle
+ *
+ */
+public class NgramCountSnapshot
+    implements LmReader<LongRef, LmReaderCallback<LongRef>> {
+  // "RIPLYCNT"
+  public static final long MAGIC = 0x5249504C59434E54L;
+  private static final int VERSION = 1;
+
+  // Largest number of longs held by a single mapped buffer
+  private static final long MAX_MAPPED_LONGS = Integer.MAX_VALUE / 8;
+
+  private final StringWordIndexer wordIndexer;
+  private final NgramCountTrie trie;
+
+  private NgramCountSnapshot(StringWordIndexer wordIndexer, NgramCountTrie trie) {
+    this.wordIndexer = wordIndexer;
+    this.trie = trie;
+  }
+
+  public StringWordIndexer getWordIndexer() {
+    return wordIndexer;
+  }
+
+  public NgramCountTrie getTrie() {
+    return trie;
+  }
+
+  /**
+   * Passes the count of every ngram of the snapshot to callback, lower orders
+   * first and in trie order within an order.  The arrays are reused from
+   * ngram to ngram.
+   * @param callback
+   */
+  @Override
+  public void parse(LmReaderCallback<LongRef> callback) {
+    LongRef countRef = new LongRef(0);
+    for (int ngramOrder = 0; ngramOrder < trie.getMaxOrder(); ngramOrder++) {
+      int[] ngram = new int[ngramOrder + 1];
+      for (int i = 0; i < trie.size(ngramOrder); i++) {
+        trie.getNgram(ngramOrder, i, ngram);
+        countRef.value = trie.getCount(ngramOrder, i);
+        callback.call(ngram, 0, ngram.length, countRef, null);
+      }
+    }
+    callback.cleanup();
+  }
+
+  /**
+   * Writes the vocabulary of swi and the counts of trie to file.
+   * @param fs
+   * @param file
+   * @param swi - WordIndexer the ngrams of trie were indexed with
+   * @param trie
+   * @throws IOException
+   */
+  public static void write(FileSystem fs, Path file, StringWordIndexer swi,
+      NgramCountTrie trie) throws IOException {
+    write(fs, file, swi, trie, MAGIC);
+  }
+
+  /**
+   * Writes a trie in the layout of a snapshot, but with another magic number,
+   * for other files holding a vocabulary and a trie (see BackoffModel).
+   * @param fs
+   * @param file
+   * @param swi
+   * @param trie
+   * @param magic
+   * @throws IOException
+   */
+  static void write(FileSystem fs, Path file, StringWordIndexer swi,
+      NgramCountTrie trie, long magic) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        fs.create(file, true), 1 << 16));
+    try {
+      out.writeLong(magic);
+      out.writeInt(VERSION);
+      out.writeInt(trie.getMaxOrder());
+      out.writeInt(swi.numWords());
+      for (int i = 0; i < swi.numWords(); i++) {
+        byte[] word = swi.getWord(i).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(word.length);
+        out.write(word);
+      }
+      while (0 != out.size() % 8) {
+        out.writeByte(0);
+      }
+
+      for (int ngramOrder = 0; ngramOrder < trie.getMaxOrder(); ngramOrder++) {
+        int size = trie.size(ngramOrder);
+        LongBuffer keys = trie.getKeys(ngramOrder);
+        LongBuffer counts = trie.getCounts(ngramOrder);
+        out.writeLong(size);
+        for (int i = 0; i < size; i++) {
+          out.writeLong(keys.get(i));
+        }
+        for (int i = 0; i < size; i++) {
+          out.writeLong(counts.get(i));
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Tells whether path is a snapshot file, by its leading magic number.
+   * @param fs
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  public static boolean isSnapshot(FileSystem fs, Path path) throws IOException {
+    return hasMagic(fs, path, MAGIC);
+  }
+
+  static boolean hasMagic(FileSystem fs, Path path, long magic)
+      throws IOException {
+    if (false == fs.isFile(path) || fs.getFileStatus(path).getLen() < 8) {
+      return false;
+    }
+    FSDataInputStream in = fs.open(path);
+    try {
+      return magic == in.readLong();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Loads a snapshot by memory-mapping its counts.  The words of the snapshot
+   * are added to swi, which must hold no other words than those registered
+   * before the snapshot was written (i.e., the start, end and unknown
+   * symbols), such that every word keeps its index.
+   * @param fs
+   * @param file
+   * @param swi
+   * @return
+   * @throws IOException
+   */
+  public static NgramCountSnapshot load(FileSystem fs, Path file,
+      StringWordIndexer swi) throws IOException {
+    return load(fs, file, swi, MAGIC);
+  }
+
+  /**
+   * Loads a file written by write(..., magic).
+   * @param fs
+   * @param file
+   * @param swi
+   * @param magic
+   * @return
+   * @throws IOException
+   */
+  static NgramCountSnapshot load(FileSystem fs, Path file,
+      StringWordIndexer swi, long magic) throws IOException {
+    File localFile;
+    if ("file".equals(fs.getUri().getScheme())) {
+      localFile = new File(fs.makeQualified(file).toUri().getPath());
+    } else {
+      localFile = File.createTempFile("ripley-counts-", ".snapshot");
+      localFile.deleteOnExit();
+      fs.copyToLocalFile(false, file, new Path(localFile.getAbsolutePath()), true);
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(localFile, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          Channels.newInputStream(channel), 1 << 16));
+
+      if (magic != in.readLong()) {
+        throw new IOException("Unexpected file type: " + file);
+      }
+      int version = in.readInt();
+      if (VERSION != version) {
+        throw new IOException("Unsupported snapshot version " + version
+            + ": " + file);
+      }
+      int maxOrder = in.readInt();
+      int numWords = in.readInt();
+      long position = 20;
+
+      for (int i = 0; i < numWords; i++) {
+        byte[] word = new byte[in.readInt()];
+        in.readFully(word);
+        position += 4 + word.length;
+        int index = swi.getOrAddIndexFromString(
+            new String(word, StandardCharsets.UTF_8));
+        if (index != i) {
+          throw new IOException("Word " + i + " of snapshot " + file
+              + " was indexed as " + index);
+        }
+      }
+      position += (8 - position % 8) % 8;
+
+      // Map the keys and counts of each order in place
+      LongBuffer[] keys = new LongBuffer[maxOrder];
+      LongBuffer[] counts = new LongBuffer[maxOrder];
+      for (int ngramOrder = 0; ngramOrder < maxOrder; ngramOrder++) {
+        long size = readLong(channel, position);
+        if (size < 0 || size > MAX_MAPPED_LONGS) {
+          throw new IOException("Invalid number of ngrams of order "
+              + (ngramOrder + 1) + " in snapshot " + file + ": " + size);
+        }
+        position += 8;
+        keys[ngramOrder] = channel.map(FileChannel.MapMode.READ_ONLY,
+            position, 8 * size).asLongBuffer();
+        position += 8 * size;
+        counts[ngramOrder] = channel.map(FileChannel.MapMode.READ_ONLY,
+            position, 8 * size).asLongBuffer();
+        position += 8 * size;
+      }
+
+      return new NgramCountSnapshot(swi, NgramCountTrie.wrap(keys, counts, true));
+    } finally {
+      // The mappings remain valid once the file is closed
+      raf.close();
+    }
+  }
+
+  private static long readLong(FileChannel channel, long position)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(8);
+    while (buffer.hasRemaining()) {
+      if (0 > channel.read(buffer, position + buffer.position())) {
+        throw new IOException("Unexpected end of snapshot");
+      }
+    }
+    buffer.flip();
+    return buffer.getLong();
+  }
+}
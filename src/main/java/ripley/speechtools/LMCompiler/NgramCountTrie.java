@@ -0,0 +1,495 @@
+package ripley.speechtools.LMCompiler;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * The NgramCountTrie is a compact, read-only store of ngram counts, intended
+ * to replace the per ngram objects of the berkeleylm HashNgramMap when
+ * compiling large language models.
+ *
+ * The ngrams of each order are kept in a sorted context trie made of two
+ * parallel primitive arrays.  An ngram is identified by its order and its
+ * index within that order, and its key combines the index of its context
+ * (the ngram without its last word, one order below) with the index of its
+ * last word:
+ *
+ *   key(w1 ... wn) = index(w1 ... wn-1) << 32 | wn
+ *
+ * Unigrams have the context index 0.  The keys of each order are sorted, so
+ * all ngrams sharing a context are found in a contiguous range, and an ngram
+ * is found with one binary search per order.  Each ngram takes 16 bytes (a
+ * long key and a long count) with no object header, pointer or hash table
+ * slack, and the whole store is a handful of large arrays which the garbage
+ * collector need not trace.
+ *
+ * The arrays are held in LongBuffers, which either wrap heap arrays or, for
+ * the off-heap variant, are allocated outside the Java heap with
+ * ByteBuffer.allocateDirect(...).  The off-heap variant keeps the counts out
+ * of the garbage collected heap altogether, including the order being built
+ * (see Builder); its size is limited by
+ * -XX:MaxDirectMemorySize, and to 268,435,455 ngrams per order.
+ *
+ * A trie is created with a NgramCountTrie.Builder, which accepts ngrams in
+ * bulk in the ngram order of the count documents (see MRKVTextReader).
+ *
+ * @author kyle
+ *
+ */
+public class NgramCountTrie {
+  // Largest number of longs held by a single direct buffer
+  private static final int MAX_DIRECT_LONGS = Integer.MAX_VALUE / 8;
+
+  private final int maxOrder;
+  private final boolean offHeap;
+  private final LongBuffer[] keys;
+  private final LongBuffer[] counts;
+  private final int[] sizes;
+
+  private NgramCountTrie(int maxOrder, boolean offHeap) {
+    this.maxOrder = maxOrder;
+    this.offHeap = offHeap;
+    this.keys = new LongBuffer[maxOrder];
+    this.counts = new LongBuffer[maxOrder];
+    this.sizes = new int[maxOrder];
+  }
+
+  public int getMaxOrder() {
+    return maxOrder;
+  }
+
+  public boolean isOffHeap() {
+    return offHeap;
+  }
+
+  /**
+   * Number of ngrams of the given order.
+   * @param ngramOrder - zero based order (i.e., 0 for unigrams)
+   * @return
+   */
+  public int size(int ngramOrder) {
+    return sizes[ngramOrder];
+  }
+
+  /**
+   * Number of bytes held by the keys and counts of all orders.
+   * @return
+   */
+  public long getMemorySize() {
+    long bytes = 0;
+    for (int size : sizes) {
+      bytes += 16L * size;
+    }
+    return bytes;
+  }
+
+  public int getWord(int ngramOrder, int index) {
+    return (int) keys[ngramOrder].get(index);
+  }
+
+  /**
+   * Index of the context of the ngram, one order below (0 for unigrams).
+   * @param ngramOrder
+   * @param index
+   * @return
+   */
+  public int getContext(int ngramOrder, int index) {
+    return (int) (keys[ngramOrder].get(index) >>> 32);
+  }
+
+  public long getCount(int ngramOrder, int index) {
+    return counts[ngramOrder].get(index);
+  }
+
+  /**
+   * Finds the ngram with the given context and last word.
+   * @param ngramOrder
+   * @param contextIndex - index of the context one order below (0 for unigrams)
+   * @param word
+   * @return index of the ngram, or -1 if the ngram is not in the trie
+   */
+  public int find(int ngramOrder, int contextIndex, int word) {
+    int index = lowerBound(ngramOrder, toKey(contextIndex, word));
+    if (index < sizes[ngramOrder]
+        && keys[ngramOrder].get(index) == toKey(contextIndex, word)) {
+      return index;
+    }
+    return -1;
+  }
+
+  /**
+   * Finds the ngram ngram[startPos] ... ngram[endPos - 1] in the trie.
+   * @param ngram
+   * @param startPos
+   * @param endPos
+   * @return index of the ngram in order (endPos - startPos - 1), or -1
+   */
+  public int find(int[] ngram, int startPos, int endPos) {
+    int index = 0;
+    if (endPos <= startPos || endPos - startPos > maxOrder) {
+      return -1;
+    }
+    for (int i = startPos; i < endPos && 0 <= index; i++) {
+      index = find(i - startPos, index, ngram[i]);
+    }
+    return index;
+  }
+
+  /**
+   * Index of the first ngram with the given context, such that the ngrams
+   * with context c are found at [firstChild(o, c), firstChild(o, c + 1)).
+   * @param ngramOrder - order of the child ngrams
+   * @param contextIndex
+   * @return
+   */
+  public int firstChild(int ngramOrder, int contextIndex) {
+    return lowerBound(ngramOrder, toKey(contextIndex, 0));
+  }
+
+  /**
+   * Writes the words of an ngram to the first (ngramOrder + 1) cells of
+   * scratch by following its contexts down the trie.
+   * @param ngramOrder
+   * @param index
+   * @param scratch
+   * @return scratch
+   */
+  public int[] getNgram(int ngramOrder, int index, int[] scratch) {
+    int current = index;
+    for (int order = ngramOrder; order >= 0; order--) {
+      long key = keys[order].get(current);
+      scratch[order] = (int) key;
+      current = (int) (key >>> 32);
+    }
+    return scratch;
+  }
+
+  private int lowerBound(int ngramOrder, long key) {
+    LongBuffer orderKeys = keys[ngramOrder];
+    int low = 0;
+    int high = sizes[ngramOrder];
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (orderKeys.get(mid) < key) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  static long toKey(int contextIndex, int word) {
+    return ((long) contextIndex << 32) | (word & 0xffffffffL);
+  }
+
+  /**
+   * The keys of the ngrams of an order, in trie order.  The buffer is shared
+   * with the trie and must not be modified.
+   * @param ngramOrder
+   * @return
+   */
+  LongBuffer getKeys(int ngramOrder) {
+    return keys[ngramOrder].duplicate();
+  }
+
+  /**
+   * The counts of the ngrams of an order, parallel to getKeys(...).  The
+   * buffer is shared with the trie and must not be modified.
+   * @param ngramOrder
+   * @return
+   */
+  LongBuffer getCounts(int ngramOrder) {
+    return counts[ngramOrder].duplicate();
+  }
+
+  /**
+   * Creates a trie over existing key and count buffers of every order, e.g.,
+   * those memory-mapped from a NgramCountSnapshot.  The keys of each order
+   * must be sorted and consistent, as produced by the Builder.
+   * @param keys
+   * @param counts
+   * @param offHeap - whether the buffers are outside the Java heap
+   * @return
+   */
+  static NgramCountTrie wrap(LongBuffer[] keys, LongBuffer[] counts,
+      boolean offHeap) {
+    NgramCountTrie trie = new NgramCountTrie(keys.length, offHeap);
+    for (int ngramOrder = 0; ngramOrder < keys.length; ngramOrder++) {
+      if (keys[ngramOrder].remaining() != counts[ngramOrder].remaining()) {
+        throw new IllegalArgumentException("Keys and counts differ in size "
+            + "for order " + (ngramOrder + 1));
+      }
+      trie.keys[ngramOrder] = keys[ngramOrder];
+      trie.counts[ngramOrder] = counts[ngramOrder];
+      trie.sizes[ngramOrder] = keys[ngramOrder].remaining();
+    }
+    return trie;
+  }
+
+  /**
+   * Allocates a zeroed buffer of n longs on or off the heap.
+   * @param n
+   * @param offHeap
+   * @return
+   */
+  static LongBuffer allocateLongs(int n, boolean offHeap) {
+    if (false == offHeap) {
+      return LongBuffer.wrap(new long[n]);
+    }
+    if (n > MAX_DIRECT_LONGS) {
+      throw new IllegalStateException("Too many ngrams for an off-heap buffer: " + n);
+    }
+    return ByteBuffer.allocateDirect(8 * n).order(ByteOrder.nativeOrder())
+        .asLongBuffer();
+  }
+
+  /**
+   * Allocates a zeroed buffer of n ints on or off the heap.
+   * @param n
+   * @param offHeap
+   * @return
+   */
+  static IntBuffer allocateInts(int n, boolean offHeap) {
+    if (false == offHeap) {
+      return IntBuffer.wrap(new int[n]);
+    }
+    if (n > MAX_DIRECT_LONGS * 2) {
+      throw new IllegalStateException("Too many ngrams for an off-heap buffer: " + n);
+    }
+    return ByteBuffer.allocateDirect(4 * n).order(ByteOrder.nativeOrder())
+        .asIntBuffer();
+  }
+
+  /**
+   * The Builder accepts ngram counts in bulk and produces a NgramCountTrie.
+   *
+   * Ngrams must be added in ngram order, i.e., all unigrams before any
+   * bigrams and so on, as in the count documents read by MRKVTextReader.
+   * Within an order the ngrams may come in any order and may repeat, in
+   * which case their counts are summed.  When the first ngram of a higher
+   * order is added, the lower orders are sorted and frozen.  As with the
+   * berkeleylm HashNgramMap, an ngram whose context was not added is dropped;
+   * so is an ngram whose suffix (the ngram without its first word) was not
+   * added, as the Kneser-Ney continuation counts are kept on the suffix.
+   * (Builders that hold estimated models rather than counts may accept ngrams
+   * without a suffix; see BackoffModel.)
+   *
+   * While an order is being added each ngram takes 16 bytes, plus the spare
+   * capacity of the growing buffers, which are staged on or off the heap as
+   * the trie, so an off-heap build keeps the open order off the heap too.
+   */
+  public static class Builder {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final NgramCountTrie trie;
+    private final boolean requireSuffix;
+    private int openOrder;
+    private LongBuffer openKeys;
+    private LongBuffer openCounts;
+    private int openSize;
+    private long dropped;
+
+    public Builder(int maxOrder, boolean offHeap) {
+      this(maxOrder, offHeap, true);
+    }
+
+    /**
+     * @param maxOrder
+     * @param offHeap
+     * @param requireSuffix - whether ngrams without a suffix are dropped
+     */
+    Builder(int maxOrder, boolean offHeap, boolean requireSuffix) {
+      this.trie = new NgramCountTrie(maxOrder, offHeap);
+      this.requireSuffix = requireSuffix;
+      this.openOrder = 0;
+      this.openKeys = allocateLongs(INITIAL_CAPACITY, offHeap);
+      this.openCounts = allocateLongs(INITIAL_CAPACITY, offHeap);
+    }
+
+    /**
+     * Adds the count of the ngram ngram[startPos] ... ngram[endPos - 1].
+     * @param ngram
+     * @param startPos - inclusive start index of the ngram in the array
+     * @param endPos - exclusive end index of the ngram in the array
+     * @param count
+     * @return false if the ngram was dropped (see class comments)
+     */
+    public boolean add(int[] ngram, int startPos, int endPos, long count) {
+      int ngramOrder = endPos - startPos - 1;
+      int context = 0;
+
+      if (ngramOrder < 0 || ngramOrder >= trie.maxOrder) {
+        dropped++;
+        return false;
+      }
+      if (ngramOrder < openOrder) {
+        throw new IllegalStateException("Ngrams of order " + (ngramOrder + 1)
+            + " added after ngrams of order " + (openOrder + 1)
+            + "; counts must be in ngram order");
+      }
+      while (openOrder < ngramOrder) {
+        seal();
+      }
+
+      if (0 < ngramOrder) {
+        context = trie.find(ngram, startPos, endPos - 1);
+        if (0 > context || (true == requireSuffix
+            && 0 > trie.find(ngram, startPos + 1, endPos))) {
+          dropped++;
+          return false;
+        }
+      }
+
+      if (openSize == openKeys.capacity()) {
+        int capacity = openSize + (openSize >> 1);
+        openKeys = copyOf(openKeys, openSize, capacity);
+        openCounts = copyOf(openCounts, openSize, capacity);
+      }
+      openKeys.put(openSize, toKey(context, ngram[endPos - 1]));
+      openCounts.put(openSize, count);
+      openSize++;
+      return true;
+    }
+
+    /**
+     * Number of ngrams dropped so far.
+     * @return
+     */
+    public long getDropped() {
+      return dropped;
+    }
+
+    /**
+     * Freezes the remaining orders and returns the trie.  The builder must
+     * not be used afterwards.
+     * @return
+     */
+    public NgramCountTrie build() {
+      while (openOrder < trie.maxOrder) {
+        seal();
+      }
+      return trie;
+    }
+
+    /**
+     * Sorts the keys of the open order, sums the counts of repeated keys and
+     * moves the result to the trie.
+     */
+    private void seal() {
+      int size = 0;
+
+      sort(openKeys, openCounts, 0, openSize - 1);
+      for (int i = 0; i < openSize; i++) {
+        if (0 < size && openKeys.get(size - 1) == openKeys.get(i)) {
+          openCounts.put(size - 1, openCounts.get(size - 1) + openCounts.get(i));
+        } else {
+          openKeys.put(size, openKeys.get(i));
+          openCounts.put(size, openCounts.get(i));
+          size++;
+        }
+      }
+
+      // Trimmed to size, dropping the spare capacity of the open buffers
+      trie.keys[openOrder] = copyOf(openKeys, size, size);
+      trie.counts[openOrder] = copyOf(openCounts, size, size);
+      trie.sizes[openOrder] = size;
+
+      openOrder++;
+      openSize = 0;
+      if (openOrder < trie.maxOrder) {
+        openKeys = allocateLongs(INITIAL_CAPACITY, trie.offHeap);
+        openCounts = allocateLongs(INITIAL_CAPACITY, trie.offHeap);
+      } else {
+        openKeys = null;
+        openCounts = null;
+      }
+    }
+
+    /**
+     * Copies the first size longs of source to a new buffer of the given
+     * capacity, on or off the heap as the trie.
+     */
+    private LongBuffer copyOf(LongBuffer source, int size, int capacity) {
+      LongBuffer copy = allocateLongs(capacity, trie.offHeap);
+      LongBuffer contents = source.duplicate();
+      contents.clear().limit(size);
+      copy.put(contents).clear();
+      return copy;
+    }
+
+    /**
+     * Sorts keys[low..high] in place, moving the counts along with the keys.
+     * @see #sort(LongBuffer, LongBuffer, int, int)
+     */
+    static void sort(long[] keys, long[] counts, int low, int high) {
+      sort(LongBuffer.wrap(keys), LongBuffer.wrap(counts), low, high);
+    }
+
+    /**
+     * Sorts keys[low..high] in place, moving the counts along with the keys.
+     * A quicksort on parallel buffers, which avoids boxing every entry.
+     */
+    static void sort(LongBuffer keys, LongBuffer counts, int low, int high) {
+      while (low < high) {
+        if (high - low < 16) {
+          for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && keys.get(j - 1) > keys.get(j); j--) {
+              swap(keys, counts, j - 1, j);
+            }
+          }
+          return;
+        }
+
+        // Median of three pivot
+        int mid = (low + high) >>> 1;
+        if (keys.get(mid) < keys.get(low)) {
+          swap(keys, counts, mid, low);
+        }
+        if (keys.get(high) < keys.get(low)) {
+          swap(keys, counts, high, low);
+        }
+        if (keys.get(high) < keys.get(mid)) {
+          swap(keys, counts, high, mid);
+        }
+        long pivot = keys.get(mid);
+
+        int i = low;
+        int j = high;
+        while (i <= j) {
+          while (keys.get(i) < pivot) {
+            i++;
+          }
+          while (keys.get(j) > pivot) {
+            j--;
+          }
+          if (i <= j) {
+            swap(keys, counts, i, j);
+            i++;
+            j--;
+          }
+        }
+
+        // Recurse into the smaller part to bound the stack depth
+        if (j - low < high - i) {
+          sort(keys, counts, low, j);
+          low = i;
+        } else {
+          sort(keys, counts, i, high);
+          high = j;
+        }
+      }
+    }
+
+    private static void swap(LongBuffer keys, LongBuffer counts, int i, int j) {
+      long key = keys.get(i);
+      keys.put(i, keys.get(j));
+      keys.put(j, key);
+      long count = counts.get(i);
+      counts.put(i, counts.get(j));
+      counts.put(j, count);
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package ripley.speechtools.LMCompiler;
+
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import edu.berkeley.nlp.lm.io.ArpaLmReaderCallback;
+import edu.berkeley.nlp.lm.values.ProbBackoffPair;
+
+/**
+ * The ParallelEstimator spreads the Kneser-Ney estimation of the language
+ * model compilers (see RipleyKneserNeyLmReaderCallback and
+ * TrieKneserNeyLmReaderCallback) over a fork-join pool.  Once all counts are
+ * read, the probability and backoff of each ngram depend only on the counts,
+ * so the ngrams of an order are estimated in windows of consecutive ngrams,
+ * with each window split recursively into ranges for the worker threads.
+ *
+ * The estimated windows are passed on to the ArpaLmReaderCallback in the order
+ * the ngrams were read, and the estimates themselves do not depend on how the
+ * work is divided.  The output is therefore the same for any number of
+ * threads.  While a window is being estimated, the caller's thread reads the
+ * next window and writes out the previous one, so that writing the language
+ * model document overlaps the estimation.
+ *
+ * With a single thread no pool is created and the ngrams are estimated in
+ * order on the caller's thread.
+ *
+ * @author kyle
+ *
+ */
+public class ParallelEstimator {
+  // Number of ngrams estimated per window.  Two windows of ngrams and their
+  // estimates are held in memory at a time.
+  private static final int WINDOW_SIZE = 1 << 16;
+
+  // Ranges at or below this number of ngrams are not split further
+  private static final int MIN_RANGE_SIZE = 1 << 10;
+
+  /**
+   * Estimates the probability and backoff of a single ngram.  Implementations
+   * must be safe for concurrent calls once all counts are read.
+   */
+  public interface Estimator {
+    ProbBackoffPair getProbBackoff(int[] ngram);
+  }
+
+  /**
+   * Work on a range of indexes [from, to) that is independent of the work on
+   * any other range.
+   */
+  public interface RangeTask {
+    void run(int from, int to);
+  }
+
+  private final int numThreads;
+  private final ForkJoinPool pool;
+
+  public ParallelEstimator(int numThreads) {
+    this.numThreads = Math.max(1, numThreads);
+    this.pool = (1 < this.numThreads) ? new ForkJoinPool(this.numThreads) : null;
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Runs task over the indexes [0, size), split into ranges that are run
+   * concurrently, and returns once all ranges are done.
+   * @param size
+   * @param task
+   */
+  public void forRange(int size, RangeTask task) {
+    if (null == pool || size <= MIN_RANGE_SIZE) {
+      task.run(0, size);
+    } else {
+      pool.invoke(new RangeAction(task, 0, size));
+    }
+  }
+
+  /**
+   * Estimates the given ngrams of one order and passes them with their
+   * probabilities and backoffs to callback, in the order of the iterator.
+   * The ngram arrays are retained until they are written, so the iterator
+   * must not reuse them.
+   * @param ngramOrder - 0 based order of the ngrams
+   * @param ngrams
+   * @param estimator
+   * @param callback
+   */
+  public void writeOrder(int ngramOrder, Iterator<int[]> ngrams,
+      final Estimator estimator,
+      ArpaLmReaderCallback<ProbBackoffPair> callback) {
+    callback.handleNgramOrderStarted(ngramOrder + 1);
+
+    if (null == pool) {
+      while (true == ngrams.hasNext()) {
+        int[] ngram = ngrams.next();
+        callback.call(ngram, 0, ngram.length, estimator.getProbBackoff(ngram), "");
+      }
+    } else {
+      Window current = new Window(ngrams);
+      ForkJoinTask<Void> currentTask = pool.submit(current.estimate(estimator));
+      while (0 < current.size) {
+        // Read the next window while the current one is being estimated
+        Window next = new Window(ngrams);
+        ForkJoinTask<Void> nextTask = (0 < next.size)
+            ? pool.submit(next.estimate(estimator)) : null;
+
+        currentTask.join();
+        for (int i = 0; i < current.size; i++) {
+          int[] ngram = current.ngrams[i];
+          callback.call(ngram, 0, ngram.length, current.values[i], "");
+        }
+
+        current = next;
+        currentTask = nextTask;
+      }
+    }
+
+    callback.handleNgramOrderFinished(ngramOrder + 1);
+  }
+
+  /**
+   * Releases the worker threads.
+   */
+  public void shutdown() {
+    if (null != pool) {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Up to WINDOW_SIZE consecutive ngrams of an order and their estimates.
+   */
+  private static final class Window {
+    private final int[][] ngrams;
+    private final ProbBackoffPair[] values;
+    private int size;
+
+    Window(Iterator<int[]> source) {
+      int[][] read = new int[WINDOW_SIZE][];
+      while (size < WINDOW_SIZE && true == source.hasNext()) {
+        read[size++] = source.next();
+      }
+      ngrams = read;
+      values = new ProbBackoffPair[size];
+    }
+
+    RangeAction estimate(final Estimator estimator) {
+      return new RangeAction(new RangeTask() {
+        @Override
+        public void run(int from, int to) {
+          for (int i = from; i < to; i++) {
+            values[i] = estimator.getProbBackoff(ngrams[i]);
+          }
+        }
+      }, 0, size);
+    }
+  }
+
+  /**
+   * Splits a range in halves until it is small enough to run directly.
+   */
+  private static final class RangeAction extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final RangeTask task;
+    private final int from;
+    private final int to;
+
+    RangeAction(RangeTask task, int from, int to) {
+      this.task = task;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= MIN_RANGE_SIZE) {
+        task.run(from, to);
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new RangeAction(task, from, middle),
+            new RangeAction(task, middle, to));
+      }
+    }
+  }
+}
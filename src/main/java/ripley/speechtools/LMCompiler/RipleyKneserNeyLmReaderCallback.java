@@ -1,14 +1,21 @@
 package ripley.speechtools.LMCompiler;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 import edu.berkeley.nlp.lm.ConfigOptions;
 import edu.berkeley.nlp.lm.WordIndexer;
+import edu.berkeley.nlp.lm.io.ArpaLmReaderCallback;
 import edu.berkeley.nlp.lm.io.KneserNeyLmReaderCallback;
 import edu.berkeley.nlp.lm.map.HashNgramMap;
+import edu.berkeley.nlp.lm.map.NgramMap.Entry;
 import edu.berkeley.nlp.lm.util.LongRef;
 import edu.berkeley.nlp.lm.values.KneserNeyCountValueContainer;
 import edu.berkeley.nlp.lm.values.KneserNeyCountValueContainer.KneserNeyCounts;
+import edu.berkeley.nlp.lm.values.ProbBackoffPair;
 
 /**
  * The RipleyKneserNeyLmReaderCallback class modifies the method
@@ -22,6 +29,19 @@ import edu.berkeley.nlp.lm.values.KneserNeyCountValueContainer.KneserNeyCounts;
  * processes this data per the data filtering responsibilities of
  * this object in the sequence of data filters, and passes the
  * ngram information to the next data handler in the sequence.
+ * 
+ * Once all counts are read, parse(...) estimates the probabilities and
+ * backoffs of each order concurrently on numThreads threads (see
+ * ParallelEstimator), in place of the single threaded parse of the extended
+ * class.  The ngrams are listed in the same order as by the extended class.
+ *
+ * Unless the discounts are fixed (ConfigOptions.kneserNeyDiscounts), they are
+ * estimated from the numbers of one and two count ngrams of each order,
+ * counted exactly from the final counts of the HashNgramMap.  The extended
+ * class loses some of these while adding the ngrams (see
+ * TrieKneserNeyLmReaderCallback), so its estimated discounts, and the model,
+ * would depend on the order in which the ngrams are hashed.  With the exact
+ * counts the model is the same as with the TrieKneserNeyLmReaderCallback.
  *  
  * @author kyle
  *
@@ -29,6 +49,16 @@ import edu.berkeley.nlp.lm.values.KneserNeyCountValueContainer.KneserNeyCounts;
 public class RipleyKneserNeyLmReaderCallback
     extends KneserNeyLmReaderCallback<String> {
 
+  // The value container copies the counts it is given, so a single scratch
+  // object serves every ngram
+  private final KneserNeyCounts scratchCounts = new KneserNeyCounts();
+
+  private int numThreads = 1;
+
+  // The discounts estimated from the exact one and two count ngrams, once
+  // all counts are read
+  private float[] discounts;
+
   public RipleyKneserNeyLmReaderCallback(final WordIndexer<String> wordIndexer, final int maxOrder) {
     super(wordIndexer, maxOrder);
   }
@@ -36,6 +66,11 @@ public class RipleyKneserNeyLmReaderCallback
   public RipleyKneserNeyLmReaderCallback(final WordIndexer<String> wordIndexer, final int maxOrder, final ConfigOptions opts) {
     super(wordIndexer, maxOrder, opts);
   }
+
+  public RipleyKneserNeyLmReaderCallback(final WordIndexer<String> wordIndexer, final int maxOrder, final ConfigOptions opts, final int numThreads) {
+    super(wordIndexer, maxOrder, opts);
+    this.numThreads = numThreads;
+  }
   
   /**
    * The call function is overwritten such that the LmReader calling this
@@ -87,12 +122,174 @@ public class RipleyKneserNeyLmReaderCallback
       return;
     }
 
-    final KneserNeyCounts knCounts = new KneserNeyCounts();
-    knCounts.tokenCounts = value.value;
+    scratchCounts.tokenCounts = value.value;
     
     // Consider removing rehashIfNecessary function.  Does not seem necessary. 
     //ngrams.rehashIfNecessary(endPos - startPos);
-    long putResult = ngrams.put(ngram, startPos, endPos, knCounts);
+    ngrams.put(ngram, startPos, endPos, scratchCounts);
     
   }
+
+  /**
+   * Writes the language model to the callback in ARPA order, as the parse
+   * function of the extended class, with the estimation of each order spread
+   * over numThreads threads.  The HashNgramMap is only read once all counts
+   * are added, so the estimates may be computed concurrently.
+   * @param callback
+   */
+  @Override
+  public void parse(ArpaLmReaderCallback<ProbBackoffPair> callback) {
+    List<Long> lengths = new ArrayList<Long>();
+    for (int ngramOrder = 0; ngramOrder < lmOrder; ++ngramOrder) {
+      long numNgrams = 0;
+      for (final Entry<KneserNeyCounts> entry : ngrams.getNgramsForOrder(ngramOrder)) {
+        if (true == isKept(ngramOrder, entry.value)) {
+          numNgrams++;
+        }
+      }
+      lengths.add(numNgrams);
+    }
+
+    if (null == discounts) {
+      discounts = estimateDiscounts();
+    }
+
+    callback.initWithLengths(lengths);
+    ParallelEstimator estimator = new ParallelEstimator(numThreads);
+    try {
+      for (int ngramOrder = 0; ngramOrder < lmOrder; ++ngramOrder) {
+        estimator.writeOrder(ngramOrder, keptNgrams(ngramOrder),
+            new ParallelEstimator.Estimator() {
+              @Override
+              public ProbBackoffPair getProbBackoff(int[] ngram) {
+                return RipleyKneserNeyLmReaderCallback.this.getProbBackoff(
+                    ngram, 0, ngram.length);
+              }
+            }, callback);
+      }
+    } finally {
+      estimator.shutdown();
+    }
+    callback.cleanup();
+  }
+
+  /**
+   * The fixed discount of an order, or the discount estimated from the exact
+   * numbers of one and two count ngrams of the order.
+   */
+  @Override
+  protected float getDiscountForOrder(int ngramOrder) {
+    if (null != opts.kneserNeyDiscounts) {
+      return super.getDiscountForOrder(ngramOrder);
+    }
+    if (null == discounts) {
+      discounts = estimateDiscounts();
+    }
+    return discounts[ngramOrder];
+  }
+
+  /**
+   * Estimates the discount of every order from its numbers of one and two
+   * count ngrams.  The count of an ngram is its token count at the highest
+   * order and its left continuation count below (which holds the token count
+   * of ngrams starting with the start symbol), the counts of which the
+   * extended class tracks as each ngram is added.
+   * @return
+   */
+  private float[] estimateDiscounts() {
+    float[] orderDiscounts = new float[lmOrder];
+    for (int ngramOrder = 0; ngramOrder < lmOrder; ++ngramOrder) {
+      int numOneCounters = 0;
+      int numTwoCounters = 0;
+      for (final Entry<KneserNeyCounts> entry : ngrams.getNgramsForOrder(ngramOrder)) {
+        long count = (ngramOrder == lmOrder - 1) ? entry.value.tokenCounts
+            : entry.value.leftDotTypeCounts;
+        if (1 == count) {
+          numOneCounters++;
+        } else if (2 == count) {
+          numTwoCounters++;
+        }
+      }
+      orderDiscounts[ngramOrder] = TrieKneserNeyLmReaderCallback
+          .estimateDiscount(numOneCounters, numTwoCounters);
+    }
+    return orderDiscounts;
+  }
+
+  /**
+   * Applies the minimum counts to the two highest orders, as the extended
+   * class.
+   */
+  private boolean isKept(int ngramOrder, KneserNeyCounts counts) {
+    return ngramOrder < lmOrder - 2
+        || counts.tokenCounts >= opts.kneserNeyMinCounts[ngramOrder];
+  }
+
+  /**
+   * Iterates over the ngrams of an order that pass the minimum counts, in the
+   * order of the HashNgramMap.  The map returns a new array for every ngram.
+   * @param ngramOrder
+   * @return
+   */
+  private Iterator<int[]> keptNgrams(final int ngramOrder) {
+    final Iterator<Entry<KneserNeyCounts>> entries =
+        ngrams.getNgramsForOrder(ngramOrder).iterator();
+    return new Iterator<int[]>() {
+      private int[] next = advance();
+
+      private int[] advance() {
+        while (true == entries.hasNext()) {
+          Entry<KneserNeyCounts> entry = entries.next();
+          if (true == isKept(ngramOrder, entry.value)) {
+            return entry.key;
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return null != next;
+      }
+
+      @Override
+      public int[] next() {
+        if (null == next) {
+          throw new NoSuchElementException();
+        }
+        int[] current = next;
+        next = advance();
+        return current;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * The probability and backoff of an ngram, computed as by the private
+   * function of the extended class.
+   */
+  private ProbBackoffPair getProbBackoff(final int[] ngram, final int startPos,
+      final int endPos) {
+    final int ngramOrder = endPos - startPos - 1;
+    final boolean isHighestOrder = ngramOrder == lmOrder - 1;
+    final float val = isHighestOrder || ngram[startPos] == startIndex
+        ? getHighestOrderProb(ngram, startPos, endPos)
+        : getLowerOrderProb(ngram, startPos, endPos);
+    int nextNonStart = startPos + 1;
+    while (nextNonStart < endPos && ngram[nextNonStart] == startIndex) {
+      nextNonStart++;
+    }
+    final float prob = val + getLowerOrderBackoff(ngram, startPos, endPos - 1)
+        * interpolateProb(ngram, nextNonStart, endPos);
+    final boolean isStartEndSym = endPos - startPos == 1 && ngram[startPos] == startIndex;
+    final float logProb = isStartEndSym ? -99 : ((float) (Math.log10(prob)));
+    final float backoff = isHighestOrder ? 0.0f
+        : (float) Math.log10(getLowerOrderBackoff(ngram, startPos, endPos));
+    return new ProbBackoffPair(logProb, backoff);
+  }
 }
@@ -0,0 +1,560 @@
+package ripley.speechtools.LMCompiler;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.WordIndexer;
+import edu.berkeley.nlp.lm.io.ArpaLmReaderCallback;
+import edu.berkeley.nlp.lm.io.LmReader;
+import edu.berkeley.nlp.lm.io.LmReaderCallback;
+import edu.berkeley.nlp.lm.util.LongRef;
+import edu.berkeley.nlp.lm.values.ProbBackoffPair;
+
+/**
+ * The TrieKneserNeyLmReaderCallback takes the place of the
+ * RipleyKneserNeyLmReaderCallback when compiling large language models.  It
+ * receives the ngram counts from the MRKVTextReader in bulk into a
+ * NgramCountTrie, rather than allocating an object per ngram for the
+ * berkeleylm HashNgramMap, and then passes Kneser-Ney probabilities and
+ * backoffs on to an ArpaLmReaderCallback (e.g., the berkeleylm
+ * KneserNeyFileWritingLmReaderCallback).
+ *
+ * The continuation (type) counts needed for Kneser-Ney smoothing are computed
+ * in a single pass over each order once all counts are read, and are kept in
+ * primitive arrays next to the trie (on or off the heap, as the trie):
+ *   leftDot  - N1+(. w), the number of distinct words preceding w
+ *   rightDot - N1+(w .), the number of distinct words following w
+ *   dotdot   - N1+(. w .), the number of distinct pairs surrounding w
+ * The estimation follows the berkeleylm KneserNeyLmReaderCallback step for
+ * step, including its treatment of the start and end symbols, its discounts
+ * from the numbers of one and two count ngrams and its minimum counts.  Both
+ * callbacks produce the same language model, with fixed
+ * (ConfigOptions.kneserNeyDiscounts) or estimated discounts; only the order
+ * in which the ngrams of an order are listed differs, as this class lists
+ * them in trie order.  berkeleylm loses some of the one and two count ngrams
+ * of the lower orders from which it estimates the discounts (removing an
+ * entry from its LongHashSet breaks the probe sequence of the entries after
+ * it), so this class counts them exactly, and the
+ * RipleyKneserNeyLmReaderCallback counts them exactly in its HashNgramMap.
+ *
+ * The suffix lookups of the statistics and the estimates themselves are
+ * computed on numThreads threads by a ParallelEstimator, reading the trie
+ * concurrently once it is frozen.  The result does not depend on the number
+ * of threads.
+ *
+ * @author kyle
+ *
+ */
+public class TrieKneserNeyLmReaderCallback implements LmReaderCallback<LongRef>,
+    LmReader<ProbBackoffPair, ArpaLmReaderCallback<ProbBackoffPair>> {
+
+  // berkeleylm limits Kneser-Ney language models to orders below 10
+  private static final int MAX_ORDER = 10;
+
+  /**
+   * Scratch holder for the counts of a single ngram, as in the berkeleylm
+   * KneserNeyCounts.
+   */
+  private static final class Counts {
+    long tokenCounts;
+    long leftDotTypeCounts;
+    long rightDotTypeCounts;
+    long dotdotTypeCounts;
+
+    void clear() {
+      tokenCounts = 0;
+      leftDotTypeCounts = 0;
+      rightDotTypeCounts = 0;
+      dotdotTypeCounts = 0;
+    }
+  }
+
+  private final WordIndexer<String> wordIndexer;
+  private final int lmOrder;
+  private final boolean offHeap;
+  private final ConfigOptions opts;
+  private final int startIndex;
+  private final int endIndex;
+
+  private NgramCountTrie.Builder builder;
+  private NgramCountTrie trie;
+
+  // Kneser-Ney statistics, indexed as the trie
+  private IntBuffer[] leftDotTypeCounts;
+  private IntBuffer[] rightDotTypeCounts;
+  private IntBuffer[] dotdotTypeCounts;
+  private LongBuffer prefixTokenCounts;
+  private long bigramTypeCounts;
+  private int[] numOneCountNgrams;
+  private int[] numTwoCountNgrams;
+
+  private final int numThreads;
+
+  public TrieKneserNeyLmReaderCallback(final WordIndexer<String> wordIndexer,
+      final int maxOrder, final boolean offHeap) {
+    this(wordIndexer, maxOrder, offHeap, new ConfigOptions(), 1);
+  }
+
+  public TrieKneserNeyLmReaderCallback(final WordIndexer<String> wordIndexer,
+      final int maxOrder, final boolean offHeap, final ConfigOptions opts) {
+    this(wordIndexer, maxOrder, offHeap, opts, 1);
+  }
+
+  /**
+   * @param wordIndexer
+   * @param maxOrder
+   * @param offHeap - keep the trie and statistics outside the Java heap
+   * @param opts
+   * @param numThreads - threads computing the statistics and estimates (see
+   *                     ParallelEstimator)
+   */
+  public TrieKneserNeyLmReaderCallback(final WordIndexer<String> wordIndexer,
+      final int maxOrder, final boolean offHeap, final ConfigOptions opts,
+      final int numThreads) {
+    if (maxOrder < 2 || maxOrder >= MAX_ORDER) {
+      throw new IllegalArgumentException("Unsupported language model order "
+          + maxOrder);
+    }
+    this.wordIndexer = wordIndexer;
+    this.lmOrder = maxOrder;
+    this.offHeap = offHeap;
+    this.opts = opts;
+    this.numThreads = numThreads;
+    this.startIndex = wordIndexer.getIndexPossiblyUnk(wordIndexer.getStartSymbol());
+    this.endIndex = wordIndexer.getIndexPossiblyUnk(wordIndexer.getEndSymbol());
+    this.builder = new NgramCountTrie.Builder(maxOrder, offHeap);
+  }
+
+  /**
+   * Starts from the counts of an existing trie, e.g., of a loaded
+   * NgramCountSnapshot, instead of reading counts from a LmReader.  The
+   * Kneser-Ney statistics are computed right away, so the callback is ready
+   * for parse(...).
+   * @param wordIndexer - WordIndexer the ngrams of trie were indexed with
+   * @param trie
+   * @param opts
+   * @param numThreads
+   */
+  public TrieKneserNeyLmReaderCallback(final WordIndexer<String> wordIndexer,
+      final NgramCountTrie trie, final ConfigOptions opts, final int numThreads) {
+    this(wordIndexer, trie.getMaxOrder(), trie.isOffHeap(), opts, numThreads);
+    this.builder = null;
+    this.trie = trie;
+    prepareStatistics();
+  }
+
+  /**
+   * Receives a single ngram and its count from the LmReader (see
+   * MRKVTextReader).  The arrays are not retained, so the reader may reuse
+   * them.
+   */
+  @Override
+  public void call(int[] ngram, int startPos, int endPos, LongRef value,
+      String words) {
+    builder.add(ngram, startPos, endPos, value.value);
+  }
+
+  /**
+   * Called by the LmReader after the last ngram.  Freezes the trie and
+   * computes the Kneser-Ney statistics.
+   */
+  @Override
+  public void cleanup() {
+    trie = builder.build();
+    builder = null;
+    prepareStatistics();
+  }
+
+  private void prepareStatistics() {
+    ParallelEstimator estimator = new ParallelEstimator(numThreads);
+    try {
+      computeStatistics(estimator);
+    } finally {
+      estimator.shutdown();
+    }
+  }
+
+  public NgramCountTrie getTrie() {
+    return trie;
+  }
+
+  public WordIndexer<String> getWordIndexer() {
+    return wordIndexer;
+  }
+
+  /**
+   * Computes the continuation counts and the numbers of one and two count
+   * ngrams by the rules of the berkeleylm KneserNeyCountValueContainer,
+   * which updates them as each ngram is added.  The suffix lookups, which
+   * take most of the time, are done concurrently by the ParallelEstimator.
+   */
+  private void computeStatistics(ParallelEstimator estimator) {
+    leftDotTypeCounts = new IntBuffer[lmOrder - 1];
+    rightDotTypeCounts = new IntBuffer[lmOrder - 1];
+    dotdotTypeCounts = new IntBuffer[lmOrder - 2];
+    numOneCountNgrams = new int[lmOrder];
+    numTwoCountNgrams = new int[lmOrder];
+    for (int ngramOrder = 0; ngramOrder < lmOrder - 1; ngramOrder++) {
+      int size = trie.size(ngramOrder);
+      leftDotTypeCounts[ngramOrder] = NgramCountTrie.allocateInts(size, offHeap);
+      rightDotTypeCounts[ngramOrder] = NgramCountTrie.allocateInts(size, offHeap);
+      if (ngramOrder < lmOrder - 2) {
+        dotdotTypeCounts[ngramOrder] = NgramCountTrie.allocateInts(size, offHeap);
+      }
+    }
+    prefixTokenCounts = NgramCountTrie.allocateLongs(trie.size(lmOrder - 2), offHeap);
+    bigramTypeCounts = trie.size(1);
+
+    // Ngrams starting with the start symbol form a contiguous range per order
+    int[] startLow = new int[lmOrder];
+    int[] startHigh = new int[lmOrder];
+    int startUnigram = trie.find(0, 0, startIndex);
+    if (0 <= startUnigram) {
+      startLow[0] = startUnigram;
+      startHigh[0] = startUnigram + 1;
+      for (int ngramOrder = 1; ngramOrder < lmOrder; ngramOrder++) {
+        startLow[ngramOrder] = trie.firstChild(ngramOrder, startLow[ngramOrder - 1]);
+        startHigh[ngramOrder] = trie.firstChild(ngramOrder, startHigh[ngramOrder - 1]);
+      }
+    }
+
+    // The token counts of ngrams starting with the start symbol are kept as
+    // their left continuation counts, as in berkeleylm
+    for (int ngramOrder = 0; ngramOrder < lmOrder - 1; ngramOrder++) {
+      for (int i = startLow[ngramOrder]; i < startHigh[ngramOrder]; i++) {
+        increment(leftDotTypeCounts[ngramOrder], i, trie.getCount(ngramOrder, i));
+      }
+    }
+
+    // Every ngram adds one to the left continuation count of its suffix and
+    // the right continuation count of its context, and one to the dotdot
+    // count of the suffix of its context.  The suffix of an ngram is the
+    // child of the suffix of its context, so the suffixes of each order are
+    // found with one lookup per ngram.
+    int[] contextSuffixes = null;
+    for (int ngramOrder = 1; ngramOrder < lmOrder; ngramOrder++) {
+      int size = trie.size(ngramOrder);
+      int[] suffixes = findSuffixes(estimator, ngramOrder, contextSuffixes);
+
+      for (int i = 0; i < size; i++) {
+        int context = trie.getContext(ngramOrder, i);
+        int contextSuffix = (1 == ngramOrder) ? 0 : contextSuffixes[context];
+        int suffix = suffixes[i];
+
+        if (ngramOrder == lmOrder - 1) {
+          prefixTokenCounts.put(context, prefixTokenCounts.get(context)
+              + trie.getCount(ngramOrder, i));
+        }
+        if (2 <= ngramOrder) {
+          increment(dotdotTypeCounts[ngramOrder - 2], contextSuffix, 1);
+        }
+        increment(leftDotTypeCounts[ngramOrder - 1], suffix, 1);
+        increment(rightDotTypeCounts[ngramOrder - 1], context, 1);
+      }
+      contextSuffixes = suffixes;
+    }
+
+    // The one and two count ngrams used for the discounts.  berkeleylm
+    // tracks these with the token counts of highest order ngrams and ngrams
+    // starting with the start symbol, and with the left continuation counts
+    // of the others, as each ngram and its extensions are added.
+    for (int ngramOrder = 0; ngramOrder < lmOrder; ngramOrder++) {
+      for (int i = 0; i < trie.size(ngramOrder); i++) {
+        boolean startsWithStart =
+            i >= startLow[ngramOrder] && i < startHigh[ngramOrder];
+        long tokenCount = trie.getCount(ngramOrder, i);
+        boolean isOneCount = false;
+        boolean isTwoCount = false;
+
+        if (ngramOrder == lmOrder - 1 || true == startsWithStart) {
+          isOneCount = (1 == tokenCount);
+          isTwoCount = (2 == tokenCount);
+        }
+        if (ngramOrder < lmOrder - 1) {
+          long leftDot = leftDotTypeCounts[ngramOrder].get(i);
+          for (long oldCount = startsWithStart ? tokenCount : 0;
+              oldCount < leftDot && oldCount <= 2; oldCount++) {
+            if (0 == oldCount) {
+              isOneCount = true;
+            } else if (1 == oldCount) {
+              isOneCount = false;
+              isTwoCount = true;
+            } else {
+              isTwoCount = false;
+            }
+          }
+        }
+
+        if (true == isOneCount) {
+          numOneCountNgrams[ngramOrder]++;
+        }
+        if (true == isTwoCount) {
+          numTwoCountNgrams[ngramOrder]++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds the index of the suffix of every ngram of an order, given the
+   * suffixes of the ngrams of the order below.
+   * @param estimator
+   * @param ngramOrder
+   * @param contextSuffixes - suffixes of the order below, or null for bigrams
+   * @return
+   */
+  private int[] findSuffixes(ParallelEstimator estimator, final int ngramOrder,
+      final int[] contextSuffixes) {
+    final int[] suffixes = new int[trie.size(ngramOrder)];
+    estimator.forRange(suffixes.length, new ParallelEstimator.RangeTask() {
+      @Override
+      public void run(int from, int to) {
+        for (int i = from; i < to; i++) {
+          int contextSuffix = (1 == ngramOrder) ? 0
+              : contextSuffixes[trie.getContext(ngramOrder, i)];
+          suffixes[i] = trie.find(ngramOrder - 1, contextSuffix,
+              trie.getWord(ngramOrder, i));
+        }
+      }
+    });
+    return suffixes;
+  }
+
+  private static void increment(IntBuffer buffer, int index, long amount) {
+    buffer.put(index, (int) (buffer.get(index) + amount));
+  }
+
+  /**
+   * Writes the language model to the callback in ARPA order: the number of
+   * ngrams of each order, then the probabilities and backoffs of each order.
+   * The estimates are computed concurrently by the ParallelEstimator, and
+   * passed on in trie order.
+   * @param callback
+   */
+  @Override
+  public void parse(ArpaLmReaderCallback<ProbBackoffPair> callback) {
+    List<Long> lengths = new ArrayList<Long>();
+    for (int ngramOrder = 0; ngramOrder < lmOrder; ngramOrder++) {
+      long numNgrams = 0;
+      for (int i = 0; i < trie.size(ngramOrder); i++) {
+        if (true == isKept(ngramOrder, i)) {
+          numNgrams++;
+        }
+      }
+      lengths.add(numNgrams);
+    }
+
+    callback.initWithLengths(lengths);
+    ParallelEstimator estimator = new ParallelEstimator(numThreads);
+    try {
+      for (int ngramOrder = 0; ngramOrder < lmOrder; ngramOrder++) {
+        estimator.writeOrder(ngramOrder, keptNgrams(ngramOrder),
+            new ParallelEstimator.Estimator() {
+              @Override
+              public ProbBackoffPair getProbBackoff(int[] ngram) {
+                return TrieKneserNeyLmReaderCallback.this.getProbBackoff(
+                    ngram, 0, ngram.length);
+              }
+            }, callback);
+      }
+    } finally {
+      estimator.shutdown();
+    }
+    callback.cleanup();
+  }
+
+  /**
+   * Iterates over the ngrams of an order that pass the minimum counts, in
+   * trie order, as new arrays.
+   * @param ngramOrder
+   * @return
+   */
+  private Iterator<int[]> keptNgrams(final int ngramOrder) {
+    return new Iterator<int[]>() {
+      private int next = skipDropped(0);
+
+      private int skipDropped(int index) {
+        while (index < trie.size(ngramOrder) && false == isKept(ngramOrder, index)) {
+          index++;
+        }
+        return index;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next < trie.size(ngramOrder);
+      }
+
+      @Override
+      public int[] next() {
+        if (false == hasNext()) {
+          throw new NoSuchElementException();
+        }
+        int[] ngram = trie.getNgram(ngramOrder, next, new int[ngramOrder + 1]);
+        next = skipDropped(next + 1);
+        return ngram;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Applies the minimum counts, which berkeleylm applies only to the two
+   * highest orders.
+   */
+  private boolean isKept(int ngramOrder, int index) {
+    if (ngramOrder < lmOrder - 2) {
+      return true;
+    }
+    return getTokenCounts(ngramOrder, index) >= opts.kneserNeyMinCounts[ngramOrder];
+  }
+
+  private long getTokenCounts(int ngramOrder, int index) {
+    if (ngramOrder == lmOrder - 1) {
+      return trie.getCount(ngramOrder, index);
+    }
+    return (ngramOrder == lmOrder - 2) ? prefixTokenCounts.get(index) : -1;
+  }
+
+  private ProbBackoffPair getProbBackoff(final int[] ngram, final int startPos,
+      final int endPos) {
+    final int ngramOrder = endPos - startPos - 1;
+    final boolean isHighestOrder = ngramOrder == lmOrder - 1;
+    final float val = isHighestOrder || ngram[startPos] == startIndex
+        ? getHighestOrderProb(ngram, startPos, endPos)
+        : getLowerOrderProb(ngram, startPos, endPos);
+    int nextNonStart = startPos + 1;
+    while (nextNonStart < endPos && ngram[nextNonStart] == startIndex) {
+      nextNonStart++;
+    }
+    final float prob = val + getLowerOrderBackoff(ngram, startPos, endPos - 1)
+        * interpolateProb(ngram, nextNonStart, endPos);
+    final boolean isStartEndSym = endPos - startPos == 1 && ngram[startPos] == startIndex;
+    final float logProb = isStartEndSym ? -99 : ((float) (Math.log10(prob)));
+    final float backoff = isHighestOrder ? 0.0f
+        : (float) Math.log10(getLowerOrderBackoff(ngram, startPos, endPos));
+    return new ProbBackoffPair(logProb, backoff);
+  }
+
+  private float interpolateProb(final int[] ngram, final int startPos,
+      final int endPos) {
+    if (startPos == endPos) {
+      return 0.0f;
+    }
+    final float backoff = getLowerOrderBackoff(ngram, startPos, endPos - 1);
+    final float prob = getLowerOrderProb(ngram, startPos, endPos);
+    return prob + backoff * interpolateProb(ngram, startPos + 1, endPos);
+  }
+
+  private float getHighestOrderProb(final int[] ngram, final int startPos,
+      final int endPos) {
+    final Counts counts = new Counts();
+    final Counts contextCounts = new Counts();
+    getCounts(ngram, startPos, endPos, false, counts);
+    getCounts(ngram, startPos, endPos - 1, true, contextCounts);
+    final float D = getDiscountForOrder(endPos - startPos - 1);
+    return contextCounts.tokenCounts == 0 ? 0.0f
+        : Math.max(0.0f, (counts.tokenCounts - D) / contextCounts.tokenCounts);
+  }
+
+  private float getLowerOrderProb(final int[] ngram, final int startPos,
+      final int endPos) {
+    if (startPos == endPos) {
+      return 1.0f;
+    }
+    final Counts counts = new Counts();
+    final Counts contextCounts = new Counts();
+    getCounts(ngram, startPos, endPos, false, counts);
+    getCounts(ngram, startPos, endPos - 1, true, contextCounts);
+    final float probDiscount = (endPos - startPos == 1) ? 0.0f
+        : getDiscountForOrder(endPos - startPos - 1);
+    return contextCounts.dotdotTypeCounts == 0 ? 0.0f
+        : Math.max(0.0f, counts.leftDotTypeCounts - probDiscount)
+            / contextCounts.dotdotTypeCounts;
+  }
+
+  private float getLowerOrderBackoff(final int[] ngram, final int startPos,
+      final int endPos) {
+    if (startPos == endPos) {
+      return 1.0f;
+    }
+    final Counts counts = new Counts();
+    getCounts(ngram, startPos, endPos, true, counts);
+    final long backoffDenom =
+        (endPos - startPos == lmOrder - 1 || ngram[startPos] == startIndex)
+        ? counts.tokenCounts : counts.dotdotTypeCounts;
+    final float backoffDiscount = getDiscountForOrder(endPos - startPos);
+    return backoffDenom == 0.0f ? 1.0f
+        : backoffDiscount * counts.rightDotTypeCounts / backoffDenom;
+  }
+
+  private float getDiscountForOrder(int ngramOrder) {
+    if (null != opts.kneserNeyDiscounts) {
+      return (float) opts.kneserNeyDiscounts[ngramOrder];
+    }
+    return estimateDiscount(numOneCountNgrams[ngramOrder],
+        numTwoCountNgrams[ngramOrder]);
+  }
+
+  /**
+   * The discount of an order estimated from its numbers of one and two count
+   * ngrams, as by berkeleylm.
+   * @param numOneCounters
+   * @param numTwoCounters
+   * @return
+   */
+  static float estimateDiscount(int numOneCounters, int numTwoCounters) {
+    final float denom = (numOneCounters + 2 * (float) numTwoCounters);
+    return denom == 0.0f ? 1e-5f : numOneCounters / denom;
+  }
+
+  /**
+   * Fills value with the counts of an ngram as seen by the estimation, with
+   * the adjustments berkeleylm makes for ngrams starting with the start
+   * symbol or ending with the end symbol.  Missing ngrams have zero counts.
+   */
+  private void getCounts(final int[] key, final int startPos, final int endPos,
+      final boolean isBackoff, final Counts value) {
+    value.clear();
+    if (startPos == endPos) {
+      // only happens when requesting number of bigrams
+      value.dotdotTypeCounts = bigramTypeCounts;
+      return;
+    }
+    final int index = trie.find(key, startPos, endPos);
+    if (index < 0) {
+      return;
+    }
+    final int ngramOrder = endPos - startPos - 1;
+    final boolean isHighestOrder = ngramOrder == lmOrder - 1;
+    final boolean isSecondHighestOrder = ngramOrder == lmOrder - 2;
+    value.tokenCounts = getTokenCounts(ngramOrder, index);
+    value.rightDotTypeCounts = isHighestOrder ? -1
+        : rightDotTypeCounts[ngramOrder].get(index);
+    value.leftDotTypeCounts = isHighestOrder ? -1
+        : leftDotTypeCounts[ngramOrder].get(index);
+    value.dotdotTypeCounts = (isHighestOrder || isSecondHighestOrder) ? -1
+        : dotdotTypeCounts[ngramOrder].get(index);
+
+    if (key[startPos] == startIndex) {
+      value.dotdotTypeCounts = value.rightDotTypeCounts;
+      if (endPos - startPos < lmOrder - 1
+          || (endPos - startPos == lmOrder - 1 && !isBackoff)) {
+        value.tokenCounts = value.leftDotTypeCounts;
+      }
+    }
+    if (key[endPos - 1] == endIndex) {
+      value.rightDotTypeCounts = 1;
+      value.dotdotTypeCounts = value.leftDotTypeCounts;
+    }
+  }
+}
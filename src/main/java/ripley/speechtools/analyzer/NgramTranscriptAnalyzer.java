@@ -6,8 +6,13 @@ import org.apache.lucene.analysis.shingle.ShingleFilter;
 import org.apache.lucene.analysis.core.LowerCaseFilter;
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.util.CharArraySet;
 
+import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The Ngram transcript analyzer is intended to act as the text analyzer for
@@ -26,6 +31,8 @@ public class NgramTranscriptAnalyzer extends Analyzer {
   
   private int minNgramSize = 2;
   private int maxNgramSize = 3;
+  private boolean maxOrderOnly = false;
+  private CharArraySet vocabulary = null;
   
   public NgramTranscriptAnalyzer(int minNgramSize, int maxNgramSize) {
     this.setMinNgramSize(minNgramSize);
@@ -40,6 +47,44 @@ public class NgramTranscriptAnalyzer extends Analyzer {
     return maxNgramSize;
   }
   
+  public boolean isMaxOrderOnly() {
+    return maxOrderOnly;
+  }
+  
+  /**
+   * When set, the analyzer produces only the ngrams of the maximum NGram size
+   * plus the sentence-initial partial ngrams (the first word, the first two
+   * words, and so on up to one word less than the maximum size), instead of
+   * every ngram from unigrams up to the maximum size at every position.
+   * 
+   * Every lower order ngram occurrence is a suffix of exactly one of the
+   * produced ngrams: an occurrence ending at word position j is the suffix of
+   * the maximum size ngram ending at j, or of the partial ngram ending at j
+   * when j is smaller than the maximum size.  The complete counts of every
+   * order are therefore derived from the counts of the produced ngrams by
+   * adding each count to all of the ngram's suffixes, while roughly a third
+   * as many ngrams (for trigrams) pass through the MapReduce shuffle.
+   * @param maxOrderOnly
+   */
+  public void setMaxOrderOnly(boolean maxOrderOnly) {
+    this.maxOrderOnly = maxOrderOnly;
+  }
+  
+  public CharArraySet getVocabulary() {
+    return vocabulary;
+  }
+  
+  /**
+   * When set, words outside the vocabulary are replaced with the unknown word
+   * symbol <unk> before ngrams are formed (see VocabularyFilter).  Like the
+   * other settings, the vocabulary must be set before the analyzer is first
+   * used, as the TokenStream components are reused afterwards.
+   * @param vocabulary - set of words, or null to keep every word
+   */
+  public void setVocabulary(CharArraySet vocabulary) {
+    this.vocabulary = vocabulary;
+  }
+  
   /**
    * Sets the minimum NGram size to be used by the NGram analyzer.  If the
    * minimum NGram size could not be set as the user requested, the function
@@ -90,7 +135,7 @@ public class NgramTranscriptAnalyzer extends Analyzer {
   
   /**
    * The chosen sequence of TokenStream objects for the NGram analyzer:
-   * WhitespaceTokenizer -> LowerCaseFilter -> ShingleFilter
+   * WhitespaceTokenizer -> LowerCaseFilter -> [VocabularyFilter] -> ShingleFilter
    * Shingles are the word based NGram filter option available in the Lucene
    * analysis package, as opposed to the word based Ngram options available.
    * 
@@ -103,11 +148,132 @@ public class NgramTranscriptAnalyzer extends Analyzer {
    */
   @Override
   protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
-    Tokenizer source = new WhitespaceTokenizer(reader);
-    TokenStream filter = new LowerCaseFilter(source);
-    filter = new ShingleFilter(filter, this.minNgramSize, this.maxNgramSize);
+    TokenStreamComponents words = createWordComponents(reader);
+    Tokenizer source = words.getTokenizer();
+    TokenStream filter = words.getTokenStream();
+    if (null != this.vocabulary) {
+      filter = new VocabularyFilter(filter, this.vocabulary);
+    }
+    if (true == this.maxOrderOnly) {
+      ShingleFilter shingles = new ShingleFilter(filter, this.maxNgramSize,
+          this.maxNgramSize);
+      shingles.setOutputUnigrams(false);
+      shingles.setOutputUnigramsIfNoShingles(true);
+      filter = shingles;
+    } else {
+      filter = new ShingleFilter(filter, this.minNgramSize, this.maxNgramSize);
+    }
     return new TokenStreamComponents(source, filter);
   }
   
+  /**
+   * The start of the TokenStream of the NGram analyzer, which splits a
+   * transcript into its words:  WhitespaceTokenizer -> LowerCaseFilter
+   * @param reader
+   * @return
+   */
+  private static TokenStreamComponents createWordComponents(Reader reader) {
+    Tokenizer source = new WhitespaceTokenizer(reader);
+    return new TokenStreamComponents(source, new LowerCaseFilter(source));
+  }
+
+  /**
+   * Creates an analyzer that splits a transcript into its words exactly as
+   * the NGram analyzer does before any vocabulary is applied and ngrams are
+   * formed, e.g., to count the words of a vocabulary (see WordCountMapper).
+   * @return
+   */
+  public static Analyzer createWordAnalyzer() {
+    return new Analyzer() {
+      @Override
+      protected TokenStreamComponents createComponents(String fieldName,
+          Reader reader) {
+        return createWordComponents(reader);
+      }
+    };
+  }
+
+  /**
+   * Runs a single transcript sentence through this analyzer and collects the
+   * resulting ngrams in the order the TokenStream produced them (see
+   * analyze(...)).
+   * @param inputText
+   * @return
+   * @throws IOException
+   */
+  public List<String> ngrams(String inputText) throws IOException {
+    List<String> ngramList = analyze(this, inputText);
+
+    if (true == this.maxOrderOnly && false == ngramList.isEmpty()) {
+      addSentencePartials(ngramList);
+    }
+
+    return ngramList;
+  }
+  
+  /**
+   * Runs a single transcript sentence through an analyzer and collects the
+   * resulting tokens in the order the TokenStream produced them.  This keeps
+   * the Lucene TokenStream contract (reset, end, close) in one place for the
+   * execution backends that count ngrams (e.g., the Hadoop NgramMapper and
+   * the Spark driver) and words (the WordCountMapper).
+   * @param analyzer
+   * @param inputText
+   * @return
+   * @throws IOException
+   */
+  public static List<String> analyze(Analyzer analyzer, String inputText)
+      throws IOException {
+    List<String> tokenList = new ArrayList<String>();
+    TokenStream tokenStream = null;
+    CharTermAttribute termAttribute;
+
+    try {
+      tokenStream = analyzer.tokenStream("text", inputText);
+      termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+
+      // Resets this stream to the beginning. (Required)
+      tokenStream.reset();
+      while (tokenStream.incrementToken()) {
+        tokenList.add(termAttribute.toString());
+      }
+
+      // Perform end-of-stream operations, e.g. set the final offset.
+      tokenStream.end();
+    } finally {
+      if (null != tokenStream) {
+        tokenStream.close(); // Release resources associated with this stream.
+      }
+    }
+    return tokenList;
+  }
+
+  /**
+   * Adds the sentence-initial partial ngrams to the maximum size ngrams of
+   * a sentence.  Sentences shorter than the maximum size produce only
+   * unigrams, which are replaced by the partial ngrams of the whole sentence.
+   * @param ngramList
+   */
+  private void addSentencePartials(List<String> ngramList) {
+    String[] firstWords = ngramList.get(0).split(" ");
+    int numPartials = this.maxNgramSize - 1;
+
+    if (firstWords.length < this.maxNgramSize) {
+      // No shingles were produced, so the list holds the sentence's words
+      firstWords = ngramList.toArray(new String[ngramList.size()]);
+      numPartials = firstWords.length;
+      ngramList.clear();
+    }
+
+    StringBuilder partial = new StringBuilder();
+    for (int i = 0; i < numPartials; i++) {
+      if (0 < i) {
+        partial.append(' ');
+      }
+      partial.append(firstWords[i]);
+      ngramList.add(partial.toString());
+    }
+  }
+  
 }
 
@@ -0,0 +1,116 @@
+package ripley.speechtools.analyzer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.util.CharArraySet;
+
+/**
+ * The VocabularyFilter replaces every word that is not in a fixed vocabulary
+ * with the unknown word symbol <unk>, which the KneserNeyLMCompiler registers
+ * as the unknown word of the language model.  Placed ahead of the
+ * ShingleFilter in the NgramTranscriptAnalyzer, it keeps misspellings and
+ * one-off words (e.g., rare callsigns) out of the ngrams, so the number of
+ * distinct ngrams is bounded by the vocabulary rather than by the noise of the
+ * corpus.
+ *
+ * The sentence start and end symbols are never replaced.  The vocabulary is
+ * matched exactly, so it should hold lower cased words when the filter
+ * follows a LowerCaseFilter.
+ *
+ * Example:  with a vocabulary without "execjat", the words
+ *           "execjat two one cleared to land" become
+ *           "<unk> two one cleared to land"
+ *
+ * @author kyle
+ *
+ */
+public final class VocabularyFilter extends TokenFilter {
+  public static final String UNKNOWN_SYMBOL = "<unk>";
+  public static final String START_SYMBOL = "<s>";
+  public static final String END_SYMBOL = "</s>";
+
+  // Passed on whatever the vocabulary holds
+  private static final CharArraySet SYMBOLS = CharArraySet.unmodifiableSet(
+      new CharArraySet(Arrays.asList(START_SYMBOL, END_SYMBOL, UNKNOWN_SYMBOL),
+          false));
+
+  private final CharArraySet vocabulary;
+  private final CharTermAttribute termAttribute =
+      addAttribute(CharTermAttribute.class);
+
+  /**
+   * @param input
+   * @param vocabulary - the words passed on unchanged, besides the sentence
+   *                     start, end and unknown symbols, which need not be
+   *                     in it
+   */
+  public VocabularyFilter(TokenStream input, CharArraySet vocabulary) {
+    super(input);
+    this.vocabulary = vocabulary;
+  }
+
+  @Override
+  public boolean incrementToken() throws IOException {
+    if (false == input.incrementToken()) {
+      return false;
+    }
+    char[] buffer = termAttribute.buffer();
+    int length = termAttribute.length();
+    if (false == vocabulary.contains(buffer, 0, length)
+        && false == SYMBOLS.contains(buffer, 0, length)) {
+      termAttribute.setEmpty().append(UNKNOWN_SYMBOL);
+    }
+    return true;
+  }
+
+  /**
+   * Creates the vocabulary set of a filter from a list of words, adding the
+   * sentence start, end and unknown symbols.
+   * @param words
+   * @return
+   */
+  public static CharArraySet createVocabulary(List<String> words) {
+    CharArraySet vocabulary = new CharArraySet(words.size() + 3, false);
+    vocabulary.addAll(words);
+    vocabulary.add(START_SYMBOL);
+    vocabulary.add(END_SYMBOL);
+    vocabulary.add(UNKNOWN_SYMBOL);
+    return CharArraySet.unmodifiableSet(vocabulary);
+  }
+
+  /**
+   * Reads a vocabulary file holding one word per line.  Anything after the
+   * first whitespace of a line (e.g., a count) is ignored, as are empty
+   * lines.  The stream is closed.
+   * @param is
+   * @return
+   * @throws IOException
+   */
+  public static CharArraySet readVocabulary(InputStream is) throws IOException {
+    List<String> words = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(is,
+        StandardCharsets.UTF_8));
+    try {
+      String line;
+      while (null != (line = reader.readLine())) {
+        String[] fields = line.trim().split("\\s+");
+        if (false == fields[0].isEmpty()) {
+          words.add(fields[0]);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return createVocabulary(words);
+  }
+}
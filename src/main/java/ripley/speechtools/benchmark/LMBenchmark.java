@@ -0,0 +1,291 @@
+package ripley.speechtools.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import ripley.speechtools.LMCompiler.KneserNeyLMCompiler;
+import ripley.speechtools.client.LMTrainer;
+import ripley.speechtools.client.VocabularyBuilder;
+import ripley.speechtools.reducer.NgramReducer;
+import edu.berkeley.nlp.lm.StringWordIndexer;
+
+/**
+ * The LMBenchmark runs the complete language model training path, from
+ * transcripts to an ARPA format language model document, on a synthetic corpus
+ * (see SyntheticTranscriptGenerator) and records the cost of each stage:
+ *   generate - writing the synthetic transcripts
+ *   count    - the LMTrainer ngram counting job
+ *   compile  - the KneserNeyLMCompiler
+ *
+ * For each stage the wall clock time, input lines per second, peak heap usage
+ * and output size are recorded.  The counting stage additionally records the
+ * map output records and bytes and the shuffled bytes reported by the job.
+ * Unless configured otherwise, the counting job is run by the Hadoop local job
+ * runner in the benchmark JVM, so the peak heap covers the map and reduce tasks.
+ *
+ * Several corpus sizes may be given as a comma separated list, in which case
+ * the stages are run once for each size.  The results are printed and appended
+ * as tab separated rows to [workDir]/benchmark.tsv, such that runs made before
+ * and after a change can be compared.  All ripley.* properties (e.g.,
+ * ripley.mapper.linecache.size or ripley.synthetic.vocab) are passed on to the
+ * stages, so the same driver benchmarks each of the training options.
+ *
+ * Possible Usage:  hadoop --config [hadoopConfigDir] jar [ripleyjar] \
+ *                  ripley.speechtools.benchmark.LMBenchmark \
+ *                  [-D ripley.synthetic.vocab=50000] \
+ *                  [workDir] [numTranscripts[,numTranscripts...]]
+ *
+ * @author kyle
+ *
+ */
+public class LMBenchmark extends Configured implements Tool {
+  public static final String REPORT_FILE_NAME = "benchmark.tsv";
+
+  private static final String[] REPORT_COLUMNS = { "transcripts", "stage",
+    "millis", "linesPerSecond", "peakHeapBytes", "outputBytes",
+    "mapOutputRecords", "mapOutputBytes", "shuffleBytes" };
+
+  /**
+   * The measurements of a single stage of a benchmark run.
+   */
+  public static class StageResult {
+    private final long transcripts;
+    private final String stage;
+    private long millis;
+    private long peakHeapBytes;
+    private long outputBytes;
+    private long mapOutputRecords = -1;
+    private long mapOutputBytes = -1;
+    private long shuffleBytes = -1;
+
+    StageResult(long transcripts, String stage) {
+      this.transcripts = transcripts;
+      this.stage = stage;
+    }
+
+    public String getStage() {
+      return stage;
+    }
+
+    public long getMillis() {
+      return millis;
+    }
+
+    public long getPeakHeapBytes() {
+      return peakHeapBytes;
+    }
+
+    public long getOutputBytes() {
+      return outputBytes;
+    }
+
+    public double getLinesPerSecond() {
+      return (0 == millis) ? 0.0 : transcripts * 1000.0 / millis;
+    }
+
+    /**
+     * Formats the result as a row of the benchmark report.  Counters that
+     * do not apply to the stage are reported as -1.
+     * @return
+     */
+    public String toReportRow() {
+      return transcripts + "\t" + stage + "\t" + millis + "\t"
+          + String.format("%.1f", getLinesPerSecond()) + "\t" + peakHeapBytes
+          + "\t" + outputBytes + "\t" + mapOutputRecords + "\t"
+          + mapOutputBytes + "\t" + shuffleBytes;
+    }
+  }
+
+  public int run(String[] allArgs) throws Exception {
+    String[] args = new GenericOptionsParser(getConf(), allArgs).getRemainingArgs();
+
+    // Ensure correct number of inputs.
+    if (2 != args.length) {
+      System.out.println("Expected Usage: "
+          + "hadoop --config [hadoopConfigDir] jar [ripleyjar] "
+          + "ripley.speechtools.benchmark.LMBenchmark "
+          + "[workDir] [numTranscripts[,numTranscripts...]]");
+      return 1;
+    }
+
+    Path workDir = new Path(args[0]);
+    List<StageResult> results = new ArrayList<StageResult>();
+    for (String size : args[1].split(",")) {
+      results.addAll(runBenchmark(workDir, Long.parseLong(size.trim())));
+    }
+
+    writeReport(FileSystem.get(getConf()), workDir, results);
+    return 0;
+  }
+
+  /**
+   * Generates a corpus of numTranscripts transcripts below workDir, and runs
+   * the counting and compilation stages on it.
+   * @param workDir
+   * @param numTranscripts
+   * @return the results of the generate, count and compile stages
+   * @throws Exception
+   */
+  public List<StageResult> runBenchmark(Path workDir, long numTranscripts)
+      throws Exception {
+    Configuration conf = new Configuration(getConf());
+    FileSystem fs = FileSystem.get(conf);
+    Path runDir = new Path(workDir, "run-" + numTranscripts);
+    Path transcripts = new Path(runDir, "transcripts");
+    Path counts = new Path(runDir, "counts");
+    Path jobOutput = new Path(runDir, "job");
+    Path model = new Path(runDir, "model.arpa");
+    List<StageResult> results = new ArrayList<StageResult>();
+
+    fs.delete(runDir, true);
+
+    // The counting job writes the ngram counts below the output base
+    conf.set(NgramReducer.OUTPUT_BASE_KEY,
+        fs.makeQualified(counts).toUri().getPath());
+
+    // Generate
+    StageResult generate = new StageResult(numTranscripts, "generate");
+    long start = startStage();
+    SyntheticTranscriptGenerator.fromConf(conf).write(fs, transcripts,
+        numTranscripts, conf.getInt(SyntheticTranscriptGenerator.NUM_FILES_KEY, 1));
+    finishStage(generate, start);
+    generate.outputBytes = fs.getContentSummary(transcripts).getLength();
+    results.add(generate);
+
+    // Count
+    StageResult count = new StageResult(numTranscripts, "count");
+    start = startStage();
+    VocabularyBuilder.prepare(conf, transcripts, jobOutput);
+    Job job = LMTrainer.createJob(conf, transcripts, jobOutput);
+    if (false == job.waitForCompletion(false)) {
+      throw new IOException("Ngram counting job failed: " + job.getJobID());
+    }
+    finishStage(count, start);
+    Counters counters = job.getCounters();
+    count.mapOutputRecords =
+        counters.findCounter(TaskCounter.MAP_OUTPUT_RECORDS).getValue();
+    count.mapOutputBytes =
+        counters.findCounter(TaskCounter.MAP_OUTPUT_BYTES).getValue();
+    count.shuffleBytes =
+        counters.findCounter(TaskCounter.REDUCE_SHUFFLE_BYTES).getValue();
+    count.outputBytes = fs.getContentSummary(counts).getLength();
+    results.add(count);
+
+    // Compile
+    StageResult compile = new StageResult(numTranscripts, "compile");
+    KneserNeyLMCompiler compiler =
+        new KneserNeyLMCompiler(new StringWordIndexer(), conf);
+    start = startStage();
+    compiler.triggerDataPipeline(new String[] { counts.toString(),
+        model.toString() });
+    finishStage(compile, start);
+    compile.outputBytes = fs.getContentSummary(model).getLength();
+    results.add(compile);
+
+    return results;
+  }
+
+  /**
+   * Resets the peak usage of the heap memory pools, such that the peak
+   * recorded by finishStage(...) covers only the stage being measured.
+   * @return the start time of the stage
+   */
+  private static long startStage() {
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (MemoryType.HEAP == pool.getType()) {
+        pool.resetPeakUsage();
+      }
+    }
+    return System.nanoTime();
+  }
+
+  private static void finishStage(StageResult result, long start) {
+    result.millis = (System.nanoTime() - start) / 1000000L;
+    long peak = 0;
+    // The sum of the pool peaks bounds the peak of the whole heap from above
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (MemoryType.HEAP == pool.getType()) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    result.peakHeapBytes = peak;
+  }
+
+  /**
+   * Prints the results and appends them to the report in workDir, writing
+   * the header row if the report does not exist yet.
+   * @param fs
+   * @param workDir
+   * @param results
+   * @throws IOException
+   */
+  private static void writeReport(FileSystem fs, Path workDir,
+      List<StageResult> results) throws IOException {
+    Path report = new Path(workDir, REPORT_FILE_NAME);
+    StringBuilder rows = new StringBuilder();
+
+    if (false == fs.exists(report)) {
+      for (int i = 0; i < REPORT_COLUMNS.length; i++) {
+        rows.append(REPORT_COLUMNS[i]).append((i + 1 < REPORT_COLUMNS.length) ? '\t' : '\n');
+      }
+    }
+    for (StageResult result : results) {
+      rows.append(result.toReportRow()).append('\n');
+    }
+    System.out.print(rows);
+
+    // Append by rewriting, as not every FileSystem supports append(...)
+    StringBuilder previous = new StringBuilder();
+    if (true == fs.exists(report)) {
+      previous.append(new String(readFully(fs, report), StandardCharsets.UTF_8));
+    }
+    FSDataOutputStream os = fs.create(report, true);
+    PrintWriter pw = new PrintWriter(new OutputStreamWriter(os,
+        StandardCharsets.UTF_8));
+    try {
+      pw.print(previous);
+      pw.print(rows);
+    } finally {
+      pw.close();
+    }
+  }
+
+  private static byte[] readFully(FileSystem fs, Path file) throws IOException {
+    byte[] contents = new byte[(int) fs.getFileStatus(file).getLen()];
+    FSDataInputStream is = fs.open(file);
+    try {
+      is.readFully(0, contents);
+    } finally {
+      is.close();
+    }
+    return contents;
+  }
+
+  public static void main(String[] args) throws Exception {
+    // ToolRunner handles generic command-line options
+    Configuration conf = new Configuration();
+    int res = ToolRunner.run(conf, new LMBenchmark(), args);
+    System.exit(res);
+  }
+}
@@ -0,0 +1,301 @@
+package ripley.speechtools.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * The SyntheticTranscriptGenerator produces corpora of air traffic control
+ * (ATC) like transcripts for reproducible benchmarking of the language model
+ * training pipeline, as real transcripts generally cannot leave the systems
+ * they were recorded on.
+ *
+ * Each transcript is an ATC phraseology template (e.g., "[callsign] turn left
+ * heading [heading]") with its slots filled in.  Templates, callsigns,
+ * facilities and free filler words are all drawn from Zipf distributions, so
+ * that, as with real ATC traffic, a few phrases and words make up most of the
+ * corpus while a long tail of rare words keeps growing the vocabulary.  The
+ * filler words are synthetic, pronounceable tokens from a vocabulary of
+ * configurable size.  Given the same parameters and seed the generator always
+ * produces the same corpus.
+ *
+ * Example:  <s> delta two six five turn left heading two seven zero </s>
+ *
+ * Possible Usage:  hadoop --config [hadoopConfigDir] jar [ripleyjar] \
+ *                  ripley.speechtools.benchmark.SyntheticTranscriptGenerator \
+ *                  [-D ripley.synthetic.vocab=50000] \
+ *                  [-D ripley.synthetic.zipf=1.1] \
+ *                  [-D ripley.synthetic.seed=42] \
+ *                  [-D ripley.synthetic.files=1] \
+ *                  [outputDirPath] [numTranscripts]
+ *
+ * @author kyle
+ *
+ */
+public class SyntheticTranscriptGenerator extends Configured implements Tool {
+  public static final String VOCABULARY_SIZE_KEY = "ripley.synthetic.vocab";
+  public static final String ZIPF_EXPONENT_KEY = "ripley.synthetic.zipf";
+  public static final String SEED_KEY = "ripley.synthetic.seed";
+  public static final String NUM_FILES_KEY = "ripley.synthetic.files";
+  public static final String SENTENCE_MARKERS_KEY = "ripley.synthetic.markers";
+
+  public static final int DEFAULT_VOCABULARY_SIZE = 50000;
+  public static final double DEFAULT_ZIPF_EXPONENT = 1.1;
+  public static final long DEFAULT_SEED = 42L;
+
+  private static final String START_SYMBOL = "<s>";
+  private static final String END_SYMBOL = "</s>";
+
+  // Templates in order of decreasing frequency.  Slots are written in braces.
+  private static final String[] TEMPLATES = {
+    "{callsign} runway {runway} cleared to land",
+    "{callsign} contact {place} {facility} {frequency}",
+    "{callsign} turn left heading {heading}",
+    "{callsign} climb and maintain {altitude}",
+    "{callsign} runway {runway} cleared for takeoff",
+    "{callsign} turn right heading {heading}",
+    "{callsign} descend and maintain {altitude}",
+    "{callsign} {place} {facility} wind {heading} at {digits} runway {runway} cleared to land",
+    "{callsign} taxi to runway {runway} via {filler}",
+    "{callsign} hold short of runway {runway}",
+    "{callsign} traffic twelve o'clock {digits} miles {filler}",
+    "{callsign} cleared {filler} approach runway {runway}",
+    "{callsign} say again",
+    "{callsign} roger {filler}",
+    "{callsign} expect {filler} {filler}",
+  };
+
+  private static final String[] AIRLINES = { "delta", "american", "united",
+    "southwest", "jetblue", "speedbird", "cactus", "execjet", "blue streak",
+    "acey", "beechjet", "november", "skywest", "brickyard", "cessna" };
+
+  private static final String[] FACILITIES = { "tower", "ground", "approach",
+    "departure", "center", "clearance" };
+
+  private static final String[] DIGITS = { "zero", "one", "two", "three",
+    "four", "five", "six", "seven", "eight", "niner" };
+
+  private static final String[] SIDES = { "left", "right", "center" };
+
+  private static final String[] SYLLABLES = { "ka", "lo", "mi", "ren", "tor",
+    "sa", "vel", "do", "qui", "ban", "er", "so", "lin", "pa", "gor", "ta" };
+
+  private final Random random;
+  private final ZipfDistribution templates;
+  private final ZipfDistribution airlines;
+  private final ZipfDistribution facilities;
+  private final ZipfDistribution fillers;
+  private final String[] vocabulary;
+  private final boolean sentenceMarkers;
+
+  public SyntheticTranscriptGenerator() {
+    this(DEFAULT_VOCABULARY_SIZE, DEFAULT_ZIPF_EXPONENT, DEFAULT_SEED, true);
+  }
+
+  public SyntheticTranscriptGenerator(int vocabularySize, double zipfExponent,
+      long seed, boolean sentenceMarkers) {
+    this.random = new Random(seed);
+    this.templates = new ZipfDistribution(TEMPLATES.length, zipfExponent);
+    this.airlines = new ZipfDistribution(AIRLINES.length, zipfExponent);
+    this.facilities = new ZipfDistribution(FACILITIES.length, zipfExponent);
+    this.fillers = new ZipfDistribution(Math.max(1, vocabularySize), zipfExponent);
+    this.vocabulary = new String[Math.max(1, vocabularySize)];
+    for (int i = 0; i < this.vocabulary.length; i++) {
+      this.vocabulary[i] = syntheticWord(i);
+    }
+    this.sentenceMarkers = sentenceMarkers;
+  }
+
+  /**
+   * Produces the next transcript of the corpus.
+   * @return
+   */
+  public String nextTranscript() {
+    String template = TEMPLATES[templates.sample(random)];
+    StringBuilder sb = new StringBuilder();
+    int slotStart;
+    int slotEnd = -1;
+
+    if (true == sentenceMarkers) {
+      sb.append(START_SYMBOL).append(' ');
+    }
+
+    while (0 <= (slotStart = template.indexOf('{', slotEnd + 1))) {
+      sb.append(template, slotEnd + 1, slotStart);
+      slotEnd = template.indexOf('}', slotStart);
+      fillSlot(template.substring(slotStart + 1, slotEnd), sb);
+    }
+    sb.append(template.substring(slotEnd + 1));
+
+    if (true == sentenceMarkers) {
+      sb.append(' ').append(END_SYMBOL);
+    }
+    return sb.toString();
+  }
+
+  private void fillSlot(String slot, StringBuilder sb) {
+    if ("callsign".equals(slot)) {
+      sb.append(AIRLINES[airlines.sample(random)]).append(' ');
+      appendDigits(sb, 2 + random.nextInt(3));
+    } else if ("facility".equals(slot)) {
+      sb.append(FACILITIES[facilities.sample(random)]);
+    } else if ("runway".equals(slot)) {
+      appendDigits(sb, 1 + random.nextInt(2));
+      if (true == random.nextBoolean()) {
+        sb.append(' ').append(SIDES[random.nextInt(SIDES.length)]);
+      }
+    } else if ("heading".equals(slot)) {
+      appendDigits(sb, 3);
+    } else if ("altitude".equals(slot)) {
+      sb.append(DIGITS[1 + random.nextInt(9)]).append(' ')
+          .append(random.nextBoolean() ? "thousand" : "thousand five hundred");
+    } else if ("frequency".equals(slot)) {
+      appendDigits(sb, 3);
+      sb.append(" point ");
+      appendDigits(sb, 1 + random.nextInt(2));
+    } else if ("digits".equals(slot)) {
+      appendDigits(sb, 1);
+    } else {
+      // "place" and "filler" slots draw from the synthetic vocabulary
+      sb.append(vocabulary[fillers.sample(random)]);
+    }
+  }
+
+  private void appendDigits(StringBuilder sb, int count) {
+    for (int i = 0; i < count; i++) {
+      if (0 < i) {
+        sb.append(' ');
+      }
+      sb.append(DIGITS[random.nextInt(DIGITS.length)]);
+    }
+  }
+
+  /**
+   * Spells a vocabulary rank as a pronounceable word, e.g., 0 -> "ka" and
+   * 17 -> "lolo".  Distinct ranks always produce distinct words.
+   * @param rank
+   * @return
+   */
+  static String syntheticWord(int rank) {
+    StringBuilder sb = new StringBuilder();
+    int remainder = rank;
+    do {
+      sb.append(SYLLABLES[remainder % SYLLABLES.length]);
+      remainder = remainder / SYLLABLES.length;
+    } while (0 < remainder--);
+    return sb.toString();
+  }
+
+  /**
+   * Writes numTranscripts transcripts, one per line, spread evenly over
+   * numFiles files in outputDir.
+   * @param fs
+   * @param outputDir
+   * @param numTranscripts
+   * @param numFiles
+   * @return number of bytes written
+   * @throws IOException
+   */
+  public long write(FileSystem fs, Path outputDir, long numTranscripts,
+      int numFiles) throws IOException {
+    long bytesWritten = 0;
+    int files = (int) Math.max(1, Math.min(numFiles, numTranscripts));
+
+    for (int f = 0; f < files; f++) {
+      long first = numTranscripts * f / files;
+      long last = numTranscripts * (f + 1) / files;
+      PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+          fs.create(new Path(outputDir, String.format("transcripts-%06d.txt", f))),
+          StandardCharsets.UTF_8));
+      try {
+        for (long i = first; i < last; i++) {
+          String transcript = nextTranscript();
+          pw.println(transcript);
+          bytesWritten += transcript.getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+      } finally {
+        pw.close();
+      }
+    }
+
+    return bytesWritten;
+  }
+
+  /**
+   * Creates a generator from the ripley.synthetic.* configuration properties.
+   * @param conf
+   * @return
+   */
+  public static SyntheticTranscriptGenerator fromConf(Configuration conf) {
+    return new SyntheticTranscriptGenerator(
+        conf.getInt(VOCABULARY_SIZE_KEY, DEFAULT_VOCABULARY_SIZE),
+        conf.getDouble(ZIPF_EXPONENT_KEY, DEFAULT_ZIPF_EXPONENT),
+        conf.getLong(SEED_KEY, DEFAULT_SEED),
+        conf.getBoolean(SENTENCE_MARKERS_KEY, true));
+  }
+
+  public int run(String[] allArgs) throws Exception {
+    String[] args = new GenericOptionsParser(getConf(), allArgs).getRemainingArgs();
+
+    // Ensure correct number of inputs.
+    if (2 != args.length) {
+      System.out.println("Expected Usage: "
+          + "hadoop --config [hadoopConfigDir] jar [ripleyjar] "
+          + "ripley.speechtools.benchmark.SyntheticTranscriptGenerator "
+          + "[outputDirPath] [numTranscripts]");
+      return 1;
+    }
+
+    Configuration conf = getConf();
+    long bytes = fromConf(conf).write(FileSystem.get(conf), new Path(args[0]),
+        Long.parseLong(args[1]), conf.getInt(NUM_FILES_KEY, 1));
+    System.out.println("Wrote " + args[1] + " transcripts (" + bytes
+        + " bytes) to " + args[0]);
+    return 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    // ToolRunner handles generic command-line options
+    Configuration conf = new Configuration();
+    int res = ToolRunner.run(conf, new SyntheticTranscriptGenerator(), args);
+    System.exit(res);
+  }
+
+  /**
+   * Samples ranks 0..(n-1) with probability proportional to 1/(rank+1)^s.
+   */
+  static class ZipfDistribution {
+    private final double[] cumulative;
+
+    ZipfDistribution(int n, double exponent) {
+      cumulative = new double[n];
+      double total = 0.0;
+      for (int rank = 0; rank < n; rank++) {
+        total += 1.0 / Math.pow(rank + 1, exponent);
+        cumulative[rank] = total;
+      }
+      for (int rank = 0; rank < n; rank++) {
+        cumulative[rank] /= total;
+      }
+    }
+
+    int sample(Random random) {
+      int index = Arrays.binarySearch(cumulative, random.nextDouble());
+      if (0 > index) {
+        index = -index - 1;
+      }
+      return Math.min(index, cumulative.length - 1);
+    }
+  }
+}
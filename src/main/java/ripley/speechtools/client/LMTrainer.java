@@ -1,9 +1,14 @@
 package ripley.speechtools.client;
 
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
 import org.apache.hadoop.conf.*;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.mapreduce.Job;
@@ -12,13 +17,18 @@ import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.reduce.IntSumReducer;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.hadoop.util.GenericOptionsParser;
 
+import ripley.speechtools.inputformat.TranscriptCombineInputFormat;
 import ripley.speechtools.mapper.NgramMapper;
+import ripley.speechtools.mapper.SketchNgramMapper;
 import ripley.speechtools.partitioner.NgramOrderPartitioner;
 import ripley.speechtools.reducer.NgramReducer;
+import ripley.speechtools.reducer.SketchNgramReducer;
+import ripley.speechtools.sketch.NgramSketch;
 
 /**
  * The LMTrainer attempts to process input text documents to extract the
@@ -28,7 +38,18 @@ import ripley.speechtools.reducer.NgramReducer;
  * Author: Kyle White
  */
 public class LMTrainer extends Configured implements Tool {
-  public static final int NGRAM_COUNT = 3;
+  // Default highest ngram order, see NgramMapper.ORDER_KEY
+  public static final int NGRAM_COUNT = NgramMapper.DEFAULT_ORDER;
+
+  // When true, small transcript files (and tar archives of transcripts) are
+  // packed into splits of ripley.input.split.maxsize bytes by the
+  // TranscriptCombineInputFormat instead of one split per file.
+  public static final String COMBINE_INPUT_KEY = "ripley.input.combine";
+
+  // When true, ngrams are counted approximately in bounded memory with per
+  // ngram order sketches (see SketchNgramMapper), and only the most frequent
+  // ngrams with estimated counts are written to the job output directory.
+  public static final String APPROXIMATE_KEY = "ripley.ngram.approximate";
 
   /**
    * The main method below represents the entry point for the hadoop tool
@@ -74,8 +95,30 @@ public class LMTrainer extends Configured implements Tool {
     return 1;
   }
 
-  // Configuration processed by ToolRunner
-  Configuration conf = getConf();
+  // Configuration processed by ToolRunner.  With a fixed vocabulary
+  // (e.g., -D ripley.vocabulary.size=50000), the words are counted first.
+  VocabularyBuilder.prepare(getConf(), new Path(args[0]), new Path(args[1]));
+  Job job = createJob(getConf(), new Path(args[0]), new Path(args[1]));
+
+  // Submit the job to MapReduce framework.  Changes the system
+  // state to RUNNING if successful, and returns regardless.
+  job.waitForCompletion(true);
+
+  return 0;
+  }
+
+  /**
+   * Creates and configures the ngram counting job without submitting it,
+   * such that callers (e.g., the benchmark driver) can submit the job and
+   * inspect its counters.
+   * @param conf
+   * @param inputPath - input file or directory containing training data
+   * @param outputPath - output path of the job
+   * @return
+   * @throws IOException
+   */
+  public static Job createJob(Configuration conf, Path inputPath,
+      Path outputPath) throws IOException {
 
   Job job = Job.getInstance(conf);
 
@@ -83,27 +126,41 @@ public class LMTrainer extends Configured implements Tool {
   job.setJarByClass(LMTrainer.class);
 
   // Set the format of the reducer output
+  Class<?> countClass = IntWritable.class;
   job.setOutputKeyClass(Text.class);
-  job.setOutputValueClass(IntWritable.class);
 
   // Set the Mapper and Reducer classes for MapReduce framework usage
-  job.setMapperClass(NgramMapper.class);
-  job.setReducerClass(NgramReducer.class);
-  ///job.setNumReduceTasks(NGRAM_COUNT);
+  if (true == conf.getBoolean(APPROXIMATE_KEY, false)) {
+    // Example:  -D ripley.ngram.approximate=true -D ripley.sketch.topk=50000
+    countClass = LongWritable.class;
+    job.setMapOutputKeyClass(IntWritable.class);
+    job.setMapOutputValueClass(NgramSketch.class);
+    job.setMapperClass(SketchNgramMapper.class);
+    job.setReducerClass(SketchNgramReducer.class);
+  } else {
+    job.setMapperClass(NgramMapper.class);
+    // The counts of an ngram are summed within each map task before the
+    // shuffle.  The line cache of the NgramMapper only merges repeated lines,
+    // whereas the higher order ngrams of different lines are still largely
+    // shared in formulaic transcripts.
+    job.setCombinerClass(IntSumReducer.class);
+    job.setReducerClass(NgramReducer.class);
+    // One reducer per ngram order, such that all ngrams of an order (of a
+    // domain, with tagged input) are written by one reducer in sorted order,
+    // see NgramOrderPartitioner
+    job.setPartitionerClass(NgramOrderPartitioner.class);
+    job.setNumReduceTasks(NgramMapper.getOrder(conf));
+  }
+  job.setOutputValueClass(countClass);
 
-  // The ripley.speechtools.partitioner.NgramOrderPartitioner
-  // class may be used to aid in MultipleOutputs with a single Reducer
-  // or, to instead burden the nodes creating output from Mapper tasks,
-  // the class can parameterize a Partitioner.
+  // Ship the vocabulary file, if any, to the map tasks, which read it from
+  // their working directory (see NgramMapper.loadVocabulary)
+  String vocabularyFile = conf.get(NgramMapper.VOCABULARY_FILE_KEY);
+  if (null != vocabularyFile) {
+    addCacheFile(job, conf, new Path(vocabularyFile));
+  }
 
-  // Set the InputFormat class which splits input files into logical splits
-  // that are fed to Mapper objects.  By default the TextInputFormat class
-  // breaks inputs files into lines.  This is reasonable for a language model
-  // being trained from speech transcripts, where the input contains one
-  // transcription per line.  Generally speaking, the InputFormat class reads
-  // input data and transforms it into splits of key/value pairs per record 
-  // the Mapper objects
-  job.setInputFormatClass(TextInputFormat.class);
+  configureInput(job, conf, inputPath);
 
   // The OutputFormat class takes Reducer output and writes plain text files.
   // While the already available TextInputFormat class suited the purposes
@@ -113,30 +170,72 @@ public class LMTrainer extends Configured implements Tool {
   // http://www.speech.sri.com/projects/srilm/manpages/ngram.1.html).
   // Otherwise it creates an intermediate file format that can be converted
   // into ARPA ngram format, possibly after some additional processing.  
-  MultipleOutputs.addNamedOutput(job,
-      NgramOrderPartitioner.Partitions.UNIGRAM.partitionName(),
-      TextOutputFormat.class,
-      Text.class, IntWritable.class);
-  MultipleOutputs.addNamedOutput(job,
-      NgramOrderPartitioner.Partitions.BIGRAM.partitionName(),
-      TextOutputFormat.class,
-      Text.class, IntWritable.class);
-  MultipleOutputs.addNamedOutput(job,
-      NgramOrderPartitioner.Partitions.TRIGRAM.partitionName(),
-      TextOutputFormat.class,
-      Text.class, IntWritable.class);
-  
-  // Set the input file or directory containing input files with training
-  // data.  Input data will be read by the TextInputFormat class.
-  FileInputFormat.setInputPaths(job, new Path(args[0]));
+  // One named output per ngram order up to ripley.ngram.order.
+  // Example:  -D ripley.ngram.order=5 -D ripley.ngram.maxorder.only=true
+  int order = NgramMapper.getOrder(conf);
+  for (int i = 0; i < order; i++) {
+    MultipleOutputs.addNamedOutput(job,
+        NgramOrderPartitioner.Partitions.values()[i].partitionName(),
+        TextOutputFormat.class,
+        Text.class, countClass);
+  }
 
   // Set the output file to be utilized by the TextOutputFormat class.
-  FileOutputFormat.setOutputPath(job, new Path(args[1]));
+  FileOutputFormat.setOutputPath(job, outputPath);
 
-  // Submit the job to MapReduce framework.  Changes the system
-  // state to RUNNING if successful, and returns regardless.
-  job.waitForCompletion(true);
+  return job;
+  }
 
-  return 0;
+  /**
+   * Ships a file to the tasks of a job through the distributed cache, linked
+   * into the tasks' working directories under the name of the file.
+   * @param job
+   * @param conf
+   * @param file
+   * @throws IOException
+   */
+  public static void addCacheFile(Job job, Configuration conf, Path file)
+      throws IOException {
+  URI uri = file.getFileSystem(conf).makeQualified(file).toUri();
+  try {
+    job.addCacheFile(new URI(uri.getScheme(), uri.getAuthority(),
+        uri.getPath(), null, file.getName()));
+  } catch (URISyntaxException ex) {
+    throw new IOException("Invalid cache file " + file, ex);
+  }
+  }
+
+  /**
+   * Sets the InputFormat class and input paths of a job reading training
+   * data, such that the vocabulary and ngram counting jobs read the same
+   * input.
+   * @param job
+   * @param conf
+   * @param inputPath - input file or directory containing training data
+   * @throws IOException
+   */
+  public static void configureInput(Job job, Configuration conf,
+      Path inputPath) throws IOException {
+  // Set the InputFormat class which splits input files into logical splits
+  // that are fed to Mapper objects.  By default the TextInputFormat class
+  // breaks inputs files into lines.  This is reasonable for a language model
+  // being trained from speech transcripts, where the input contains one
+  // transcription per line.  Generally speaking, the InputFormat class reads
+  // input data and transforms it into splits of key/value pairs per record 
+  // the Mapper objects
+  // When the training data arrives as many small per-utterance files, the
+  // TranscriptCombineInputFormat packs them into fewer, larger splits so that
+  // the job does not launch a map task for every few lines of input.
+  // Example:  -D ripley.input.combine=true -D ripley.input.split.maxsize=268435456
+  if (true == conf.getBoolean(COMBINE_INPUT_KEY, false)) {
+    job.setInputFormatClass(TranscriptCombineInputFormat.class);
+    FileInputFormat.setInputDirRecursive(job, true);
+  } else {
+    job.setInputFormatClass(TextInputFormat.class);
+  }
+
+  // Set the input file or directory containing input files with training
+  // data.  Input data will be read by the TextInputFormat class.
+  FileInputFormat.setInputPaths(job, inputPath);
   }
 }
@@ -0,0 +1,140 @@
+package ripley.speechtools.client;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import edu.berkeley.nlp.lm.StringWordIndexer;
+
+import ripley.speechtools.LMCompiler.BackoffModel;
+import ripley.speechtools.LMCompiler.KneserNeyLMCompiler;
+import ripley.speechtools.mapper.NbestRescoreMapper;
+import ripley.speechtools.mapper.NgramMapper;
+import ripley.speechtools.reducer.NbestRescoreReducer;
+
+/**
+ * The NbestRescorer applies a compiled language model to recognizer N-best
+ * lists in bulk.  The NbestRescoreMapper scores every hypothesis with the
+ * model and combines the score with the hypothesis' acoustic score, and the
+ * NbestRescoreReducer re-ranks the hypotheses of each utterance (see both
+ * classes for the input and output formats and the scoring properties).
+ *
+ * The model is given as the binary BackoffModel written by the
+ * KneserNeyLMCompiler with ripley.compiler.binary set to true, and is shipped
+ * to the map tasks through the distributed cache, where it is memory-mapped.
+ * An ARPA model document may be given instead; the binary model next to it
+ * ([model].bin) is used if there is one, and otherwise the document is
+ * converted on the client to [outputFilePath]-model/[model].bin, at the
+ * order set by ripley.ngram.order.
+ *
+ * Possible Usage:  hadoop --config [hadoopConfigDir] jar [ripleyjar] \
+ *                  ripley.speechtools.client.NbestRescorer \
+ *                  [-D ripley.rescore.lm.weight=10 -D ripley.rescore.topn=1] \
+ *                  [modelFilePath] [inputFilePath] [outputFilePath]
+ *
+ * @author kyle
+ *
+ */
+public class NbestRescorer extends Configured implements Tool {
+
+  public static void main(String[] args) throws Exception {
+    // ToolRunner handles generic command-line options
+    int res = ToolRunner.run(new Configuration(), new NbestRescorer(), args);
+    System.exit(res);
+  }
+
+  /**
+   * Resolves the binary model and runs the rescoring job.
+   * @param allArgs
+   * @return
+   * @throws Exception
+   */
+  public int run(String[] allArgs) throws Exception {
+    String[] args = new GenericOptionsParser(getConf(), allArgs).getRemainingArgs();
+
+    // Ensure correct number of inputs.
+    if (3 != args.length) {
+      System.out.println("Expected usage: "
+          + "hadoop --config [hadoopConfigDir] jar [ripleyjar] "
+          + "ripley.speechtools.client.NbestRescorer "
+          + "[modelFilePath] [inputFilePath] [outputFilePath]");
+      return 1;
+    }
+
+    Path outputPath = new Path(args[2]);
+    Path modelPath = prepareModel(getConf(), new Path(args[0]), outputPath);
+    Job job = createJob(getConf(), modelPath, new Path(args[1]), outputPath);
+    return (true == job.waitForCompletion(true)) ? 0 : 1;
+  }
+
+  /**
+   * Creates the rescoring job without submitting it.
+   * @param conf
+   * @param modelPath - binary BackoffModel
+   * @param inputPath - input file or directory containing N-best lists
+   * @param outputPath - output path of the job
+   * @return
+   * @throws IOException
+   */
+  public static Job createJob(Configuration conf, Path modelPath,
+      Path inputPath, Path outputPath) throws IOException {
+    conf.set(NbestRescoreMapper.MODEL_FILE_KEY, modelPath.toString());
+    Job job = Job.getInstance(conf);
+    job.setJarByClass(NbestRescorer.class);
+    job.setMapperClass(NbestRescoreMapper.class);
+    job.setReducerClass(NbestRescoreReducer.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(Text.class);
+    job.setOutputFormatClass(TextOutputFormat.class);
+
+    // Each node localizes the model once for all of its tasks
+    LMTrainer.addCacheFile(job, conf, modelPath);
+
+    // The N-best lists are read as the training data is, so many small
+    // files may be combined into larger splits (ripley.input.combine)
+    LMTrainer.configureInput(job, conf, inputPath);
+    FileOutputFormat.setOutputPath(job, outputPath);
+    return job;
+  }
+
+  /**
+   * Returns the binary model for modelPath, converting an ARPA model
+   * document that has none.
+   * @param conf
+   * @param modelPath - binary model or ARPA model document
+   * @param outputPath - output path of the job
+   * @return path of the binary model
+   * @throws IOException
+   */
+  public static Path prepareModel(Configuration conf, Path modelPath,
+      Path outputPath) throws IOException {
+    FileSystem fs = modelPath.getFileSystem(conf);
+    if (true == BackoffModel.isModel(fs, modelPath)) {
+      return modelPath;
+    }
+    Path binaryPath = KneserNeyLMCompiler.getBinaryModelPath(modelPath);
+    if (true == BackoffModel.isModel(fs, binaryPath)) {
+      return binaryPath;
+    }
+
+    StringWordIndexer swi = KneserNeyLMCompiler.createWordIndexer();
+    BackoffModel model = BackoffModel.readArpa(fs, modelPath, swi,
+        NgramMapper.getOrder(conf));
+
+    Path modelDir = new Path(outputPath.getParent(),
+        outputPath.getName() + "-model");
+    Path convertedPath = new Path(modelDir, binaryPath.getName());
+    model.write(outputPath.getFileSystem(conf), convertedPath, swi);
+    return convertedPath;
+  }
+}
@@ -0,0 +1,305 @@
+package ripley.speechtools.client;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.Function2;
+import org.apache.spark.api.java.function.PairFunction;
+import org.apache.spark.storage.StorageLevel;
+
+import scala.Tuple2;
+
+import ripley.speechtools.analyzer.NgramTranscriptAnalyzer;
+import ripley.speechtools.mapper.NgramMapper;
+import ripley.speechtools.partitioner.NgramOrderComparator;
+
+/**
+ * The SparkLMTrainer is an alternative execution backend to the Hadoop
+ * MapReduce LMTrainer.  It processes the same input text documents (one
+ * transcript per line) with the same NgramTranscriptAnalyzer, and sums the
+ * ngram observations with the same semantics as the NgramReducer, but does so
+ * with the Spark RDD API.  Spark keeps intermediate results in memory rather
+ * than materializing Mapper output to disk, and reuses executor JVMs across
+ * tasks.
+ *
+ * The output is a single ngram count listing ordered by ngram order (all
+ * unigrams, then all bigrams, and so on), one "ngram[TAB]count" record per
+ * line.  The part files of the output directory are range partitioned in that
+ * order, so concatenating them (e.g., 'hadoop fs -getmerge') yields a count
+ * document in the format read by ripley.speechtools.LMCompiler.MRKVTextReader.
+ *
+ * Iterative retraining over the same corpus (e.g., counting models of
+ * several orders, or recounting while adjusting downstream parameters) reads
+ * and tokenizes the input once: persistNgrams(...) keeps the tokenized corpus
+ * in executor memory (spilling to disk), and train(ngrams, order, ...) counts
+ * the ngrams up to any order within that of the trainer from it.  The caller
+ * unpersists the ngrams when done with them.
+ *
+ * If no Spark master is provided the trainer runs in Spark local mode, which
+ * is intended for tests and for small corpora on a single machine.
+ * Possible Usage:  spark-submit --class ripley.speechtools.client.SparkLMTrainer \
+ *                  [--conf spark.ripley.ngram.order=5] \
+ *                  [ripleyjar] [inputFilePath] [outputFilePath]
+ *
+ * @author kyle
+ *
+ */
+public class SparkLMTrainer implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private static final String APP_NAME = "RipleySparkLMTrainer";
+  private static final String LOCAL_MASTER = "local[*]";
+  // Spark only passes properties prefixed with "spark." to the application
+  public static final String ORDER_KEY = "spark." + NgramMapper.ORDER_KEY;
+
+  private final int minNgramSize;
+  private final int maxNgramSize;
+
+  public SparkLMTrainer(int minNgramSize, int maxNgramSize) {
+    this.minNgramSize = minNgramSize;
+    this.maxNgramSize = maxNgramSize;
+  }
+
+  /**
+   * Tokenizes the transcripts into ngrams with the NgramTranscriptAnalyzer.
+   * One analyzer is created per partition rather than per transcript, and the
+   * ngrams of a partition are produced lazily, a transcript at a time, so a
+   * partition is never held in memory as a whole.
+   * @param transcripts - one transcript sentence per element
+   * @return
+   */
+  public JavaRDD<String> tokenize(JavaRDD<String> transcripts) {
+    final int minSize = this.minNgramSize;
+    final int maxSize = this.maxNgramSize;
+
+    return transcripts.mapPartitions(
+        new FlatMapFunction<Iterator<String>, String>() {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          public Iterable<String> call(final Iterator<String> lines) {
+            // Spark takes the iterator of the result once
+            return new Iterable<String>() {
+              @Override
+              public Iterator<String> iterator() {
+                return new NgramIterator(lines,
+                    new NgramTranscriptAnalyzer(minSize, maxSize));
+              }
+            };
+          }
+        });
+  }
+
+  /**
+   * Tokenizes the transcripts and persists the ngrams, serialized in memory
+   * and spilling to disk, so that repeated trainings over the same corpus
+   * do not re-read and re-tokenize it.  The ngrams are computed by the first
+   * training and reused by the later ones; the caller releases them with
+   * unpersist() when done.
+   * @param transcripts - one transcript sentence per element
+   * @return
+   */
+  public JavaRDD<String> persistNgrams(JavaRDD<String> transcripts) {
+    return tokenize(transcripts).persist(StorageLevel.MEMORY_AND_DISK_SER());
+  }
+
+  /**
+   * Iterates over the ngrams of the transcripts of a partition, analyzing the
+   * next transcript once the ngrams of the previous one are consumed.  The
+   * analyzer is closed when the transcripts are exhausted.
+   */
+  private static class NgramIterator implements Iterator<String> {
+    private final Iterator<String> lines;
+    private final NgramTranscriptAnalyzer analyzer;
+    private Iterator<String> lineNgrams;
+
+    NgramIterator(Iterator<String> lines, NgramTranscriptAnalyzer analyzer) {
+      this.lines = lines;
+      this.analyzer = analyzer;
+      this.lineNgrams = Collections.<String>emptyList().iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (false == lineNgrams.hasNext()) {
+        if (false == lines.hasNext()) {
+          analyzer.close();
+          return false;
+        }
+        try {
+          lineNgrams = analyzer.ngrams(lines.next()).iterator();
+        } catch (IOException e) {
+          // Analysis reads an in-memory string, and does not fail on I/O
+          throw new RuntimeException(e);
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public String next() {
+      if (false == hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return lineNgrams.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Counts the tokenized ngrams.  The reduceByKey aggregation combines
+   * observations on the map side before the shuffle, and matches the
+   * summation done by the NgramReducer.  The result is sorted by ngram order
+   * and then lexically.
+   * @param ngrams - output of tokenize(...)
+   * @return
+   */
+  public JavaPairRDD<String, Integer> count(JavaRDD<String> ngrams) {
+    return count(ngrams, maxNgramSize);
+  }
+
+  /**
+   * Counts the tokenized ngrams of at most maxOrder words, e.g. of persisted
+   * ngrams tokenized up to a higher order.
+   * @param ngrams - output of tokenize(...) or persistNgrams(...)
+   * @param maxOrder - within [1, the maximum ngram size of the trainer]
+   * @return
+   */
+  public JavaPairRDD<String, Integer> count(JavaRDD<String> ngrams,
+      final int maxOrder) {
+    if (1 > maxOrder || maxNgramSize < maxOrder) {
+      throw new IllegalArgumentException("Unsupported ngram order " + maxOrder
+          + "; the ngrams are tokenized up to order " + maxNgramSize);
+    }
+    if (maxNgramSize > maxOrder) {
+      ngrams = ngrams.filter(new Function<String, Boolean>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Boolean call(String ngram) {
+          int words = 1;
+          int space = ngram.indexOf(' ');
+          while (0 <= space && words <= maxOrder) {
+            words++;
+            space = ngram.indexOf(' ', space + 1);
+          }
+          return words <= maxOrder;
+        }
+      });
+    }
+
+    JavaPairRDD<String, Integer> ngramCounts = ngrams.mapToPair(
+        new PairFunction<String, String, Integer>() {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          public Tuple2<String, Integer> call(String ngram) {
+            return new Tuple2<String, Integer>(ngram, 1);
+          }
+        }).reduceByKey(
+        new Function2<Integer, Integer, Integer>() {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          public Integer call(Integer count1, Integer count2) {
+            return count1 + count2;
+          }
+        });
+
+    return ngramCounts.sortByKey(new NgramOrderComparator(), true);
+  }
+
+  /**
+   * Runs the full counting pipeline from the input path to the output path.
+   * @param sc
+   * @param inputPath - input data path (file or directory)
+   * @param outputPath - output directory for the ordered ngram count listing
+   */
+  public void train(JavaSparkContext sc, String inputPath, String outputPath) {
+    // The ngrams are consumed once, by the map side of the reduceByKey
+    // shuffle, whose output the sort reuses, so they are not persisted
+    train(tokenize(sc.textFile(inputPath)), maxNgramSize, outputPath);
+  }
+
+  /**
+   * Counts the ngrams of at most maxOrder words of tokenized transcripts,
+   * typically persisted with persistNgrams(...) for repeated trainings.
+   * @param ngrams - output of tokenize(...) or persistNgrams(...)
+   * @param maxOrder - within [1, the maximum ngram size of the trainer]
+   * @param outputPath - output directory for the ordered ngram count listing
+   */
+  public void train(JavaRDD<String> ngrams, int maxOrder, String outputPath) {
+    count(ngrams, maxOrder).map(
+        new Function<Tuple2<String, Integer>, String>() {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          public String call(Tuple2<String, Integer> ngramCount) {
+            // Same record layout as the TextOutputFormat of the Hadoop job
+            return ngramCount._1() + "\t" + ngramCount._2();
+          }
+        }).saveAsTextFile(outputPath);
+  }
+
+  /**
+   * Reads the ngram order from spark.ripley.ngram.order, with the bounds of
+   * NgramMapper.getOrder(...).
+   * @param conf
+   * @return the ngram order
+   * @throws IllegalArgumentException if the order is out of bounds
+   */
+  public static int getOrder(SparkConf conf) {
+    int order = conf.getInt(ORDER_KEY, NgramMapper.DEFAULT_ORDER);
+    if (2 > order || NgramMapper.MAX_ORDER < order) {
+      throw new IllegalArgumentException("Unsupported ngram order " + order
+          + "; " + ORDER_KEY + " must be within [2, " + NgramMapper.MAX_ORDER
+          + "]");
+    }
+    return order;
+  }
+
+  /**
+   * The main method below represents the entry point for the Spark
+   * application to go from text files with independent line entries to an
+   * intermediate ngram count document.
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    // Ensure correct number of inputs.
+    if (2 != args.length) {
+      System.out.println("Expected usage: "
+          + "spark-submit --class ripley.speechtools.client.SparkLMTrainer "
+          + "[ripleyjar] [inputFilePath] [outputFilePath]");
+      System.exit(1);
+    }
+
+    SparkConf sparkConf = new SparkConf().setAppName(APP_NAME);
+    if (false == sparkConf.contains("spark.master")) {
+      sparkConf.setMaster(LOCAL_MASTER);
+    }
+    // Counts the orders up to spark.ripley.ngram.order, as the Hadoop
+    // MapReduce LMTrainer does with ripley.ngram.order
+    SparkLMTrainer trainer = new SparkLMTrainer(2, getOrder(sparkConf));
+    JavaSparkContext sc = new JavaSparkContext(sparkConf);
+
+    try {
+      trainer.train(sc, args[0], args[1]);
+    } finally {
+      sc.stop();
+    }
+  }
+}
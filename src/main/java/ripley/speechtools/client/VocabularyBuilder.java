@@ -0,0 +1,222 @@
+package ripley.speechtools.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.reduce.LongSumReducer;
+
+import ripley.speechtools.mapper.NgramMapper;
+import ripley.speechtools.mapper.WordCountMapper;
+
+/**
+ * The VocabularyBuilder runs the first pass of a training run with a fixed
+ * vocabulary.  A word counting job (WordCountMapper, with LongSumReducer as
+ * combiner and reducer) counts the words of the training data, and the
+ * vocabulary is then selected from the word counts on the client:
+ *   ripley.vocabulary.size     - keep at most this many of the most frequent
+ *                                words (0 for no limit)
+ *   ripley.vocabulary.mincount - keep only words seen at least this often (1)
+ * Ties in count are broken by the words' lexical order, so the vocabulary is
+ * deterministic.  The vocabulary is written to [outputDir]/vocabulary.txt,
+ * one word per line followed by its count, most frequent first.
+ *
+ * The ngram counting job then ships the vocabulary to its map tasks through
+ * the distributed cache, and the mappers replace every other word with <unk>
+ * (see NgramMapper and VocabularyFilter).  A vocabulary from an earlier run
+ * may be reused by setting ripley.vocabulary.file, which skips this pass.
+ *
+ * @author kyle
+ *
+ */
+public class VocabularyBuilder {
+  public static final String VOCABULARY_SIZE_KEY = "ripley.vocabulary.size";
+  public static final String MIN_COUNT_KEY = "ripley.vocabulary.mincount";
+  public static final String VOCABULARY_FILE_NAME = "vocabulary.txt";
+
+  /**
+   * A word and its count in the training data.
+   */
+  private static class WordCount {
+    private final String word;
+    private final long count;
+
+    WordCount(String word, long count) {
+      this.word = word;
+      this.count = count;
+    }
+  }
+
+  // Most frequent first, then in lexical order
+  private static final Comparator<WordCount> BY_FREQUENCY =
+      new Comparator<WordCount>() {
+    @Override
+    public int compare(WordCount wc1, WordCount wc2) {
+      if (wc1.count != wc2.count) {
+        return (wc1.count > wc2.count) ? -1 : 1;
+      }
+      return wc1.word.compareTo(wc2.word);
+    }
+  };
+
+  private VocabularyBuilder() {
+  }
+
+  /**
+   * Tells whether the configuration asks for a vocabulary to be selected.
+   * @param conf
+   * @return
+   */
+  public static boolean isEnabled(Configuration conf) {
+    return 0 < conf.getInt(VOCABULARY_SIZE_KEY, 0)
+        || 1 < conf.getLong(MIN_COUNT_KEY, 1);
+  }
+
+  /**
+   * Counts the words of the training data at inputPath, and selects the
+   * vocabulary configured by ripley.vocabulary.size and
+   * ripley.vocabulary.mincount.
+   * @param conf
+   * @param inputPath - input file or directory containing training data
+   * @param outputDir - directory receiving the word counts and vocabulary
+   * @return path of the vocabulary file
+   * @throws Exception
+   */
+  public static Path buildVocabulary(Configuration conf, Path inputPath,
+      Path outputDir) throws Exception {
+    Job job = createJob(conf, inputPath, outputDir);
+    if (false == job.waitForCompletion(false)) {
+      throw new IOException("Vocabulary job failed: " + job.getJobID());
+    }
+    return selectVocabulary(outputDir.getFileSystem(conf), outputDir,
+        conf.getInt(VOCABULARY_SIZE_KEY, 0), conf.getLong(MIN_COUNT_KEY, 1));
+  }
+
+  /**
+   * Creates the word counting job without submitting it.
+   * @param conf
+   * @param inputPath
+   * @param outputDir
+   * @return
+   * @throws IOException
+   */
+  public static Job createJob(Configuration conf, Path inputPath,
+      Path outputDir) throws IOException {
+    Job job = Job.getInstance(conf);
+    job.setJarByClass(VocabularyBuilder.class);
+    job.setMapperClass(WordCountMapper.class);
+    job.setCombinerClass(LongSumReducer.class);
+    job.setReducerClass(LongSumReducer.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(LongWritable.class);
+    job.setOutputFormatClass(TextOutputFormat.class);
+
+    // Read the training data as the ngram counting job does
+    LMTrainer.configureInput(job, conf, inputPath);
+    FileOutputFormat.setOutputPath(job, outputDir);
+    return job;
+  }
+
+  /**
+   * Selects the vocabulary from the word counts of the job output in
+   * wordCountDir, and writes it to wordCountDir/vocabulary.txt.  Only the
+   * selected words are held in memory.
+   * @param fs
+   * @param wordCountDir
+   * @param size - maximum number of words, or 0 for no limit
+   * @param minCount - minimum count of a word
+   * @return path of the vocabulary file
+   * @throws IOException
+   */
+  public static Path selectVocabulary(FileSystem fs, Path wordCountDir,
+      int size, long minCount) throws IOException {
+    // With a size limit the least frequent selected word is at the head
+    PriorityQueue<WordCount> selected = new PriorityQueue<WordCount>(
+        Math.max(1, (0 < size) ? size + 1 : 1024),
+        Collections.reverseOrder(BY_FREQUENCY));
+
+    FileStatus[] statuses = fs.listStatus(wordCountDir);
+    Arrays.sort(statuses);
+    for (FileStatus status : statuses) {
+      if (false == status.getPath().getName().startsWith("part-")) {
+        continue;
+      }
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          fs.open(status.getPath()), StandardCharsets.UTF_8));
+      try {
+        String line;
+        while (null != (line = reader.readLine())) {
+          int separator = line.lastIndexOf('\t');
+          if (0 > separator) {
+            continue;
+          }
+          long count = Long.parseLong(line.substring(separator + 1).trim());
+          if (count < minCount) {
+            continue;
+          }
+          selected.add(new WordCount(line.substring(0, separator), count));
+          if (0 < size && selected.size() > size) {
+            selected.poll();
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+
+    List<WordCount> vocabulary = new ArrayList<WordCount>(selected);
+    Collections.sort(vocabulary, BY_FREQUENCY);
+
+    Path vocabularyFile = new Path(wordCountDir, VOCABULARY_FILE_NAME);
+    PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+        fs.create(vocabularyFile, true), StandardCharsets.UTF_8));
+    try {
+      for (WordCount wordCount : vocabulary) {
+        pw.println(wordCount.word + "\t" + wordCount.count);
+      }
+    } finally {
+      pw.close();
+    }
+    return vocabularyFile;
+  }
+
+  /**
+   * Builds the vocabulary ahead of the ngram counting job if the
+   * configuration asks for one and none is given with ripley.vocabulary.file,
+   * and sets ripley.vocabulary.file to the built vocabulary.  The word counts
+   * and vocabulary are kept in [outputPath]-vocabulary.
+   * @param conf
+   * @param inputPath
+   * @param outputPath - output path of the ngram counting job
+   * @throws Exception
+   */
+  public static void prepare(Configuration conf, Path inputPath,
+      Path outputPath) throws Exception {
+    if (false == isEnabled(conf)
+        || null != conf.get(NgramMapper.VOCABULARY_FILE_KEY)) {
+      return;
+    }
+    Path vocabularyDir = new Path(outputPath.getParent(),
+        outputPath.getName() + "-vocabulary");
+    Path vocabulary = buildVocabulary(conf, inputPath, vocabularyDir);
+    conf.set(NgramMapper.VOCABULARY_FILE_KEY, vocabulary.toString());
+  }
+}
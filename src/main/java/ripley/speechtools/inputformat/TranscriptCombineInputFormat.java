@@ -0,0 +1,106 @@
+package ripley.speechtools.inputformat;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+
+/**
+ * The TranscriptCombineInputFormat packs many small transcript files into
+ * each input split, as opposed to the TextInputFormat which creates at least
+ * one split (and so one map task) per input file.  Transcripts are commonly
+ * stored as one small file per utterance, in which case the TextInputFormat
+ * launches a map task for every few lines of training data.
+ *
+ * Splits are filled up to a configurable target size, and the underlying
+ * CombineFileInputFormat builds the splits from blocks on the same node first,
+ * then from blocks on the same rack, so the locality of the packed files is
+ * preserved where possible.  Records are lines of text, keyed by the offset of
+ * the line within its file, exactly as with the TextInputFormat.  Plain text
+ * and compressed files (e.g., .gz) are supported, as are tar archives
+ * (optionally compressed, e.g., .tar.gz or .tgz) whose member files are read
+ * one after another.  See TranscriptFileRecordReader.
+ *
+ * The target split size is read from the configuration property
+ * ripley.input.split.maxsize in bytes.
+ *
+ * @author kyle
+ *
+ */
+public class TranscriptCombineInputFormat extends CombineFileInputFormat<LongWritable, Text> {
+  public static final String SPLIT_MAX_SIZE_KEY = "ripley.input.split.maxsize";
+  public static final long DEFAULT_SPLIT_MAX_SIZE = 128L * 1024L * 1024L;
+
+  private static final String[] ARCHIVE_SUFFIXES = { ".tar", ".tar.gz", ".tgz",
+    ".tar.bz2", ".tbz2" };
+
+  /**
+   * Sets the target split size from the job configuration before the splits
+   * are computed by the CombineFileInputFormat.
+   * @param job
+   * @return
+   * @throws IOException
+   */
+  @Override
+  public List<InputSplit> getSplits(JobContext job) throws IOException {
+    Configuration conf = job.getConfiguration();
+    setMaxSplitSize(conf.getLong(SPLIT_MAX_SIZE_KEY, DEFAULT_SPLIT_MAX_SIZE));
+    return super.getSplits(job);
+  }
+
+  /**
+   * Archives and files compressed with a non-splittable codec are read
+   * from beginning to end by a single record reader.
+   * @param context
+   * @param file
+   * @return
+   */
+  @Override
+  protected boolean isSplitable(JobContext context, Path file) {
+    if (true == isArchive(file)) {
+      return false;
+    }
+    final CompressionCodec codec = new CompressionCodecFactory(
+        context.getConfiguration()).getCodec(file);
+    if (null == codec) {
+      return true;
+    }
+    return codec instanceof SplittableCompressionCodec;
+  }
+
+  @Override
+  public RecordReader<LongWritable, Text> createRecordReader(InputSplit split,
+      TaskAttemptContext context) throws IOException {
+    return new CombineFileRecordReader<LongWritable, Text>(
+        (CombineFileSplit) split, context, TranscriptFileRecordReader.class);
+  }
+
+  /**
+   * Determines whether the file is a (possibly compressed) tar archive from
+   * the file name.
+   * @param file
+   * @return
+   */
+  public static boolean isArchive(Path file) {
+    String name = file.getName().toLowerCase();
+    for (String suffix : ARCHIVE_SUFFIXES) {
+      if (true == name.endsWith(suffix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
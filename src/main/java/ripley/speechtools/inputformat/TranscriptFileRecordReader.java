@@ -0,0 +1,160 @@
+package ripley.speechtools.inputformat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+
+/**
+ * The TranscriptFileRecordReader reads the lines of a single file packed in a
+ * CombineFileSplit by the TranscriptCombineInputFormat.  The
+ * CombineFileRecordReader creates one of these readers for each file of the
+ * split in turn, via the (CombineFileSplit, TaskAttemptContext, Integer)
+ * constructor.
+ *
+ * Plain text and compressed text files are delegated to the Hadoop
+ * LineRecordReader, which handles compression codecs and split boundaries.
+ * Tar archives are decompressed (if needed) and each regular member file is
+ * read line by line, so that archives of many per-utterance transcripts need
+ * not be unpacked before training.  For archives the key is the line offset
+ * in the uncompressed archive stream.
+ *
+ * @author kyle
+ *
+ */
+public class TranscriptFileRecordReader extends RecordReader<LongWritable, Text> {
+  private final CombineFileSplit combineSplit;
+  private final int index;
+
+  // Reader for plain or compressed text files
+  private LineRecordReader lineReader;
+
+  // Readers for tar archives
+  private FSDataInputStream archiveFileStream;
+  private TarArchiveInputStream archiveStream;
+  private BufferedReader archiveEntryReader;
+  private long archiveLength;
+  private long archiveLineOffset;
+
+  private LongWritable key;
+  private Text value;
+
+  public TranscriptFileRecordReader(CombineFileSplit split,
+      TaskAttemptContext context, Integer index) {
+    this.combineSplit = split;
+    this.index = index;
+  }
+
+  @Override
+  public void initialize(InputSplit split, TaskAttemptContext context)
+      throws IOException, InterruptedException {
+    Configuration conf = context.getConfiguration();
+    Path file = combineSplit.getPath(index);
+
+    if (true == TranscriptCombineInputFormat.isArchive(file)) {
+      FileSystem fs = file.getFileSystem(conf);
+      InputStream is;
+
+      archiveLength = fs.getFileStatus(file).getLen();
+      archiveFileStream = fs.open(file);
+      CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(file);
+      if (null != codec) {
+        is = codec.createInputStream(archiveFileStream);
+      } else {
+        is = archiveFileStream;
+      }
+      archiveStream = new TarArchiveInputStream(is);
+      key = new LongWritable();
+      value = new Text();
+    } else {
+      lineReader = new LineRecordReader();
+      lineReader.initialize(new FileSplit(file, combineSplit.getOffset(index),
+          combineSplit.getLength(index), combineSplit.getLocations()), context);
+    }
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException, InterruptedException {
+    if (null != lineReader) {
+      return lineReader.nextKeyValue();
+    }
+
+    String line = null;
+    while (null == line) {
+      if (null == archiveEntryReader) {
+        // Advance to the next regular file in the archive
+        TarArchiveEntry entry = archiveStream.getNextTarEntry();
+        while (null != entry && false == entry.isFile()) {
+          entry = archiveStream.getNextTarEntry();
+        }
+        if (null == entry) {
+          return false;
+        }
+        // The reader is not closed between entries, as closing it would
+        // close the archive stream
+        archiveEntryReader = new BufferedReader(
+            new InputStreamReader(archiveStream, StandardCharsets.UTF_8));
+      }
+      line = archiveEntryReader.readLine();
+      if (null == line) {
+        archiveEntryReader = null;
+      }
+    }
+
+    key.set(archiveLineOffset);
+    value.set(line);
+    archiveLineOffset += line.length() + 1;
+    return true;
+  }
+
+  @Override
+  public LongWritable getCurrentKey() {
+    return (null != lineReader) ? lineReader.getCurrentKey() : key;
+  }
+
+  @Override
+  public Text getCurrentValue() {
+    return (null != lineReader) ? lineReader.getCurrentValue() : value;
+  }
+
+  @Override
+  public float getProgress() throws IOException {
+    if (null != lineReader) {
+      return lineReader.getProgress();
+    }
+    if (0 == archiveLength) {
+      return 0.0f;
+    }
+    return Math.min(1.0f, archiveFileStream.getPos() / (float) archiveLength);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (null != lineReader) {
+      lineReader.close();
+    }
+    if (null != archiveStream) {
+      archiveStream.close();
+    } else if (null != archiveFileStream) {
+      archiveFileStream.close();
+    }
+  }
+}
@@ -0,0 +1,267 @@
+package ripley.speechtools.mapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+
+import edu.berkeley.nlp.lm.StringWordIndexer;
+
+import ripley.speechtools.LMCompiler.BackoffModel;
+import ripley.speechtools.LMCompiler.KneserNeyLMCompiler;
+
+/**
+ * The NbestRescoreMapper scores the hypotheses of recognizer N-best lists with
+ * a compiled language model, for the NbestRescorer job.  Each input line holds
+ * one hypothesis:
+ *   utteranceId[TAB]acousticScore[TAB]hypothesis
+ * and is emitted keyed by its utterance, with the value
+ *   combinedScore[TAB]acousticScore[TAB]lmScore[TAB]hypothesis
+ * for the NbestRescoreReducer to rank.  Lines of another form are counted as
+ * MALFORMED and skipped.
+ *
+ * The language model score is the log10 probability of the hypothesis,
+ * lower cased, between the sentence start and end symbols (which are added
+ * unless the hypothesis already holds them).  Words the model cannot score
+ * (words outside its vocabulary, when the model has no <unk>) are left out of
+ * the score and counted, as SRILM does.  The combined score is
+ *   acoustic.weight * acousticScore + lm.weight * lmScore
+ *     + word.penalty * words + oov.penalty * unscored words
+ * with the configuration properties:
+ *   ripley.rescore.lm.weight       - language model scale (1.0)
+ *   ripley.rescore.acoustic.weight - acoustic model scale (1.0)
+ *   ripley.rescore.word.penalty    - score added per word (0.0)
+ *   ripley.rescore.oov.penalty     - score added per unscored word (0.0)
+ *
+ * The model is a binary BackoffModel named by ripley.rescore.model, which the
+ * job ships through the distributed cache.  It is memory-mapped from the
+ * task's working directory rather than parsed, so a task starts in the time it
+ * takes to read the vocabulary, and the tasks running on a node share the
+ * model's pages in the page cache instead of each holding a copy on its heap.
+ * Within a JVM running several tasks the model is loaded once.
+ *
+ * The hypotheses of an N-best list mostly share their first words, so the
+ * hypotheses of a split are scored as a batch: the running score after every
+ * word of the previous hypothesis is kept, and a hypothesis is only scored
+ * from the first word where it departs from the previous one.
+ *
+ * @author kyle
+ *
+ */
+public class NbestRescoreMapper extends Mapper<LongWritable, Text, Text, Text> {
+  public static final String MODEL_FILE_KEY = "ripley.rescore.model";
+  public static final String LM_WEIGHT_KEY = "ripley.rescore.lm.weight";
+  public static final String ACOUSTIC_WEIGHT_KEY = "ripley.rescore.acoustic.weight";
+  public static final String WORD_PENALTY_KEY = "ripley.rescore.word.penalty";
+  public static final String OOV_PENALTY_KEY = "ripley.rescore.oov.penalty";
+
+  private static final char FIELD_SEPARATOR = '\t';
+  private static final String START_SYMBOL = "<s>";
+  private static final String END_SYMBOL = "</s>";
+
+  /**
+   * Counters reporting the rescored input.
+   */
+  public enum Rescore {
+    HYPOTHESES,
+    MALFORMED,
+    OOV_WORDS,
+    REUSED_WORDS
+  }
+
+  // The model of the last task run in this JVM
+  private static String loadedModelFile;
+  private static BackoffModel loadedModel;
+  private static StringWordIndexer loadedWordIndexer;
+
+  private BackoffModel model;
+  private StringWordIndexer wordIndexer;
+  private int startIndex;
+  private int endIndex;
+  private double lmWeight;
+  private double acousticWeight;
+  private double wordPenalty;
+  private double oovPenalty;
+
+  // The previous hypothesis and its running scores, see score(...)
+  private int[] words = new int[64];
+  private int numWords;
+  private double[] prefixLogProbs = new double[64];
+  private int[] prefixOovs = new int[64];
+  private int lastOovs;
+
+  // Output objects are reused, as context.write(...) serializes immediately
+  private final Text utteranceText = new Text();
+  private final Text scoreText = new Text();
+
+  /**
+   * Maps the model and reads the scoring weights.
+   * @param context
+   * @throws IOException
+   */
+  @Override
+  public void setup(Context context) throws IOException {
+    Configuration conf = context.getConfiguration();
+    loadModel(conf);
+    startIndex = wordIndexer.getIndexPossiblyUnk(START_SYMBOL);
+    endIndex = wordIndexer.getIndexPossiblyUnk(END_SYMBOL);
+    lmWeight = conf.getDouble(LM_WEIGHT_KEY, 1.0);
+    acousticWeight = conf.getDouble(ACOUSTIC_WEIGHT_KEY, 1.0);
+    wordPenalty = conf.getDouble(WORD_PENALTY_KEY, 0.0);
+    oovPenalty = conf.getDouble(OOV_PENALTY_KEY, 0.0);
+    numWords = 0;
+  }
+
+  /**
+   * Scores a single hypothesis.
+   * @param key
+   * @param value
+   * @param context
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void map(LongWritable key, Text value, Context context)
+      throws IOException, InterruptedException {
+    String line = value.toString();
+    int first = line.indexOf(FIELD_SEPARATOR);
+    int second = (0 > first) ? -1 : line.indexOf(FIELD_SEPARATOR, first + 1);
+    if (0 >= first || 0 > second) {
+      context.getCounter(Rescore.MALFORMED).increment(1);
+      return;
+    }
+
+    String utterance = line.substring(0, first).trim();
+    String hypothesis = line.substring(second + 1).trim();
+    double acousticScore;
+    try {
+      acousticScore = Double.parseDouble(line.substring(first + 1, second).trim());
+    } catch (NumberFormatException ex) {
+      context.getCounter(Rescore.MALFORMED).increment(1);
+      return;
+    }
+
+    int reused = index(hypothesis);
+    double lmScore = score(reused);
+    int hypothesisWords = numWords - 2;
+    double combinedScore = acousticWeight * acousticScore + lmWeight * lmScore
+        + wordPenalty * hypothesisWords + oovPenalty * lastOovs;
+
+    context.getCounter(Rescore.HYPOTHESES).increment(1);
+    context.getCounter(Rescore.OOV_WORDS).increment(lastOovs);
+    context.getCounter(Rescore.REUSED_WORDS).increment(Math.max(0, reused - 1));
+
+    utteranceText.set(utterance);
+    scoreText.set(String.format(Locale.ROOT, "%.6f\t%s\t%.6f\t%s",
+        combinedScore, line.substring(first + 1, second).trim(), lmScore,
+        hypothesis));
+    context.write(utteranceText, scoreText);
+  }
+
+  /**
+   * Replaces the words of the previous hypothesis with those of hypothesis,
+   * between the sentence start and end symbols.
+   * @param hypothesis
+   * @return the number of leading words shared with the previous hypothesis
+   */
+  private int index(String hypothesis) {
+    String normalized = NgramMapper.normalize(hypothesis);
+    String[] tokens = normalized.isEmpty() ? new String[0]
+        : normalized.split(" ");
+    int from = (0 < tokens.length && START_SYMBOL.equals(tokens[0])) ? 1 : 0;
+    int to = (from < tokens.length
+        && END_SYMBOL.equals(tokens[tokens.length - 1]))
+        ? tokens.length - 1 : tokens.length;
+
+    int length = to - from + 2;
+    if (words.length < length) {
+      words = Arrays.copyOf(words, 2 * length);
+      prefixLogProbs = Arrays.copyOf(prefixLogProbs, 2 * length);
+      prefixOovs = Arrays.copyOf(prefixOovs, 2 * length);
+    }
+
+    int shared = (0 < numWords && startIndex == words[0]) ? 1 : 0;
+    boolean sharing = (1 == shared);
+    words[0] = startIndex;
+    for (int i = 1; i < length; i++) {
+      int word = (i < length - 1)
+          ? wordIndexer.getIndexPossiblyUnk(tokens[from + i - 1]) : endIndex;
+      if (true == sharing && i < numWords && word == words[i]) {
+        shared++;
+      } else {
+        sharing = false;
+      }
+      words[i] = word;
+    }
+    numWords = length;
+    return shared;
+  }
+
+  /**
+   * Scores the words of the current hypothesis after the first shared ones,
+   * whose running scores are those of the previous hypothesis.
+   * @param shared
+   * @return the log10 probability of the hypothesis
+   */
+  private double score(int shared) {
+    int order = model.getMaxOrder();
+    double logProb = (0 < shared) ? prefixLogProbs[shared - 1] : 0.0;
+    int oovs = (0 < shared) ? prefixOovs[shared - 1] : 0;
+
+    // The start symbol is given, and scores nothing
+    for (int i = Math.max(1, shared); i < numWords; i++) {
+      double wordLogProb = model.getLogProb(words, Math.max(0, i - order + 1),
+          i + 1);
+      if (Double.NEGATIVE_INFINITY == wordLogProb) {
+        oovs++;
+      } else {
+        logProb += wordLogProb;
+      }
+      prefixLogProbs[i] = logProb;
+      prefixOovs[i] = oovs;
+    }
+    prefixLogProbs[0] = 0.0;
+    prefixOovs[0] = 0;
+    lastOovs = oovs;
+    return logProb;
+  }
+
+  /**
+   * Maps the model named by ripley.rescore.model, from the copy localized by
+   * the distributed cache in the task's working directory if there is one,
+   * unless this JVM has already mapped it.
+   * @param conf
+   * @throws IOException
+   */
+  private void loadModel(Configuration conf) throws IOException {
+    String modelFile = conf.get(MODEL_FILE_KEY);
+    if (null == modelFile) {
+      throw new IOException("No model given with " + MODEL_FILE_KEY);
+    }
+
+    synchronized (NbestRescoreMapper.class) {
+      if (false == modelFile.equals(loadedModelFile)) {
+        Path modelPath = new Path(modelFile);
+        File localCopy = new File(modelPath.getName());
+        StringWordIndexer swi = KneserNeyLMCompiler.createWordIndexer();
+        if (true == localCopy.isFile()) {
+          loadedModel = BackoffModel.load(FileSystem.getLocal(conf),
+              new Path(localCopy.getAbsolutePath()), swi);
+        } else {
+          loadedModel = BackoffModel.load(modelPath.getFileSystem(conf),
+              modelPath, swi);
+        }
+        loadedWordIndexer = swi;
+        loadedModelFile = modelFile;
+      }
+      model = loadedModel;
+      wordIndexer = loadedWordIndexer;
+    }
+  }
+}
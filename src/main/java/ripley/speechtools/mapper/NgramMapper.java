@@ -1,30 +1,163 @@
 package ripley.speechtools.mapper;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.MRJobConfig;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Mapper.Context;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.lucene.analysis.util.CharArraySet;
 
 import ripley.speechtools.analyzer.NgramTranscriptAnalyzer;
+import ripley.speechtools.analyzer.VocabularyFilter;
+import ripley.speechtools.partitioner.NgramOrderPartitioner;
 
 /**
  * The NgramMapper class defines the Mapper for the ngram counting component
  * of the language model training process.
- * 
+ *
+ * Transcripts from a single domain tend to be highly repetitive (e.g., "runway
+ * two six right cleared to land"), so the mapper keeps a bounded, least
+ * recently used cache of the distinct lines seen by the map task.  Each cache
+ * entry holds the ngrams of the line and the number of times the line has been
+ * seen since it was cached.  A line is tokenized only when it enters the cache,
+ * and its ngrams are emitted once, weighted by the number of occurrences, when
+ * the entry is evicted or the task finishes.  The NgramReducer sums the
+ * weights, so the counts are identical to emitting every ngram of every line.
+ *
+ * The number of cached lines is set with the configuration property
+ * ripley.mapper.linecache.size.  A size of zero disables the cache.
+ *
+ * Several domain models (e.g., one per facility) may be counted in a single
+ * pass over a tagged corpus.  The configuration property ripley.domain.mode
+ * selects where the domain of each transcript is found:
+ *   none      - untagged input, ngrams are emitted as is (default)
+ *   field     - each line has the form "domain[TAB]transcript"
+ *   directory - the domain is the name of the directory containing the file
+ * With tagged input the ngrams are emitted as domain qualified keys (see
+ * NgramOrderPartitioner.qualifyWithDomain(...)), which the NgramReducer writes
+ * to a separate set of ngram count outputs per domain.  As the domain names a
+ * directory of the output, a domain field that is empty or holds '/' or ".."
+ * fails the task.
+ *
+ * With the configuration property ripley.ngram.maxorder.only set to true the
+ * mapper emits only the maximum order ngrams and the sentence-initial partial
+ * ngrams of each transcript (see NgramTranscriptAnalyzer.setMaxOrderOnly(...)),
+ * which reduces the volume of the shuffle.  The lower order counts are derived
+ * by the KneserNeyLMCompiler, which must be run with the same property.
+ *
+ * With the configuration property ripley.vocabulary.file set to a vocabulary
+ * file (one word per line, see VocabularyBuilder), words outside the
+ * vocabulary are replaced with <unk> before the ngrams are formed.  The file
+ * is read from the distributed cache when the job shipped it there, and from
+ * its file system otherwise.
+ *
+ * The highest ngram order counted is set with the configuration property
+ * ripley.ngram.order (3 by default, at most 9).  The same property sets the
+ * order of the named outputs of the NgramReducer and of the model compiled by
+ * the KneserNeyLMCompiler, so it must be given to both the counting job and
+ * the compiler.  For orders above 3 the number of distinct ngrams grows with
+ * every order, and ripley.ngram.maxorder.only is recommended to keep the
+ * shuffle to about one ngram per word of the input.
+ *
  * @author kyle
  *
  */
 public class NgramMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
-  
+  public static final String LINE_CACHE_SIZE_KEY = "ripley.mapper.linecache.size";
+  public static final int DEFAULT_LINE_CACHE_SIZE = 10000;
+  public static final String DOMAIN_MODE_KEY = "ripley.domain.mode";
+  public static final String MAX_ORDER_ONLY_KEY = "ripley.ngram.maxorder.only";
+  public static final String VOCABULARY_FILE_KEY = "ripley.vocabulary.file";
+  public static final String ORDER_KEY = "ripley.ngram.order";
+  public static final int DEFAULT_ORDER = 3;
+
+  // berkeleylm limits Kneser-Ney language models to orders below 10
+  public static final int MAX_ORDER = 9;
+
+  /**
+   * Locations of the training domain of a transcript in tagged input.
+   */
+  public enum DomainMode {
+    NONE,
+    FIELD,
+    DIRECTORY
+  }
+
+  // Lines without a domain field are attributed to this domain
+  public static final String DEFAULT_DOMAIN = "default";
+  private static final char DOMAIN_FIELD_SEPARATOR = '\t';
+
+  /**
+   * Counters reporting the effectiveness of the line cache.
+   */
+  public enum LineCache {
+    HITS,
+    MISSES
+  }
+
+  /**
+   * The ngrams of a distinct line and the number of times the line was seen
+   * while cached.
+   */
+  private static class CachedLine {
+    private final String[] ngrams;
+    private int occurrences;
+
+    CachedLine(List<String> ngrams) {
+      this.ngrams = ngrams.toArray(new String[ngrams.size()]);
+      this.occurrences = 0;
+    }
+  }
+
+  private NgramTranscriptAnalyzer analyzer;
+  private LinkedHashMap<String, CachedLine> lineCache;
+  private int lineCacheSize;
+  private DomainMode domainMode;
+
+  // Output objects are reused, as context.write(...) serializes immediately
+  private final Text ngramText = new Text();
+  private final IntWritable ngramCount = new IntWritable();
+
+  /**
+   * The NgramMapper is setup on initialization with the given context.  The
+   * analyzer is created once per map task rather than once per line.
+   * @param context
+   */
+  @Override
+  public void setup(Context context) throws IOException {
+    analyzer = new NgramTranscriptAnalyzer(2,
+        getOrder(context.getConfiguration()));
+    analyzer.setVocabulary(loadVocabulary(context.getConfiguration()));
+    analyzer.setMaxOrderOnly(context.getConfiguration().getBoolean(
+        MAX_ORDER_ONLY_KEY, false));
+
+    domainMode = getDomainMode(context.getConfiguration());
+
+    lineCacheSize = context.getConfiguration().getInt(LINE_CACHE_SIZE_KEY,
+        DEFAULT_LINE_CACHE_SIZE);
+    if (0 < lineCacheSize) {
+      // Access ordered, such that the eldest entry is the least recently used
+      lineCache = new LinkedHashMap<String, CachedLine>(16, 0.75f, true);
+    }
+  }
+
   /**
    * The map function is utilized by the Hadoop MapReduce framework to map
-   * instances of key/value pairs to be input to the generally co-located 
+   * instances of key/value pairs to be input to the generally co-located
    * shuffle phase.  The map function here takes as input a single,
    * independent transcript sentence and attempts to construct word-based
    * ngrams from the text via tokenization by the Lucene library for
@@ -37,36 +170,229 @@ public class NgramMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
    */
   public void map(LongWritable key, Text value, Context context)
       throws IOException, InterruptedException {
-    TokenStream tokenStream = null;
-    String inputText = value.toString();
-    String token;
-    
-    // The (2, 3) input parameters currently hard code the Ngram analyzer to
-    // tokenize the input in preparation for a trigram language model
-    Analyzer analyzer = new NgramTranscriptAnalyzer(2, 3);
-    
+    String transcript = value.toString();
+    String domain = null;
+
+    switch (domainMode) {
+      case FIELD:
+        int separatorIndex = transcript.indexOf(DOMAIN_FIELD_SEPARATOR);
+        if (0 > separatorIndex) {
+          domain = DEFAULT_DOMAIN;
+        } else {
+          domain = transcript.substring(0, separatorIndex);
+          transcript = transcript.substring(separatorIndex + 1);
+          if (false == isValidDomain(domain)) {
+            throw new IOException("Invalid domain \"" + domain + "\" at "
+                + key + "; a domain must be a non-empty name without '/' or"
+                + " \"..\"");
+          }
+        }
+        break;
+      case DIRECTORY:
+        domain = getInputDirectoryName(context);
+        break;
+      default:
+        break;
+    }
+
+    if (null == lineCache) {
+      for (String token : analyzer.ngrams(transcript)) {
+        writeNgram(qualify(domain, token), 1, context);
+      }
+      return;
+    }
+
+    // Lines differing only in case or spacing produce the same ngrams, so the
+    // normalized line is both the cache key and the text that is analyzed.
+    String normalizedLine = normalize(transcript);
+    String cacheKey = qualify(domain, normalizedLine);
+    CachedLine cachedLine = lineCache.get(cacheKey);
+
+    if (null == cachedLine) {
+      context.getCounter(LineCache.MISSES).increment(1);
+      List<String> ngrams = analyzer.ngrams(normalizedLine);
+      if (null != domain) {
+        for (int i = 0; i < ngrams.size(); i++) {
+          ngrams.set(i, qualify(domain, ngrams.get(i)));
+        }
+      }
+      cachedLine = new CachedLine(ngrams);
+      lineCache.put(cacheKey, cachedLine);
+
+      if (lineCache.size() > lineCacheSize) {
+        Iterator<Map.Entry<String, CachedLine>> eldest =
+            lineCache.entrySet().iterator();
+        writeCachedLine(eldest.next().getValue(), context);
+        eldest.remove();
+      }
+    } else {
+      context.getCounter(LineCache.HITS).increment(1);
+    }
+
+    cachedLine.occurrences++;
+
+  } // End map(...)
+
+  /**
+   * Emits the weighted ngrams of the lines remaining in the cache at the end
+   * of the map task, and releases the analyzer.
+   * @param context
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  @Override
+  public void cleanup(Context context)
+      throws IOException, InterruptedException {
     try {
-      tokenStream = analyzer.tokenStream("text", inputText);
-      tokenStream.addAttribute(CharTermAttribute.class);
-
-      // Resets this stream to the beginning. (Required)
-      tokenStream.reset();
-      while (tokenStream.incrementToken()) {
-        token = tokenStream.getAttribute(CharTermAttribute.class).toString();
-        context.write(new Text(token), new IntWritable(1));
+      if (null != lineCache) {
+        for (CachedLine cachedLine : lineCache.values()) {
+          writeCachedLine(cachedLine, context);
+        }
+        lineCache.clear();
       }
-      
-      // Perform end-of-stream operations, e.g. set the final offset.
-      tokenStream.end();   
     } finally {
-      if (null != tokenStream) {
-        tokenStream.close(); // Release resources associated with this stream.
+      // Close resources
+      analyzer.close();
+    }
+  }
+
+  private void writeCachedLine(CachedLine cachedLine, Context context)
+      throws IOException, InterruptedException {
+    for (String ngram : cachedLine.ngrams) {
+      writeNgram(ngram, cachedLine.occurrences, context);
+    }
+  }
+
+  private void writeNgram(String ngram, int count, Context context)
+      throws IOException, InterruptedException {
+    ngramText.set(ngram);
+    ngramCount.set(count);
+    context.write(ngramText, ngramCount);
+  }
+
+  /**
+   * The domain mode of ripley.domain.mode.  Keys are domain qualified (see
+   * NgramOrderPartitioner) exactly when the mode is not NONE, so the
+   * partitioner and the reducer parse domains only then; an untagged ngram
+   * may itself hold the domain separator (e.g., "rwy|27").
+   * @param conf
+   * @return
+   */
+  public static DomainMode getDomainMode(Configuration conf) {
+    return DomainMode.valueOf(conf.get(DOMAIN_MODE_KEY,
+        DomainMode.NONE.name()).trim().toUpperCase(Locale.ROOT));
+  }
+
+  /**
+   * Determines whether a domain read from the input may name the output
+   * directory [base]/[domain] of its ngram counts, i.e., is not empty and
+   * does not hold a path separator or a parent directory reference.
+   * @param domain
+   * @return
+   */
+  public static boolean isValidDomain(String domain) {
+    String name = domain.trim();
+    return false == name.isEmpty() && 0 > name.indexOf('/')
+        && false == name.contains("..");
+  }
+
+  private static String qualify(String domain, String ngram) {
+    if (null == domain) {
+      return ngram;
+    }
+    return NgramOrderPartitioner.qualifyWithDomain(domain, ngram);
+  }
+
+  /**
+   * Determines the name of the directory containing the file currently being
+   * read.  Combined splits (see TranscriptCombineInputFormat) hold many files,
+   * in which case the file currently being read is published in the task
+   * configuration by the CombineFileRecordReader.
+   * @param context
+   * @return
+   */
+  private static String getInputDirectoryName(Context context) {
+    InputSplit split = context.getInputSplit();
+    Path file = null;
+
+    if (split instanceof FileSplit) {
+      file = ((FileSplit) split).getPath();
+    } else {
+      String fileName = context.getConfiguration().get(MRJobConfig.MAP_INPUT_FILE);
+      if (null != fileName) {
+        file = new Path(fileName);
       }
     }
-    
-    // Close resources
-    analyzer.close();
-    
-  } // End map(...)
-  
+
+    if (null == file || null == file.getParent()) {
+      return DEFAULT_DOMAIN;
+    }
+    return file.getParent().getName();
+  }
+
+  /**
+   * The highest ngram order set by ripley.ngram.order.
+   * @param conf
+   * @return
+   * @throws IllegalArgumentException if the order is not within [2, 9]
+   */
+  public static int getOrder(Configuration conf) {
+    int order = conf.getInt(ORDER_KEY, DEFAULT_ORDER);
+    if (2 > order || MAX_ORDER < order) {
+      throw new IllegalArgumentException("Unsupported ngram order " + order
+          + "; " + ORDER_KEY + " must be within [2, " + MAX_ORDER + "]");
+    }
+    return order;
+  }
+
+  /**
+   * Reads the vocabulary named by ripley.vocabulary.file, preferring the
+   * copy localized by the distributed cache in the task's working directory.
+   * @param conf
+   * @return the vocabulary, or null if no vocabulary file is configured
+   * @throws IOException
+   */
+  public static CharArraySet loadVocabulary(Configuration conf)
+      throws IOException {
+    String vocabularyFile = conf.get(VOCABULARY_FILE_KEY);
+    if (null == vocabularyFile) {
+      return null;
+    }
+
+    Path vocabularyPath = new Path(vocabularyFile);
+    File localCopy = new File(vocabularyPath.getName());
+    if (true == localCopy.isFile()) {
+      return VocabularyFilter.readVocabulary(new FileInputStream(localCopy));
+    }
+    return VocabularyFilter.readVocabulary(
+        vocabularyPath.getFileSystem(conf).open(vocabularyPath));
+  }
+
+  /**
+   * Lower cases the line and collapses runs of whitespace to a single space,
+   * mirroring the WhitespaceTokenizer and LowerCaseFilter of the
+   * NgramTranscriptAnalyzer.
+   * @param line
+   * @return
+   */
+  static String normalize(String line) {
+    StringBuilder sb = new StringBuilder(line.length());
+    boolean pendingSpace = false;
+
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (true == Character.isWhitespace(c)) {
+        pendingSpace = (0 < sb.length());
+      } else {
+        if (true == pendingSpace) {
+          sb.append(' ');
+          pendingSpace = false;
+        }
+        sb.append(c);
+      }
+    }
+
+    return sb.toString().toLowerCase(Locale.ROOT);
+  }
+
 }
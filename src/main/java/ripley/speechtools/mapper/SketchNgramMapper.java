@@ -0,0 +1,111 @@
+package ripley.speechtools.mapper;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+
+import ripley.speechtools.analyzer.NgramTranscriptAnalyzer;
+import ripley.speechtools.partitioner.NgramOrderPartitioner;
+import ripley.speechtools.sketch.NgramSketch;
+
+/**
+ * The SketchNgramMapper defines the Mapper for the approximate ngram counting
+ * mode of the LMTrainer (see LMTrainer.APPROXIMATE_KEY).  Instead of emitting
+ * every ngram, the map task adds the ngrams of its transcripts to one
+ * NgramSketch per ngram order, and emits only the sketches, keyed by ngram
+ * order, when the task finishes.  The map output, and so the shuffle, is
+ * therefore a few sketches per map task, whatever the size of the input or
+ * the number of distinct ngrams.  The SketchNgramReducer merges the sketches.
+ *
+ * The size and accuracy of the sketches are set with the configuration
+ * properties below (see CountMinSketch and SpaceSaving):
+ *   ripley.sketch.epsilon - relative error of the count estimates (0.0001)
+ *   ripley.sketch.delta   - probability of exceeding that error (0.01)
+ *   ripley.sketch.topk    - number of most frequent ngrams kept per order
+ *                           (10000)
+ *
+ * @author kyle
+ *
+ */
+public class SketchNgramMapper
+    extends Mapper<LongWritable, Text, IntWritable, NgramSketch> {
+  public static final String EPSILON_KEY = "ripley.sketch.epsilon";
+  public static final String DELTA_KEY = "ripley.sketch.delta";
+  public static final String TOP_K_KEY = "ripley.sketch.topk";
+  public static final double DEFAULT_EPSILON = 0.0001;
+  public static final double DEFAULT_DELTA = 0.01;
+  public static final int DEFAULT_TOP_K = 10000;
+
+  private NgramTranscriptAnalyzer analyzer;
+  private NgramSketch[] sketches;
+
+  /**
+   * Creates the sketches of the map task, one per ngram order.  Words outside
+   * the vocabulary of ripley.vocabulary.file, if set, are counted as <unk>.
+   * @param context
+   * @throws IOException
+   */
+  @Override
+  public void setup(Context context) throws IOException {
+    // Counts the orders up to ripley.ngram.order, as the NgramMapper
+    int order = NgramMapper.getOrder(context.getConfiguration());
+    analyzer = new NgramTranscriptAnalyzer(2, order);
+    analyzer.setVocabulary(NgramMapper.loadVocabulary(context.getConfiguration()));
+    sketches = new NgramSketch[order];
+    for (int i = 0; i < sketches.length; i++) {
+      sketches[i] = createSketch(context.getConfiguration());
+    }
+  }
+
+  /**
+   * Creates an empty sketch sized by the ripley.sketch.* properties.
+   * @param conf
+   * @return
+   */
+  public static NgramSketch createSketch(Configuration conf) {
+    return new NgramSketch(conf.getDouble(EPSILON_KEY, DEFAULT_EPSILON),
+        conf.getDouble(DELTA_KEY, DEFAULT_DELTA),
+        conf.getInt(TOP_K_KEY, DEFAULT_TOP_K));
+  }
+
+  /**
+   * Adds the ngrams of a single transcript sentence to the sketches.
+   * @param key
+   * @param value
+   * @param context
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void map(LongWritable key, Text value, Context context)
+      throws IOException, InterruptedException {
+    for (String ngram : analyzer.ngrams(value.toString())) {
+      int order = NgramOrderPartitioner.getNgramOrder(ngram);
+      if (order <= sketches.length) {
+        sketches[order - 1].add(ngram, 1);
+      }
+    }
+  }
+
+  /**
+   * Emits the sketch of each ngram order, and releases the analyzer.
+   * @param context
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  @Override
+  public void cleanup(Context context)
+      throws IOException, InterruptedException {
+    try {
+      for (int i = 0; i < sketches.length; i++) {
+        context.write(new IntWritable(i + 1), sketches[i]);
+      }
+    } finally {
+      // Close resources
+      analyzer.close();
+    }
+  }
+}
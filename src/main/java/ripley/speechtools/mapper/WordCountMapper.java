@@ -0,0 +1,60 @@
+package ripley.speechtools.mapper;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.lucene.analysis.Analyzer;
+
+import ripley.speechtools.analyzer.NgramTranscriptAnalyzer;
+
+/**
+ * The WordCountMapper emits every word of a transcript with a count of one,
+ * for the vocabulary pass that precedes ngram counting (see
+ * ripley.speechtools.client.VocabularyBuilder).  Words are split and lower
+ * cased by the word analyzer of the NgramTranscriptAnalyzer (see
+ * NgramTranscriptAnalyzer.createWordAnalyzer()), so the vocabulary holds the
+ * words exactly as the VocabularyFilter sees them.  The domain field of tagged input is
+ * skipped (see NgramMapper), as the vocabulary is shared by all domains.
+ *
+ * @author kyle
+ *
+ */
+public class WordCountMapper extends Mapper<LongWritable, Text, Text, LongWritable> {
+  private static final LongWritable ONE = new LongWritable(1);
+
+  private boolean domainField;
+  private Analyzer analyzer;
+
+  // Output objects are reused, as context.write(...) serializes immediately
+  private final Text word = new Text();
+
+  @Override
+  public void setup(Context context) {
+    domainField = NgramMapper.DomainMode.FIELD.name().equalsIgnoreCase(
+        context.getConfiguration().get(NgramMapper.DOMAIN_MODE_KEY, "").trim());
+    analyzer = NgramTranscriptAnalyzer.createWordAnalyzer();
+  }
+
+  @Override
+  public void map(LongWritable key, Text value, Context context)
+      throws IOException, InterruptedException {
+    String transcript = value.toString();
+    if (true == domainField) {
+      transcript = transcript.substring(transcript.indexOf('\t') + 1);
+    }
+
+    for (String token : NgramTranscriptAnalyzer.analyze(analyzer, transcript)) {
+      word.set(token);
+      context.write(word, ONE);
+    }
+  }
+
+  @Override
+  public void cleanup(Context context) {
+    if (null != analyzer) {
+      analyzer.close();
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package ripley.speechtools.partitioner;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * The NgramOrderComparator orders ngrams first by ngram order and then
+ * lexically, such that all unigrams sort before any bigrams, all bigrams
+ * before any trigrams, and so on.  This is the ordering required of the
+ * intermediate ngram count document read by
+ * ripley.speechtools.LMCompiler.MRKVTextReader, and is used by execution
+ * backends that produce a single, sorted count listing rather than one
+ * output per ngram order.
+ * 
+ * The class is Serializable so that it may be shipped with closures to
+ * remote executors (e.g., as the key ordering of a Spark sortByKey).
+ * 
+ * @author kyle
+ *
+ */
+public class NgramOrderComparator implements Comparator<String>, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  @Override
+  public int compare(String ngram1, String ngram2) {
+    int order1 = NgramOrderPartitioner.getNgramOrder(ngram1);
+    int order2 = NgramOrderPartitioner.getNgramOrder(ngram2);
+    
+    if (order1 != order2) {
+      return (order1 < order2) ? -1 : 1;
+    }
+    return ngram1.compareTo(ngram2);
+  }
+}
@@ -1,9 +1,12 @@
 package ripley.speechtools.partitioner;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.lib.partition.KeyFieldBasedPartitioner;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 
+import ripley.speechtools.mapper.NgramMapper;
+
 /**
  * The NgramOrderPartitioner class is intended to group the ngrams counted by
  * the Mapper classes by ngram order.  This is done for the
@@ -19,10 +22,25 @@ import org.apache.hadoop.io.Text;
  * should be routed.  A decision can be made based on your particular problem
  * and bottleneck.
  * 
+ * Keys may be qualified with a training domain (e.g., a facility or airport)
+ * when several domain models are counted in a single pass over the corpus.
+ * A domain qualified key has the form "domain|ngram" (see
+ * DOMAIN_SEPARATOR).  Such keys are partitioned by domain as well as by ngram
+ * order, so that the ngrams of one domain are spread over a run of
+ * consecutive reducers rather than a single one.  Keys are only parsed for
+ * a domain when ripley.domain.mode tags the input (see NgramMapper), as an
+ * untagged ngram may itself hold the separator (e.g., "rwy|27").
+ * 
  * @author kyle
  *
  */
 public class NgramOrderPartitioner extends KeyFieldBasedPartitioner<Text,IntWritable> {
+  // Separates the domain from the ngram in domain qualified keys.  The
+  // separator is attached to the first word of the ngram, so whitespace
+  // based ngram order calculations are unaffected by the domain.
+  public static final char DOMAIN_SEPARATOR = '|';
+
+  private boolean domainTagged;
   
 
   public enum Partitions {
@@ -50,6 +68,17 @@ public class NgramOrderPartitioner extends KeyFieldBasedPartitioner<Text,IntWrit
     public String partitionName() { return this.partitionName; }
 }
   
+  /**
+   * Reads whether the keys are domain qualified from ripley.domain.mode.
+   * @param conf
+   */
+  @Override
+  public void setConf(Configuration conf) {
+    super.setConf(conf);
+    domainTagged = (NgramMapper.DomainMode.NONE
+        != NgramMapper.getDomainMode(conf));
+  }
+
   /**
    * Determines the partition number for a record.  The ripley package recommends
    * for impact in language model training that the number of reduce tasks be
@@ -59,16 +88,70 @@ public class NgramOrderPartitioner extends KeyFieldBasedPartitioner<Text,IntWrit
   @Override
   public int getPartition(Text key, IntWritable value, int numReduceTasks) {
     int partitionID = 0;
+    String k = key.toString();
+    String domain = (true == domainTagged) ? getDomain(k) : null;
 
-      String k = key.toString().trim();
-      if ( true == k.isEmpty() ) {
-        // Default to sending this to the unigram partition
-        partitionID = Partitions.UNIGRAM.partitionID % numReduceTasks;
+      if (null == domain) {
+        partitionID = getNgramOrder(k) % numReduceTasks;
       } else {
-        partitionID = k.split("\\s+").length % numReduceTasks;
+        partitionID = ((domain.hashCode() & Integer.MAX_VALUE)
+            + getNgramOrder(stripDomain(k))) % numReduceTasks;
       }
     
     return partitionID;
   }
   
+  /**
+   * Creates a domain qualified key from a domain and an ngram.  Whitespace
+   * and separator characters in the domain name are replaced, such that the
+   * domain is always parsed back as a single token.
+   * @param domain
+   * @param ngram
+   * @return
+   */
+  public static String qualifyWithDomain(String domain, String ngram) {
+    String cleanDomain = domain.trim().replaceAll("[\\s\\" + DOMAIN_SEPARATOR
+        + "]+", "_");
+    return cleanDomain + DOMAIN_SEPARATOR + ngram;
+  }
+  
+  /**
+   * Returns the domain of a domain qualified key, or null if the key is an
+   * unqualified ngram.
+   * @param key
+   * @return
+   */
+  public static String getDomain(String key) {
+    int separatorIndex = key.indexOf(DOMAIN_SEPARATOR);
+    if (0 > separatorIndex) {
+      return null;
+    }
+    return key.substring(0, separatorIndex);
+  }
+  
+  /**
+   * Returns the ngram of a possibly domain qualified key.
+   * @param key
+   * @return
+   */
+  public static String stripDomain(String key) {
+    return key.substring(key.indexOf(DOMAIN_SEPARATOR) + 1);
+  }
+  
+  /**
+   * Determines the order of an ngram from its whitespace separated words.
+   * An empty ngram defaults to the unigram order, matching the partitioning
+   * of empty keys.
+   * @param ngram
+   * @return
+   */
+  public static int getNgramOrder(String ngram) {
+    String k = ngram.trim();
+    if ( true == k.isEmpty() ) {
+      // Default to sending this to the unigram partition
+      return Partitions.UNIGRAM.partitionID;
+    }
+    return k.split("\\s+").length;
+  }
+  
 }
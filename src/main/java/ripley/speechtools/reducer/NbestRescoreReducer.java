@@ -0,0 +1,91 @@
+package ripley.speechtools.reducer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+
+/**
+ * The NbestRescoreReducer re-ranks the hypotheses of each utterance scored by
+ * the NbestRescoreMapper.  The hypotheses are written best first, i.e., by
+ * descending combined score (ties by hypothesis text), one per line:
+ *   utteranceId[TAB]rank[TAB]combinedScore[TAB]acousticScore[TAB]lmScore[TAB]hypothesis
+ * with ranks counted from 1.  With ripley.rescore.topn set to n only the n
+ * best hypotheses of each utterance are written (e.g., 1 for the rescored
+ * 1-best transcripts); by default all are.
+ *
+ * @author kyle
+ *
+ */
+public class NbestRescoreReducer extends Reducer<Text, Text, Text, Text> {
+  public static final String TOP_N_KEY = "ripley.rescore.topn";
+
+  /**
+   * A scored hypothesis, as emitted by the NbestRescoreMapper.
+   */
+  private static class ScoredHypothesis {
+    private final double combinedScore;
+    private final String fields;
+    private final String hypothesis;
+
+    ScoredHypothesis(String value) {
+      int separator = value.indexOf('\t');
+      this.combinedScore = Double.parseDouble(value.substring(0, separator));
+      this.fields = value;
+      this.hypothesis = value.substring(value.lastIndexOf('\t') + 1);
+    }
+  }
+
+  // Best first, then in lexical order of the hypotheses
+  private static final Comparator<ScoredHypothesis> BY_SCORE =
+      new Comparator<ScoredHypothesis>() {
+    @Override
+    public int compare(ScoredHypothesis h1, ScoredHypothesis h2) {
+      int byScore = Double.compare(h2.combinedScore, h1.combinedScore);
+      if (0 != byScore) {
+        return byScore;
+      }
+      return h1.hypothesis.compareTo(h2.hypothesis);
+    }
+  };
+
+  private int topN;
+  private final List<ScoredHypothesis> hypotheses =
+      new ArrayList<ScoredHypothesis>();
+  private final Text rankedText = new Text();
+
+  @Override
+  public void setup(Context context) {
+    topN = context.getConfiguration().getInt(TOP_N_KEY, 0);
+  }
+
+  /**
+   * Ranks the hypotheses of one utterance.  An N-best list is small enough to
+   * be sorted in memory.
+   * @param key - utterance identifier
+   * @param values - the scored hypotheses of the utterance
+   * @param context
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void reduce(Text key, Iterable<Text> values, Context context)
+      throws IOException, InterruptedException {
+    hypotheses.clear();
+    for (Text value : values) {
+      // The framework reuses the value object, so its contents are copied
+      hypotheses.add(new ScoredHypothesis(value.toString()));
+    }
+    Collections.sort(hypotheses, BY_SCORE);
+
+    int count = (0 < topN) ? Math.min(topN, hypotheses.size())
+        : hypotheses.size();
+    for (int i = 0; i < count; i++) {
+      rankedText.set((i + 1) + "\t" + hypotheses.get(i).fields);
+      context.write(key, rankedText);
+    }
+  }
+}
@@ -4,7 +4,6 @@ import java.io.IOException;
 
 import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapred.JobConf;
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileOutputFormat;
@@ -14,6 +13,7 @@ import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.Reducer.Context;
 import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 
+import ripley.speechtools.mapper.NgramMapper;
 import ripley.speechtools.partitioner.*;
 
 /**
@@ -24,17 +24,28 @@ import ripley.speechtools.partitioner.*;
  * a language model with final probabilities will be done after the writing
  * of ngram counts to file via a map reduce job.
  * 
+ * The ngram counts are written to one output per ngram order beneath the
+ * directory given by the configuration property ripley.ngram.output.base
+ * (by default the HDFS home directory of the user, /user/[user]).  When
+ * ripley.domain.mode tags the input (see NgramMapper), the domain qualified
+ * keys are written without the domain, to the ngram order outputs beneath a
+ * subdirectory of the same name as the domain, i.e.,
+ * [base]/[domain]/[order]-r-[part].  Untagged keys are never parsed for a
+ * domain, as an ngram may itself hold the domain separator.
+ * The outputs are those of the ngram orders up to ripley.ngram.order (see
+ * NgramMapper), named after NgramOrderPartitioner.Partitions.
+ * 
  * @author kyle
  *
  */
 public class NgramReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
-  private NgramOrderPartitioner ngramPartitioner;
-  private MultipleOutputs<Text, IntWritable> mos;
-  private Configuration conf;
+  public static final String OUTPUT_BASE_KEY = "ripley.ngram.output.base";
   
-  public NgramReducer() {
-    ngramPartitioner = new NgramOrderPartitioner();
-  }
+  private MultipleOutputs<Text, IntWritable> mos;
+  private String outputBase;
+  private final Text ngramText = new Text();
+  private int maxOrder;
+  private boolean domainTagged;
   
   /**
    * The NgramReducer is setup on initialization with the given context.
@@ -44,11 +55,15 @@ public class NgramReducer extends Reducer<Text, IntWritable, Text, IntWritable>
   public void setup(Context context) {
     try {
       super.setup(context);
-      this.conf = context.getConfiguration();
     } catch(Exception ex) {
       // Caught exception.  Logging not yet incorporated into Package.
     }
     mos = new MultipleOutputs<Text, IntWritable>(context);
+    outputBase = context.getConfiguration().get(OUTPUT_BASE_KEY,
+        "/user/" + context.getUser());
+    maxOrder = NgramMapper.getOrder(context.getConfiguration());
+    domainTagged = (NgramMapper.DomainMode.NONE
+        != NgramMapper.getDomainMode(context.getConfiguration()));
   }
 
   /**
@@ -68,37 +83,46 @@ public class NgramReducer extends Reducer<Text, IntWritable, Text, IntWritable>
       Context context) throws IOException, InterruptedException {
     String namedOutput = null;
     int sum = 0;
-    int partition = 0;
+    int order = 0;
     IntWritable result;
+    String ngram = key.toString();
+    String domain = (true == domainTagged)
+        ? NgramOrderPartitioner.getDomain(ngram) : null;
+    String baseOutputPath = outputBase;
     
     for (IntWritable val : values) {
       sum += val.get();
     }
     result = new IntWritable(sum);
     
-    // Temporarily hard coded to three partitions for trigram lm creation
-    partition = ngramPartitioner.getPartition(key, result,
-        NgramOrderPartitioner.Partitions.TRIGRAM.partitionID());
-    
-    
-    switch(partition) {
-      case 1:
-        namedOutput = NgramOrderPartitioner.Partitions.UNIGRAM.partitionName();
-        break;
-      case 2:
-        namedOutput = NgramOrderPartitioner.Partitions.BIGRAM.partitionName();
-        break;
-      case 3:
-        namedOutput = NgramOrderPartitioner.Partitions.TRIGRAM.partitionName();
-        break;
-      default:
-        // Place data in largest ngram partition, as there are known, additional
-        // dangers in placing a high order ngram in lower order ngram partitions
-        namedOutput = NgramOrderPartitioner.Partitions.TRIGRAM.partitionName();
-        break;
+    // Domain qualified ngrams are written without the domain beneath a
+    // directory per domain
+    if (null != domain) {
+      ngram = NgramOrderPartitioner.stripDomain(ngram);
+      baseOutputPath = outputBase + "/" + domain;
     }
+    ngramText.set(ngram);
     
-    mos.write(namedOutput, key, result, "/user/" + context.getUser() + "/" + namedOutput);
+    // Place data above the configured order in the largest ngram partition,
+    // as there are known, additional dangers in placing a high order ngram in
+    // lower order ngram partitions
+    order = Math.min(NgramOrderPartitioner.getNgramOrder(ngram), maxOrder);
+    namedOutput = NgramOrderPartitioner.Partitions.values()[order - 1]
+        .partitionName();
+    
+    mos.write(namedOutput, ngramText, result, baseOutputPath + "/" + namedOutput);
+  }
+  
+  /**
+   * Closes the named outputs, which flushes the ngram counts written through
+   * them.  Without this the named output files may be left empty.
+   * @param context
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  @Override
+  public void cleanup(Context context) throws IOException, InterruptedException {
+    mos.close();
   }
   
 }
\ No newline at end of file
@@ -0,0 +1,99 @@
+package ripley.speechtools.reducer;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+
+import ripley.speechtools.partitioner.NgramOrderPartitioner;
+import ripley.speechtools.sketch.NgramSketch;
+import ripley.speechtools.sketch.SpaceSaving;
+
+/**
+ * The SketchNgramReducer merges the per ngram order sketches of all map tasks
+ * of the approximate ngram counting mode (see SketchNgramMapper).
+ *
+ * For each ngram order the most frequent ngrams and their estimated counts
+ * are written, most frequent first, to the named output of the order
+ * (e.g., [output]/trigram-r-00000) in the format of the exact ngram counts.
+ * The merged CountMinSketch of the order is written next to it (e.g.,
+ * [output]/trigram.cms, see CountMinSketch.readFields(...)), from which the
+ * count of any other ngram of the order may be estimated.
+ *
+ * @author kyle
+ *
+ */
+public class SketchNgramReducer
+    extends Reducer<IntWritable, NgramSketch, Text, LongWritable> {
+  public static final String SKETCH_FILE_SUFFIX = ".cms";
+
+  private MultipleOutputs<Text, LongWritable> mos;
+  private final Text ngramText = new Text();
+  private final LongWritable ngramCount = new LongWritable();
+
+  @Override
+  public void setup(Context context) {
+    mos = new MultipleOutputs<Text, LongWritable>(context);
+  }
+
+  /**
+   * Merges the sketches of one ngram order and writes the result.
+   * @param key - ngram order
+   * @param values - the sketches of the map tasks
+   * @param context
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void reduce(IntWritable key, Iterable<NgramSketch> values,
+      Context context) throws IOException, InterruptedException {
+    NgramSketch merged = null;
+    String namedOutput = NgramOrderPartitioner.Partitions.values()[
+        key.get() - 1].partitionName();
+
+    for (NgramSketch sketch : values) {
+      if (null == merged) {
+        // The framework reuses the value object, so the first is copied
+        merged = WritableUtils.clone(sketch, context.getConfiguration());
+      } else {
+        merged.merge(sketch);
+      }
+    }
+    if (null == merged) {
+      return;
+    }
+
+    for (SpaceSaving.Entry entry : merged.getHeavyHitters().getTopK()) {
+      ngramText.set(entry.getItem());
+      ngramCount.set(merged.estimate(entry.getItem()));
+      mos.write(namedOutput, ngramText, ngramCount);
+    }
+
+    FSDataOutputStream os = FileOutputFormat.getWorkOutputPath(context)
+        .getFileSystem(context.getConfiguration())
+        .create(new Path(FileOutputFormat.getWorkOutputPath(context),
+            namedOutput + SKETCH_FILE_SUFFIX));
+    try {
+      merged.getCounts().write(os);
+    } finally {
+      os.close();
+    }
+  }
+
+  /**
+   * Closes the named outputs.
+   * @param context
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  @Override
+  public void cleanup(Context context) throws IOException, InterruptedException {
+    mos.close();
+  }
+}
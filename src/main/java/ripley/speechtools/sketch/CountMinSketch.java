@@ -0,0 +1,168 @@
+package ripley.speechtools.sketch;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * The CountMinSketch estimates the counts of a stream of items (e.g., ngrams)
+ * in a fixed amount of memory, regardless of the number of distinct items.
+ *
+ * The sketch is a table of depth rows by width counters.  Each item is hashed
+ * to one counter per row, and adding an item adds its count to those
+ * counters.  The estimate of an item is the smallest of its counters, which
+ * never underestimates the true count, and with probability at least
+ * (1 - delta) overestimates it by no more than epsilon times the total count
+ * of the stream, for
+ *
+ *   width = ceil(e / epsilon)  and  depth = ceil(ln(1 / delta))
+ *
+ * Sketches of the same dimensions are merged by adding their tables, so
+ * sketches built by independent map tasks combine into the sketch of the
+ * whole corpus.  The sketch is a Hadoop Writable for this purpose.
+ *
+ * Example:  epsilon = 0.0001 and delta = 0.01 give a 5 x 27183 table (about
+ * 1MB), whose estimates for a corpus of 10 million trigrams are within 1000
+ * of the true counts with 99% probability.
+ *
+ * @author kyle
+ *
+ */
+public class CountMinSketch implements Writable {
+  private int depth;
+  private int width;
+  private long[] table;
+  private long totalCount;
+
+  /**
+   * Creates an empty sketch to be filled by readFields(...).
+   */
+  public CountMinSketch() {
+    this(1, 1);
+  }
+
+  public CountMinSketch(double epsilon, double delta) {
+    this((int) Math.ceil(Math.log(1.0 / delta)), (int) Math.ceil(Math.E / epsilon));
+  }
+
+  public CountMinSketch(int depth, int width) {
+    if (depth < 1 || width < 1) {
+      throw new IllegalArgumentException("Invalid sketch dimensions "
+          + depth + " x " + width);
+    }
+    this.depth = depth;
+    this.width = width;
+    this.table = new long[depth * width];
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Sum of the counts of all items added to the sketch.
+   * @return
+   */
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  public void add(String item, long count) {
+    long hash = hash(item);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+
+    for (int row = 0; row < depth; row++) {
+      table[row * width + bucket(h1, h2, row)] += count;
+    }
+    totalCount += count;
+  }
+
+  /**
+   * Estimates the count of an item.  The estimate is never below the true
+   * count.
+   * @param item
+   * @return
+   */
+  public long estimate(String item) {
+    long hash = hash(item);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    long estimate = Long.MAX_VALUE;
+
+    for (int row = 0; row < depth; row++) {
+      estimate = Math.min(estimate, table[row * width + bucket(h1, h2, row)]);
+    }
+    return estimate;
+  }
+
+  /**
+   * Adds the counts of another sketch of the same dimensions to this one.
+   * @param other
+   */
+  public void merge(CountMinSketch other) {
+    if (depth != other.depth || width != other.width) {
+      throw new IllegalArgumentException("Cannot merge a " + other.depth + " x "
+          + other.width + " sketch into a " + depth + " x " + width + " sketch");
+    }
+    for (int i = 0; i < table.length; i++) {
+      table[i] += other.table[i];
+    }
+    totalCount += other.totalCount;
+  }
+
+  // Double hashing, h1 + row * h2, derives the hash of each row from a
+  // single 64 bit hash of the item
+  private int bucket(int h1, int h2, int row) {
+    return ((h1 + row * h2) & Integer.MAX_VALUE) % width;
+  }
+
+  /**
+   * 64 bit FNV-1a hash of the characters of the item, followed by the
+   * MurmurHash3 finalizer to spread the bits of short items.
+   * @param item
+   * @return
+   */
+  static long hash(String item) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < item.length(); i++) {
+      hash ^= item.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(depth);
+    out.writeInt(width);
+    out.writeLong(totalCount);
+    for (long counter : table) {
+      out.writeLong(counter);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    depth = in.readInt();
+    width = in.readInt();
+    totalCount = in.readLong();
+    if (table.length != depth * width) {
+      table = new long[depth * width];
+    }
+    for (int i = 0; i < table.length; i++) {
+      table[i] = in.readLong();
+    }
+  }
+}
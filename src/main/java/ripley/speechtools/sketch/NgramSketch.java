@@ -0,0 +1,84 @@
+package ripley.speechtools.sketch;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * The NgramSketch summarizes the ngrams of a single order in bounded memory
+ * by combining a CountMinSketch, which estimates the count of any ngram, with
+ * a SpaceSaving summary, which identifies the most frequent ngrams.  Both
+ * overestimate counts, so the estimate of a tracked ngram is the smaller of
+ * the two.
+ *
+ * @author kyle
+ *
+ */
+public class NgramSketch implements Writable {
+  private final CountMinSketch counts;
+  private final SpaceSaving heavyHitters;
+
+  /**
+   * Creates an empty sketch to be filled by readFields(...).
+   */
+  public NgramSketch() {
+    this(new CountMinSketch(), new SpaceSaving());
+  }
+
+  /**
+   * @param epsilon - relative error bound of the count estimates
+   * @param delta - probability of exceeding the error bound
+   * @param topK - number of most frequent ngrams tracked
+   */
+  public NgramSketch(double epsilon, double delta, int topK) {
+    this(new CountMinSketch(epsilon, delta), new SpaceSaving(topK));
+  }
+
+  private NgramSketch(CountMinSketch counts, SpaceSaving heavyHitters) {
+    this.counts = counts;
+    this.heavyHitters = heavyHitters;
+  }
+
+  public CountMinSketch getCounts() {
+    return counts;
+  }
+
+  public SpaceSaving getHeavyHitters() {
+    return heavyHitters;
+  }
+
+  public void add(String ngram, long count) {
+    counts.add(ngram, count);
+    heavyHitters.add(ngram, count);
+  }
+
+  /**
+   * Estimated count of the ngram, which is never below its true count.
+   * @param ngram
+   * @return
+   */
+  public long estimate(String ngram) {
+    long estimate = counts.estimate(ngram);
+    long tracked = heavyHitters.getCount(ngram);
+    return (0 <= tracked) ? Math.min(estimate, tracked) : estimate;
+  }
+
+  public void merge(NgramSketch other) {
+    counts.merge(other.counts);
+    heavyHitters.merge(other.heavyHitters);
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    counts.write(out);
+    heavyHitters.write(out);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    counts.readFields(in);
+    heavyHitters.readFields(in);
+  }
+}
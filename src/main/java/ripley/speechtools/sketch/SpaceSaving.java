@@ -0,0 +1,273 @@
+package ripley.speechtools.sketch;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * The SpaceSaving summary keeps the most frequent items (heavy hitters) of a
+ * stream with a fixed number of counters (Metwally, Agrawal and El Abbadi,
+ * "Efficient Computation of Frequent and Top-k Elements in Data Streams").
+ *
+ * While fewer than capacity items have been seen every item is counted
+ * exactly.  Afterwards a new item takes over the counter of the item with the
+ * smallest count, inheriting that count as its possible overestimation
+ * (error).  The count of a tracked item is therefore never below its true
+ * count and at most error above it, and every item whose true count exceeds
+ * the total count divided by capacity is tracked.  The counters are kept in
+ * a binary min-heap, so each addition takes O(log capacity) time.
+ *
+ * Summaries are merged by adding the counters of common items.  An item
+ * missing from a full summary may still have occurred up to that summary's
+ * smallest count, which is added to its count and error to keep the
+ * overestimation guarantee, and the largest capacity counters are kept.
+ *
+ * @author kyle
+ *
+ */
+public class SpaceSaving implements Writable {
+
+  /**
+   * A tracked item with its (over)estimated count and the largest possible
+   * overestimation of that count.
+   */
+  public static final class Entry {
+    private final String item;
+    private final long count;
+    private final long error;
+
+    Entry(String item, long count, long error) {
+      this.item = item;
+      this.count = count;
+      this.error = error;
+    }
+
+    public String getItem() {
+      return item;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getError() {
+      return error;
+    }
+  }
+
+  private static final Comparator<Entry> BY_COUNT_DESCENDING = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry a, Entry b) {
+      if (a.count != b.count) {
+        return (a.count > b.count) ? -1 : 1;
+      }
+      return a.item.compareTo(b.item);
+    }
+  };
+
+  private int capacity;
+  private int size;
+  private String[] items;
+  private long[] counts;
+  private long[] errors;
+  private final Map<String, Integer> positions = new HashMap<String, Integer>();
+
+  /**
+   * Creates an empty summary to be filled by readFields(...).
+   */
+  public SpaceSaving() {
+    this(1);
+  }
+
+  public SpaceSaving(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Invalid capacity " + capacity);
+    }
+    this.capacity = capacity;
+    this.items = new String[capacity];
+    this.counts = new long[capacity];
+    this.errors = new long[capacity];
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Smallest count that an untracked item may have.  Zero until the summary
+   * is full, as every item is tracked until then.
+   * @return
+   */
+  public long getMinCount() {
+    return (size < capacity) ? 0 : counts[0];
+  }
+
+  public void add(String item, long count) {
+    Integer position = positions.get(item);
+
+    if (null != position) {
+      counts[position] += count;
+      siftDown(position);
+    } else if (size < capacity) {
+      set(size, item, count, 0);
+      siftUp(size++);
+    } else {
+      // Replace the item with the smallest count, at the root of the heap
+      long minCount = counts[0];
+      positions.remove(items[0]);
+      set(0, item, minCount + count, minCount);
+      siftDown(0);
+    }
+  }
+
+  /**
+   * Estimated count of the item, or -1 if the item is not tracked.
+   * @param item
+   * @return
+   */
+  public long getCount(String item) {
+    Integer position = positions.get(item);
+    return (null == position) ? -1 : counts[position];
+  }
+
+  /**
+   * The tracked items, in order of decreasing count.
+   * @return
+   */
+  public List<Entry> getTopK() {
+    List<Entry> entries = new ArrayList<Entry>(size);
+    for (int i = 0; i < size; i++) {
+      entries.add(new Entry(items[i], counts[i], errors[i]));
+    }
+    Collections.sort(entries, BY_COUNT_DESCENDING);
+    return entries;
+  }
+
+  /**
+   * Merges another summary into this one, keeping the capacity of this
+   * summary.
+   * @param other
+   */
+  public void merge(SpaceSaving other) {
+    long thisMin = getMinCount();
+    long otherMin = other.getMinCount();
+    Map<String, Entry> merged = new HashMap<String, Entry>();
+
+    for (int i = 0; i < size; i++) {
+      merged.put(items[i], new Entry(items[i], counts[i] + otherMin,
+          errors[i] + otherMin));
+    }
+    for (int i = 0; i < other.size; i++) {
+      Entry existing = merged.get(other.items[i]);
+      if (null == existing) {
+        merged.put(other.items[i], new Entry(other.items[i],
+            other.counts[i] + thisMin, other.errors[i] + thisMin));
+      } else {
+        merged.put(other.items[i], new Entry(other.items[i],
+            existing.count - otherMin + other.counts[i],
+            existing.error - otherMin + other.errors[i]));
+      }
+    }
+
+    List<Entry> entries = new ArrayList<Entry>(merged.values());
+    Collections.sort(entries, BY_COUNT_DESCENDING);
+    clear();
+    for (Entry entry : entries.subList(0, Math.min(capacity, entries.size()))) {
+      set(size, entry.item, entry.count, entry.error);
+      siftUp(size++);
+    }
+  }
+
+  private void clear() {
+    Arrays.fill(items, null);
+    positions.clear();
+    size = 0;
+  }
+
+  private void set(int position, String item, long count, long error) {
+    items[position] = item;
+    counts[position] = count;
+    errors[position] = error;
+    positions.put(item, position);
+  }
+
+  private void swap(int i, int j) {
+    String item = items[i];
+    long count = counts[i];
+    long error = errors[i];
+    set(i, items[j], counts[j], errors[j]);
+    set(j, item, count, error);
+  }
+
+  private void siftUp(int position) {
+    int child = position;
+    while (0 < child) {
+      int parent = (child - 1) >>> 1;
+      if (counts[parent] <= counts[child]) {
+        return;
+      }
+      swap(parent, child);
+      child = parent;
+    }
+  }
+
+  private void siftDown(int position) {
+    int parent = position;
+    while (true) {
+      int smallest = parent;
+      int left = 2 * parent + 1;
+      int right = left + 1;
+      if (left < size && counts[left] < counts[smallest]) {
+        smallest = left;
+      }
+      if (right < size && counts[right] < counts[smallest]) {
+        smallest = right;
+      }
+      if (smallest == parent) {
+        return;
+      }
+      swap(parent, smallest);
+      parent = smallest;
+    }
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(capacity);
+    out.writeInt(size);
+    for (int i = 0; i < size; i++) {
+      Text.writeString(out, items[i]);
+      out.writeLong(counts[i]);
+      out.writeLong(errors[i]);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    capacity = in.readInt();
+    if (items.length != capacity) {
+      items = new String[capacity];
+      counts = new long[capacity];
+      errors = new long[capacity];
+    }
+    clear();
+    size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      set(i, Text.readString(in), in.readLong(), in.readLong());
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package ripley.speechtools.streaming;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * The DirectoryTranscriptSource tails the transcript files of a directory on
+ * any Hadoop FileSystem (e.g., HDFS or the local file system).  Each poll
+ * returns the lines appended to existing files and the lines of files that
+ * appeared since the previous poll, so both writers that append to a log and
+ * writers that drop one file per batch of transcripts are supported.
+ *
+ * Only complete, newline terminated lines are returned.  A trailing line
+ * without a newline is held back until the file has stopped growing for one
+ * poll, so that a line being written is not split in two.  Files whose names
+ * start with '_' or '.' are ignored, so writers may create a file under a
+ * hidden name and rename it once complete.  A file that shrinks is taken to be
+ * rewritten and is read again from its beginning.
+ *
+ * The read position of each file is kept in memory only; a restarted source
+ * reads the directory from the beginning.
+ *
+ * @author kyle
+ *
+ */
+public class DirectoryTranscriptSource implements TranscriptSource {
+  // Upper bound on the bytes read from one file per poll, such that a large
+  // backlog is taken in over several polls rather than held in memory at once
+  private static final int MAX_READ_BYTES = 16 * 1024 * 1024;
+
+  /**
+   * Read position of a tailed file.
+   */
+  private static class FileState {
+    // Bytes of the file that were returned as transcripts
+    private long offset;
+    // File length seen by the previous poll
+    private long length = -1;
+  }
+
+  private final FileSystem fs;
+  private final Path directory;
+  private final Map<Path, FileState> files = new HashMap<Path, FileState>();
+
+  public DirectoryTranscriptSource(FileSystem fs, Path directory) {
+    this.fs = fs;
+    this.directory = directory;
+  }
+
+  @Override
+  public List<String> poll() throws IOException {
+    List<String> transcripts = new ArrayList<String>();
+    Set<Path> present = new HashSet<Path>();
+
+    if (false == fs.exists(directory)) {
+      return transcripts;
+    }
+
+    FileStatus[] statuses = fs.listStatus(directory);
+    Arrays.sort(statuses);
+    for (FileStatus status : statuses) {
+      Path file = status.getPath();
+      if (false == status.isFile() || true == isHidden(file)) {
+        continue;
+      }
+      present.add(file);
+
+      FileState state = files.get(file);
+      if (null == state) {
+        state = new FileState();
+        files.put(file, state);
+      }
+      if (status.getLen() < state.offset) {
+        state.offset = 0;
+      }
+      if (status.getLen() > state.offset) {
+        readLines(file, state, status.getLen(), transcripts);
+      }
+      state.length = status.getLen();
+    }
+
+    // Forget files that were removed, e.g., by log rotation
+    files.keySet().retainAll(present);
+    return transcripts;
+  }
+
+  /**
+   * Reads the complete lines between the read position of file and
+   * fileLength, and advances the read position past them.
+   * @param file
+   * @param state
+   * @param fileLength
+   * @param transcripts - receives the lines read
+   * @throws IOException
+   */
+  private void readLines(Path file, FileState state, long fileLength,
+      List<String> transcripts) throws IOException {
+    byte[] buffer = new byte[(int) Math.min(MAX_READ_BYTES,
+        fileLength - state.offset)];
+    FSDataInputStream is = fs.open(file);
+    try {
+      is.readFully(state.offset, buffer);
+    } finally {
+      is.close();
+    }
+
+    // '\n' never occurs inside a multi-byte UTF-8 sequence, so the buffer can
+    // be split into lines before decoding
+    int lineStart = 0;
+    for (int i = 0; i < buffer.length; i++) {
+      if ('\n' == buffer[i]) {
+        addLine(buffer, lineStart, i, transcripts);
+        lineStart = i + 1;
+      }
+    }
+
+    // The unterminated end of a file that did not grow since the previous
+    // poll is complete.  So is a line filling the whole buffer, which would
+    // otherwise never be read.
+    boolean atEnd = (state.offset + buffer.length == fileLength);
+    if ((lineStart < buffer.length && true == atEnd
+        && fileLength == state.length)
+        || (0 == lineStart && MAX_READ_BYTES == buffer.length)) {
+      addLine(buffer, lineStart, buffer.length, transcripts);
+      lineStart = buffer.length;
+    }
+    state.offset += lineStart;
+  }
+
+  private static void addLine(byte[] buffer, int start, int end,
+      List<String> transcripts) {
+    if (end > start && '\r' == buffer[end - 1]) {
+      end--;
+    }
+    String line = new String(buffer, start, end - start, StandardCharsets.UTF_8);
+    if (false == line.trim().isEmpty()) {
+      transcripts.add(line);
+    }
+  }
+
+  private static boolean isHidden(Path path) {
+    return path.getName().startsWith("_") || path.getName().startsWith(".");
+  }
+
+  @Override
+  public void close() throws IOException {
+    files.clear();
+  }
+}
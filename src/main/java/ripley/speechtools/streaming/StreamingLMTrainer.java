@@ -0,0 +1,298 @@
+package ripley.speechtools.streaming;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import edu.berkeley.nlp.lm.StringWordIndexer;
+
+import ripley.speechtools.LMCompiler.KneserNeyLMCompiler;
+import ripley.speechtools.analyzer.NgramTranscriptAnalyzer;
+import ripley.speechtools.mapper.NgramMapper;
+
+/**
+ * The StreamingLMTrainer is a long-running alternative to the batch LMTrainer
+ * and KneserNeyLMCompiler for transcripts that arrive continuously.  It polls
+ * a TranscriptSource (by default a DirectoryTranscriptSource tailing the input
+ * directory), counts the ngrams of new transcripts in a sliding time window
+ * (see WindowedNgramCounts), and periodically compiles the windowed counts
+ * into an ARPA format language model snapshot with the KneserNeyLMCompiler.
+ * New phraseology thus reaches a model within one snapshot interval, and
+ * phraseology that falls out of use leaves it once its window has passed.
+ *
+ * The trainer is configured with the following properties:
+ *   ripley.streaming.poll.interval     - milliseconds between polls (10000)
+ *   ripley.streaming.bucket.millis     - length of a window bucket (60000)
+ *   ripley.streaming.window.buckets    - number of buckets in the window (60)
+ *   ripley.streaming.decay             - count weight per bucket of age (1.0)
+ *   ripley.streaming.snapshot.interval - milliseconds between snapshots (300000)
+ *   ripley.streaming.snapshots.retain  - number of snapshots kept (5)
+ *   ripley.streaming.snapshot.failures - consecutive failed snapshots after
+ *                                        which the trainer stops (3)
+ *   ripley.streaming.duration          - milliseconds to run for, or 0 to run
+ *                                        until stopped (0)
+ * The ripley.compiler.* properties of the KneserNeyLMCompiler (e.g.,
+ * ripley.compiler.store) apply to the snapshot compilation.  A next word
+ * index (see ripley.compiler.nextword.topk) and a binary model (see
+ * ripley.compiler.binary) are kept along with each snapshot as
+ * model-[...].arpa.next and model-[...].arpa.bin.
+ *
+ * Each snapshot is compiled to a hidden file in the model directory and then
+ * renamed to model-[yyyyMMdd-HHmmss-SSS].arpa (UTC), so readers never see a
+ * partial model, and the newest model is the one with the greatest name.
+ * Older snapshots beyond the retained number are deleted.  Transcripts are
+ * only counted in memory, so a restarted trainer starts from an empty window.
+ * A snapshot that fails is logged with its stack trace and retried at the
+ * next interval, so a transient file system error costs one snapshot, while
+ * a persistent one stops the trainer rather than leaving the newest model
+ * silently stale.
+ *
+ * Possible Usage:  hadoop --config [hadoopConfigDir] jar [ripleyjar] \
+ *                  ripley.speechtools.streaming.StreamingLMTrainer \
+ *                  [-D ripley.streaming.snapshot.interval=300000] \
+ *                  [transcriptDirPath] [modelDirPath]
+ *
+ * @author kyle
+ *
+ */
+public class StreamingLMTrainer extends Configured implements Tool {
+  public static final String POLL_INTERVAL_KEY = "ripley.streaming.poll.interval";
+  public static final String BUCKET_MILLIS_KEY = "ripley.streaming.bucket.millis";
+  public static final String WINDOW_BUCKETS_KEY = "ripley.streaming.window.buckets";
+  public static final String DECAY_KEY = "ripley.streaming.decay";
+  public static final String SNAPSHOT_INTERVAL_KEY = "ripley.streaming.snapshot.interval";
+  public static final String SNAPSHOTS_RETAIN_KEY = "ripley.streaming.snapshots.retain";
+  public static final String SNAPSHOT_FAILURES_KEY = "ripley.streaming.snapshot.failures";
+  public static final String DURATION_KEY = "ripley.streaming.duration";
+
+  public static final long DEFAULT_POLL_INTERVAL = 10000L;
+  public static final long DEFAULT_BUCKET_MILLIS = 60000L;
+  public static final int DEFAULT_WINDOW_BUCKETS = 60;
+  public static final double DEFAULT_DECAY = 1.0;
+  public static final long DEFAULT_SNAPSHOT_INTERVAL = 300000L;
+  public static final int DEFAULT_SNAPSHOTS_RETAIN = 5;
+  public static final int DEFAULT_SNAPSHOT_FAILURES = 3;
+
+  private static final Log LOG = LogFactory.getLog(StreamingLMTrainer.class);
+
+  private static final String SNAPSHOT_PREFIX = "model-";
+  private static final String SNAPSHOT_SUFFIX = ".arpa";
+  private static final String SNAPSHOT_DATE_FORMAT = "yyyyMMdd-HHmmss-SSS";
+
+  private WindowedNgramCounts counts;
+  private int failures;
+  private volatile boolean stopped = false;
+
+  public int run(String[] allArgs) throws Exception {
+    String[] args = new GenericOptionsParser(getConf(), allArgs).getRemainingArgs();
+
+    // Ensure correct number of inputs.
+    if (2 != args.length) {
+      System.out.println("Expected Usage: "
+          + "hadoop --config [hadoopConfigDir] jar [ripleyjar] "
+          + "ripley.speechtools.streaming.StreamingLMTrainer "
+          + "[transcriptDirPath] [modelDirPath]");
+      return 1;
+    }
+
+    FileSystem fs = FileSystem.get(getConf());
+    TranscriptSource source = new DirectoryTranscriptSource(fs,
+        new Path(args[0]));
+    try {
+      train(source, new Path(args[1]));
+    } finally {
+      source.close();
+    }
+    return 0;
+  }
+
+  /**
+   * Polls the source and writes model snapshots to modelDir until stop() is
+   * called or the configured duration has passed.  A snapshot that fails to
+   * compile is logged and skipped, such that the trainer keeps running, until
+   * ripley.streaming.snapshot.failures snapshots have failed in a row.
+   * @param source
+   * @param modelDir
+   * @throws IOException if the source fails, or too many snapshots failed
+   * @throws InterruptedException
+   */
+  public void train(TranscriptSource source, Path modelDir)
+      throws IOException, InterruptedException {
+    Configuration conf = getConf();
+    long pollInterval = conf.getLong(POLL_INTERVAL_KEY, DEFAULT_POLL_INTERVAL);
+    long snapshotInterval = conf.getLong(SNAPSHOT_INTERVAL_KEY,
+        DEFAULT_SNAPSHOT_INTERVAL);
+    long duration = conf.getLong(DURATION_KEY, 0L);
+    long start = System.currentTimeMillis();
+    long lastSnapshot = start;
+    long now;
+    int maxFailures = Math.max(1, conf.getInt(SNAPSHOT_FAILURES_KEY,
+        DEFAULT_SNAPSHOT_FAILURES));
+    failures = 0;
+
+    counts = new WindowedNgramCounts(
+        conf.getLong(BUCKET_MILLIS_KEY, DEFAULT_BUCKET_MILLIS),
+        conf.getInt(WINDOW_BUCKETS_KEY, DEFAULT_WINDOW_BUCKETS),
+        conf.getDouble(DECAY_KEY, DEFAULT_DECAY));
+
+    // Counts the orders up to ripley.ngram.order, as the NgramMapper
+    NgramTranscriptAnalyzer analyzer = new NgramTranscriptAnalyzer(2,
+        NgramMapper.getOrder(conf));
+    try {
+      while (false == stopped) {
+        now = System.currentTimeMillis();
+        for (String transcript : source.poll()) {
+          counts.addAll(analyzer.ngrams(transcript), now);
+        }
+
+        boolean finished = (0 < duration && now - start >= duration);
+        if (now - lastSnapshot >= snapshotInterval || true == finished) {
+          trySnapshot(modelDir, now, maxFailures);
+          lastSnapshot = now;
+        }
+        if (true == finished) {
+          break;
+        }
+        Thread.sleep(Math.max(0, Math.min(pollInterval,
+            lastSnapshot + snapshotInterval - System.currentTimeMillis())));
+      }
+    } finally {
+      analyzer.close();
+    }
+  }
+
+  /**
+   * Asks a running train(...) call to return after its current poll.
+   */
+  public void stop() {
+    stopped = true;
+  }
+
+  /**
+   * Writes a snapshot, logging a failure unless maxFailures snapshots have
+   * now failed in a row.
+   * @param modelDir
+   * @param timeMillis
+   * @param maxFailures
+   * @throws IOException once maxFailures consecutive snapshots have failed
+   */
+  private void trySnapshot(Path modelDir, long timeMillis, int maxFailures)
+      throws IOException {
+    try {
+      snapshot(modelDir, timeMillis);
+      failures = 0;
+    } catch (Exception ex) {
+      failures++;
+      if (failures >= maxFailures) {
+        throw new IOException(failures + " consecutive model snapshots to "
+            + modelDir + " failed", ex);
+      }
+      LOG.warn("Failed to write model snapshot to " + modelDir + " ("
+          + failures + " of " + maxFailures + " consecutive failures)", ex);
+    }
+  }
+
+  /**
+   * Compiles the windowed counts at timeMillis to a new model snapshot in
+   * modelDir and deletes the snapshots beyond the retained number.
+   * @param modelDir
+   * @param timeMillis
+   * @return path of the snapshot, or null if the window holds no ngrams
+   * @throws Exception
+   */
+  public Path snapshot(Path modelDir, long timeMillis) throws Exception {
+    Configuration conf = getConf();
+    FileSystem fs = FileSystem.get(conf);
+    Iterator<String> countLines = counts.toCountLines(timeMillis);
+    if (false == countLines.hasNext()) {
+      return null;
+    }
+
+    SimpleDateFormat dateFormat = new SimpleDateFormat(SNAPSHOT_DATE_FORMAT);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    String name = SNAPSHOT_PREFIX + dateFormat.format(new Date(timeMillis))
+        + SNAPSHOT_SUFFIX;
+    Path hidden = new Path(modelDir, "_" + name);
+    Path target = new Path(modelDir, name);
+
+    fs.mkdirs(modelDir);
+    new KneserNeyLMCompiler(new StringWordIndexer(), conf).compileModel(
+        countLines, fs, hidden);
+    // A next word index or binary model, if configured, is published before
+    // its model
+    Path hiddenIndex = KneserNeyLMCompiler.getNextWordIndexPath(hidden);
+    if (true == fs.exists(hiddenIndex)) {
+      rename(fs, hiddenIndex, KneserNeyLMCompiler.getNextWordIndexPath(target));
+    }
+    Path hiddenBinary = KneserNeyLMCompiler.getBinaryModelPath(hidden);
+    if (true == fs.exists(hiddenBinary)) {
+      rename(fs, hiddenBinary, KneserNeyLMCompiler.getBinaryModelPath(target));
+    }
+    rename(fs, hidden, target);
+
+    deleteOldSnapshots(fs, modelDir,
+        conf.getInt(SNAPSHOTS_RETAIN_KEY, DEFAULT_SNAPSHOTS_RETAIN));
+    return target;
+  }
+
+  private static void rename(FileSystem fs, Path source, Path target)
+      throws IOException {
+    fs.delete(target, false);
+    if (false == fs.rename(source, target)) {
+      throw new IOException("Failed to rename " + source + " to " + target);
+    }
+  }
+
+  private static void deleteOldSnapshots(FileSystem fs, Path modelDir,
+      int retain) throws IOException {
+    List<Path> snapshots = new ArrayList<Path>();
+    FileStatus[] statuses = fs.listStatus(modelDir);
+    Arrays.sort(statuses);
+
+    for (FileStatus status : statuses) {
+      String name = status.getPath().getName();
+      if (true == name.startsWith(SNAPSHOT_PREFIX)
+          && true == name.endsWith(SNAPSHOT_SUFFIX)) {
+        snapshots.add(status.getPath());
+      }
+    }
+    for (int i = 0; i < snapshots.size() - Math.max(1, retain); i++) {
+      fs.delete(snapshots.get(i), false);
+      fs.delete(KneserNeyLMCompiler.getNextWordIndexPath(snapshots.get(i)),
+          false);
+      fs.delete(KneserNeyLMCompiler.getBinaryModelPath(snapshots.get(i)),
+          false);
+    }
+  }
+
+  /**
+   * Returns the windowed counts of the current train(...) call.
+   * @return
+   */
+  public WindowedNgramCounts getCounts() {
+    return counts;
+  }
+
+  public static void main(String[] args) throws Exception {
+    // ToolRunner handles generic command-line options
+    Configuration conf = new Configuration();
+    int res = ToolRunner.run(conf, new StreamingLMTrainer(), args);
+    System.exit(res);
+  }
+}
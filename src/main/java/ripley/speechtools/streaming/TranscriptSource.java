@@ -0,0 +1,28 @@
+package ripley.speechtools.streaming;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A TranscriptSource delivers transcripts to the StreamingLMTrainer as they
+ * arrive, one transcript per element, in the format of the batch training
+ * input (see ripley.speechtools.client.LMTrainer).  The source is polled
+ * periodically rather than read to the end, so that message queues or
+ * network feeds can stand in for the DirectoryTranscriptSource without
+ * changes to the trainer.
+ *
+ * @author kyle
+ *
+ */
+public interface TranscriptSource extends Closeable {
+
+  /**
+   * Returns the transcripts that arrived since the previous call, or an empty
+   * list if there are none.  The call must not block waiting for new
+   * transcripts.
+   * @return
+   * @throws IOException
+   */
+  List<String> poll() throws IOException;
+}
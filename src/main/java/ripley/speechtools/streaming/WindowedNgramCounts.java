@@ -0,0 +1,177 @@
+package ripley.speechtools.streaming;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.berkeley.nlp.lm.collections.Iterators;
+
+import ripley.speechtools.partitioner.NgramOrderComparator;
+
+/**
+ * The WindowedNgramCounts keep the ngram counts of a sliding time window over
+ * a stream of transcripts.  The window is divided into numBuckets buckets of
+ * bucketMillis milliseconds each, and every ngram occurrence is counted in the
+ * bucket of its arrival time.  When time moves past the window, whole buckets
+ * expire, so that the memory held is bounded by the traffic of one window and
+ * phraseology that is no longer used drops out of the model.
+ *
+ * Within the window, counts may additionally decay exponentially with the age
+ * of their bucket:  an occurrence counts decay^age, with age 0 for the newest
+ * bucket.  A decay of 1.0 weighs the whole window equally.  Decayed counts are
+ * rounded to whole counts for the Kneser-Ney estimation, and ngrams whose
+ * rounded count is 0 are left out.  Since the count of an ngram never exceeds
+ * the count of its suffixes or prefixes within a bucket, and weighting and
+ * rounding preserve that, no ngram is kept whose lower order ngrams are not.
+ *
+ * Example:  with 60 buckets of 60000ms and a decay of 0.95, the counts cover
+ *           the last hour, with transcripts of the last minute weighing about
+ *           20 times more than those of an hour ago.
+ *
+ * The class is not thread-safe.
+ *
+ * @author kyle
+ *
+ */
+public class WindowedNgramCounts {
+  private final long bucketMillis;
+  private final int numBuckets;
+  private final double decay;
+
+  // Bucket start time -> ngram counts of the bucket
+  private final TreeMap<Long, Map<String, Long>> buckets =
+      new TreeMap<Long, Map<String, Long>>();
+
+  public WindowedNgramCounts(long bucketMillis, int numBuckets, double decay) {
+    if (0 >= bucketMillis || 0 >= numBuckets) {
+      throw new IllegalArgumentException("Bucket length and number of buckets "
+          + "must be positive: " + bucketMillis + ", " + numBuckets);
+    }
+    if (0.0 >= decay || 1.0 < decay) {
+      throw new IllegalArgumentException("Decay must be in (0, 1]: " + decay);
+    }
+    this.bucketMillis = bucketMillis;
+    this.numBuckets = numBuckets;
+    this.decay = decay;
+  }
+
+  /**
+   * Counts one occurrence of each of the ngrams of a transcript that arrived
+   * at timeMillis.  Ngrams arriving before the window of the newest bucket
+   * are ignored.
+   * @param ngrams
+   * @param timeMillis
+   */
+  public void addAll(Iterable<String> ngrams, long timeMillis) {
+    long bucketStart = bucketStart(timeMillis);
+    if (false == buckets.isEmpty()
+        && bucketStart <= buckets.lastKey() - numBuckets * bucketMillis) {
+      return;
+    }
+
+    Map<String, Long> bucket = buckets.get(bucketStart);
+    if (null == bucket) {
+      bucket = new HashMap<String, Long>();
+      buckets.put(bucketStart, bucket);
+      expire(buckets.lastKey());
+    }
+    for (String ngram : ngrams) {
+      Long previous = bucket.get(ngram);
+      bucket.put(ngram, (null == previous) ? 1L : previous + 1L);
+    }
+  }
+
+  /**
+   * Drops the buckets that lie entirely before the window ending at
+   * timeMillis.
+   * @param timeMillis
+   */
+  public void expire(long timeMillis) {
+    long oldestStart = bucketStart(timeMillis) - (numBuckets - 1) * bucketMillis;
+    buckets.headMap(oldestStart).clear();
+  }
+
+  /**
+   * Returns the decayed counts of the window ending at timeMillis as the
+   * lines of an ordered ngram count document (see
+   * ripley.speechtools.LMCompiler.MRKVTextReader), with the ngrams of each
+   * order in sorted order.  Expired buckets are dropped first.
+   * @param timeMillis
+   * @return
+   */
+  public Iterator<String> toCountLines(long timeMillis) {
+    expire(timeMillis);
+
+    final Map<String, Long> counts = getCounts(timeMillis);
+    String[] ngrams = counts.keySet().toArray(new String[counts.size()]);
+    Arrays.sort(ngrams, new NgramOrderComparator());
+    return new Iterators.Transform<String, String>(
+        Arrays.asList(ngrams).iterator()) {
+      @Override
+      protected String transform(String next) {
+        return next + "\t" + counts.get(next);
+      }
+    };
+  }
+
+  /**
+   * Sums the counts of the buckets of the window ending at timeMillis,
+   * weighted by decay^age and rounded.  Ngrams with a rounded count of 0 are
+   * left out.
+   * @param timeMillis
+   * @return
+   */
+  public Map<String, Long> getCounts(long timeMillis) {
+    Map<String, Double> weighted = new HashMap<String, Double>();
+    long newestStart = bucketStart(timeMillis);
+
+    for (Map.Entry<Long, Map<String, Long>> bucket : buckets.entrySet()) {
+      long age = Math.max(0, (newestStart - bucket.getKey()) / bucketMillis);
+      if (age >= numBuckets) {
+        continue;
+      }
+      double weight = Math.pow(decay, age);
+      for (Map.Entry<String, Long> count : bucket.getValue().entrySet()) {
+        Double previous = weighted.get(count.getKey());
+        double value = weight * count.getValue();
+        weighted.put(count.getKey(), (null == previous) ? value : previous + value);
+      }
+    }
+
+    Map<String, Long> counts = new HashMap<String, Long>();
+    for (Map.Entry<String, Double> count : weighted.entrySet()) {
+      long rounded = Math.round(count.getValue());
+      if (0 < rounded) {
+        counts.put(count.getKey(), rounded);
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Returns the number of buckets currently held.
+   * @return
+   */
+  public int getNumBuckets() {
+    return buckets.size();
+  }
+
+  /**
+   * Returns the number of distinct ngrams currently held, summed over the
+   * buckets.
+   * @return
+   */
+  public long size() {
+    long size = 0;
+    for (Map<String, Long> bucket : buckets.values()) {
+      size += bucket.size();
+    }
+    return size;
+  }
+
+  private long bucketStart(long timeMillis) {
+    return timeMillis - (timeMillis % bucketMillis);
+  }
+}
@@ -0,0 +1,63 @@
+package ripley.speechtools.LMCompiler;
+
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.StringWordIndexer;
+
+import junit.framework.TestCase;
+
+/**
+ * Prunes a small Kneser-Ney model.
+ */
+public class EntropyPrunerTest extends TestCase {
+
+  /**
+   * With unigrams p(a) = 0.5, p(b) = 0.3 and p(c) = 0.2, and the explicit
+   * bigrams p(b | a) = 0.6 and p(c | a) = 0.2, the context a backs off with
+   * bow(a) = (1 - 0.8) / (1 - 0.5) = 0.4.  Removing (a, c) changes the
+   * backoff to bow'(a) = 0.4 / 0.7, and the relative entropy of p(. | a) to
+   *   D = p(a) * [p(c | a) * log(0.2 / (bow'(a) * 0.2))
+   *               + p(a | a) * log(0.2 / (bow'(a) * 0.5))] = 0.0088136...
+   * so that the perplexity grows by 10^D - 1.
+   */
+  public void testScoreIsTheRelativePerplexityIncrease() {
+    assertEquals(0.0205014094, EntropyPruner.score(Math.log10(0.2),
+        Math.log10(0.2), Math.log10(0.4), 0.2, 0.5, Math.log10(0.5)), 1e-9);
+
+    // Removing an ngram that equals its backoff estimate costs nothing
+    assertEquals(0.0, EntropyPruner.score(Math.log10(0.4 * 0.2),
+        Math.log10(0.2), Math.log10(0.4), 0.2, 0.5, Math.log10(0.5)), 1e-9);
+  }
+
+  public void testPruningReachesTheTargetNgrams() {
+    StringWordIndexer swi = KneserNeyLMCompiler.createWordIndexer();
+    BackoffModel model = estimate(swi);
+    long target = model.size() / 3;
+
+    BackoffModel pruned = new EntropyPruner(swi, 0.0, target, 0, 2)
+        .prune(model);
+
+    assertEquals(target, pruned.size());
+    assertEquals(model.size(0), pruned.size(0));
+    assertEquals(0, pruned.getDropped());
+  }
+
+  public void testPruningReachesTheThreshold() {
+    StringWordIndexer swi = KneserNeyLMCompiler.createWordIndexer();
+    BackoffModel model = estimate(swi);
+
+    BackoffModel pruned = new EntropyPruner(swi, 1e-4, 0, 0, 1).prune(model);
+
+    assertTrue(pruned.size() < model.size());
+    assertSame(pruned, new EntropyPruner(swi, 1e-4, 0, 0, 1).prune(pruned));
+  }
+
+  private static BackoffModel estimate(StringWordIndexer swi) {
+    TrieKneserNeyLmReaderCallback estimator =
+        new TrieKneserNeyLmReaderCallback(swi, 3, false, new ConfigOptions());
+    new MRKVTextReader(TrieKneserNeyLmReaderCallbackTest.countLines(3, 200)
+        .iterator(), swi).parse(estimator);
+    BackoffModel model = new BackoffModel(3);
+    estimator.parse(model);
+    return model;
+  }
+}
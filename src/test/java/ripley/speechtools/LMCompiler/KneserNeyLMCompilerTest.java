@@ -0,0 +1,158 @@
+package ripley.speechtools.LMCompiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+import junit.framework.TestCase;
+
+import ripley.speechtools.mapper.NgramMapper;
+
+/**
+ * Compiles ngram count documents and snapshots on the local file system.
+ */
+public class KneserNeyLMCompilerTest extends TestCase {
+  private File dir;
+  private File counts;
+  private List<String> lines;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = Files.createTempDirectory("lm-compiler").toFile();
+    counts = new File(dir, "counts.txt");
+    lines = TrieKneserNeyLmReaderCallbackTest.countLines(3, 200);
+    Files.write(counts.toPath(), lines, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  public void testSnapshotRoundTripEstimatesTheSameModel() throws Exception {
+    Configuration conf = newConf();
+    conf.set(KneserNeyLMCompiler.STORE_KEY, "trie");
+    String trie = compile(conf, counts, "trie.arpa");
+    conf.set(KneserNeyLMCompiler.SNAPSHOT_KEY,
+        new File(dir, "trie.counts").getPath());
+    assertEquals(trie, compile(conf, counts, "trie-snapshot.arpa"));
+
+    // Taking a snapshot leaves the model of the hash store unchanged
+    conf = newConf();
+    conf.set(KneserNeyLMCompiler.STORE_KEY, "hash");
+    String hash = compile(conf, counts, "hash.arpa");
+    conf.set(KneserNeyLMCompiler.SNAPSHOT_KEY,
+        new File(dir, "hash.counts").getPath());
+    assertEquals(hash, compile(conf, counts, "hash-snapshot.arpa"));
+
+    // Each store compiles the same model from either snapshot as from the
+    // count documents
+    for (String snapshot : new String[] { "trie.counts", "hash.counts" }) {
+      File snapshotFile = new File(dir, snapshot);
+      conf = newConf();
+      conf.set(KneserNeyLMCompiler.STORE_KEY, "trie");
+      assertEquals(snapshot, trie, compile(conf, snapshotFile,
+          "trie-loaded.arpa"));
+      conf.set(KneserNeyLMCompiler.STORE_KEY, "hash");
+      assertEquals(snapshot, hash, compile(conf, snapshotFile,
+          "hash-loaded.arpa"));
+    }
+  }
+
+  public void testEstimationOptionsApplyToBothStores() throws Exception {
+    Configuration conf = newConf();
+    conf.set(KneserNeyLMCompiler.KN_DISCOUNTS_KEY, "0.5, 0.6, 0.7");
+    conf.set(KneserNeyLMCompiler.KN_MIN_COUNTS_KEY, "0,0,0");
+    conf.set(KneserNeyLMCompiler.STORE_KEY, "hash");
+    Map<String, String> hash = TrieKneserNeyLmReaderCallbackTest.toMap(
+        compile(conf, counts, "hash.arpa"));
+    conf.set(KneserNeyLMCompiler.STORE_KEY, "trie");
+    Map<String, String> trie = TrieKneserNeyLmReaderCallbackTest.toMap(
+        compile(conf, counts, "trie.arpa"));
+
+    assertEquals(hash, trie);
+    assertEquals(TrieKneserNeyLmReaderCallbackTest.toMap(
+        TrieKneserNeyLmReaderCallbackTest.compile(lines, "hash",
+            new double[] { 0.5, 0.6, 0.7 }, 1)).get("to land"),
+        hash.get("to land"));
+
+    // Without a minimum count every counted ngram is kept
+    assertEquals(lines.size(), hash.size());
+    for (String line : lines) {
+      assertTrue(line, hash.containsKey(line.substring(0, line.indexOf('\t'))));
+    }
+  }
+
+  public void testStoresWriteTheSameModelWithEstimatedDiscounts()
+      throws Exception {
+    Configuration conf = newConf();
+    for (String minCounts : new String[] { null, "0,1,2" }) {
+      if (null != minCounts) {
+        conf.set(KneserNeyLMCompiler.KN_MIN_COUNTS_KEY, minCounts);
+      }
+      conf.set(KneserNeyLMCompiler.STORE_KEY, "hash");
+      Map<String, String> hash = TrieKneserNeyLmReaderCallbackTest.toMap(
+          compile(conf, counts, "hash.arpa"));
+      conf.set(KneserNeyLMCompiler.STORE_KEY, "trie");
+      assertEquals(minCounts, hash, TrieKneserNeyLmReaderCallbackTest.toMap(
+          compile(conf, counts, "trie.arpa")));
+    }
+  }
+
+  public void testEveryOrderDefaultsToTheTrieStore() throws Exception {
+    for (int order = 3; order <= 4; order++) {
+      File orderCounts = new File(dir, order + ".txt");
+      Files.write(orderCounts.toPath(),
+          TrieKneserNeyLmReaderCallbackTest.countLines(order, 200),
+          StandardCharsets.UTF_8);
+      Configuration conf = newConf();
+      conf.setInt(NgramMapper.ORDER_KEY, order);
+      String model = compile(conf, orderCounts, order + ".arpa");
+      conf.set(KneserNeyLMCompiler.STORE_KEY, "trie");
+      assertEquals(model, compile(conf, orderCounts, order + "-trie.arpa"));
+      conf.set(KneserNeyLMCompiler.STORE_KEY, "hash");
+      assertEquals(TrieKneserNeyLmReaderCallbackTest.toMap(model),
+          TrieKneserNeyLmReaderCallbackTest.toMap(compile(conf, orderCounts,
+              order + "-hash.arpa")));
+    }
+  }
+
+  public void testTooFewDiscountsAreRejected() throws Exception {
+    Configuration conf = newConf();
+    conf.set(KneserNeyLMCompiler.KN_DISCOUNTS_KEY, "0.5,0.6");
+    try {
+      compile(conf, counts, "model.arpa");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private Configuration newConf() {
+    Configuration conf = new Configuration();
+    conf.set("fs.defaultFS", "file:///");
+    conf.setInt(NgramMapper.ORDER_KEY, 3);
+    return conf;
+  }
+
+  /**
+   * Compiles source to the model document name in the temporary directory,
+   * and returns the model document.
+   */
+  private String compile(Configuration conf, File source, String name)
+      throws Exception {
+    File target = new File(dir, name);
+    new KneserNeyLMCompiler(KneserNeyLMCompiler.createWordIndexer(),
+        new Configuration(conf)).triggerDataPipeline(
+        new String[] { source.getPath(), target.getPath() });
+    return new String(Files.readAllBytes(target.toPath()),
+        StandardCharsets.UTF_8);
+  }
+}
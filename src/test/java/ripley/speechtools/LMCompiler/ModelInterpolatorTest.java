@@ -0,0 +1,175 @@
+package ripley.speechtools.LMCompiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.berkeley.nlp.lm.StringWordIndexer;
+
+import junit.framework.TestCase;
+
+/**
+ * Merges two small models with different orders and vocabularies.
+ */
+public class ModelInterpolatorTest extends TestCase {
+  // A normalized trigram model over a, b and c
+  private static final List<String> TRIGRAMS = Arrays.asList(
+"\\data\\",
+      "ngram 1=5",
+      "ngram 2=6",
+      "ngram 3=3",
+      "",
+      "\\1-grams:",
+      "-99.000000\t<s>\t-0.352183",
+      "-0.602060\t</s>",
+      "-0.522879\ta\t-0.397940",
+      "-0.602060\tb\t-0.204120",
+      "-0.698970\tc\t-0.397940",
+      "",
+      "\\2-grams:",
+      "-0.301030\t<s> a\t-0.124939",
+      "-0.522879\t<s> b",
+      "-0.221849\ta b\t-0.536243",
+      "-0.698970\ta </s>",
+      "-0.301030\tb c",
+      "-0.154902\tc </s>",
+      "",
+      "\\3-grams:",
+      "-0.154902\t<s> a b",
+      "-0.221849\ta b c",
+      "-0.522879\ta b </s>",
+      "",
+      "\\end\\");
+
+  // A normalized bigram model over a, b and d
+  private static final List<String> BIGRAMS = Arrays.asList(
+      "\\data\\",
+      "ngram 1=5",
+      "ngram 2=6",
+      "",
+      "\\1-grams:",
+      "-99.000000\t<s>\t-0.477121",
+      "-0.522879\t</s>",
+      "-0.698970\ta\t-0.146128",
+      "-0.522879\tb\t-0.243038",
+      "-0.698970\td\t-0.096910",
+      "",
+      "\\2-grams:",
+      "-0.397940\t<s> a",
+      "-0.397940\t<s> d",
+      "-0.301030\ta b",
+      "-0.221849\tb </s>",
+      "-0.522879\td a",
+      "-0.522879\td </s>",
+      "",
+      "\\end\\");
+
+  private static final double[] WEIGHTS = { 7.0, 3.0 };
+
+  private File dir;
+  private BackoffModel[] models;
+  private StringWordIndexer[] indexers;
+  private StringWordIndexer swi;
+  private BackoffModel merged;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = Files.createTempDirectory("model-interpolator").toFile();
+    indexers = new StringWordIndexer[] {
+        KneserNeyLMCompiler.createWordIndexer(),
+        KneserNeyLMCompiler.createWordIndexer() };
+    models = new BackoffModel[] { read(TRIGRAMS, 3, 0), read(BIGRAMS, 2, 1) };
+    swi = KneserNeyLMCompiler.createWordIndexer();
+    merged = new ModelInterpolator(swi, Arrays.asList(models),
+        Arrays.asList(indexers), 2).interpolate(WEIGHTS);
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  public void testExplicitNgramsAreTheRuntimeMixture() {
+    NgramCountTrie trie = merged.getTrie();
+    assertEquals(3, merged.getMaxOrder());
+    int numNgrams = 0;
+    for (int order = 0; order < merged.getMaxOrder(); order++) {
+      int[] ngram = new int[order + 1];
+      for (int i = 0; i < trie.size(order); i++) {
+        trie.getNgram(order, i, ngram);
+        double mixture = 0.0;
+        for (int m = 0; m < models.length; m++) {
+          int[] modelNgram = new int[ngram.length];
+          for (int j = 0; j < ngram.length; j++) {
+            modelNgram[j] = indexers[m].getIndexPossiblyUnk(
+                swi.getWord(ngram[j]));
+          }
+          mixture += WEIGHTS[m] / (WEIGHTS[0] + WEIGHTS[1]) * Math.pow(10.0,
+              models[m].getLogProb(modelNgram, 0, modelNgram.length));
+        }
+        assertEquals(Math.log10(mixture), merged.getProb(order, i), 1e-5);
+        numNgrams++;
+      }
+    }
+
+    // The union of the ngrams of both models
+    assertEquals(6, trie.size(0));
+    assertEquals(10, trie.size(1));
+    assertEquals(3, trie.size(2));
+    assertEquals(numNgrams, merged.size());
+  }
+
+  public void testEveryContextNormalizes() {
+    int start = swi.getIndexPossiblyUnk(swi.getStartSymbol());
+    NgramCountTrie trie = merged.getTrie();
+    for (int order = 0; order + 1 < merged.getMaxOrder(); order++) {
+      int[] ngram = new int[order + 2];
+      for (int i = 0; i < trie.size(order); i++) {
+        trie.getNgram(order, i, ngram);
+        assertEquals(1.0, sum(ngram, start), 1e-5);
+      }
+    }
+
+    // Contexts that are not in the merged model back off
+    int[] unseen = { swi.getIndexPossiblyUnk("c"),
+        swi.getIndexPossiblyUnk("d"), 0 };
+    assertTrue(0 > trie.find(unseen, 0, 2));
+    assertEquals(1.0, sum(unseen, start), 1e-5);
+  }
+
+  /**
+   * The probability of every word but the sentence start after the words of
+   * ngram but its last.
+   */
+  private double sum(int[] ngram, int start) {
+    double sum = 0.0;
+    for (int word = 0; word < swi.numWords(); word++) {
+      if (start != word) {
+        ngram[ngram.length - 1] = word;
+        sum += Math.pow(10.0, merged.getLogProb(ngram, 0, ngram.length));
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Reads the ARPA document of model m, indexed with its own WordIndexer.
+   */
+  private BackoffModel read(List<String> arpa, int maxOrder, int m)
+      throws IOException {
+    File file = new File(dir, m + ".arpa");
+    Files.write(file.toPath(), arpa, StandardCharsets.UTF_8);
+    return BackoffModel.readArpa(FileSystem.getLocal(new Configuration()),
+        new Path(file.getPath()), indexers[m], maxOrder);
+  }
+}
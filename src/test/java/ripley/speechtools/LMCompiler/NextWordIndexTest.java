@@ -0,0 +1,124 @@
+package ripley.speechtools.LMCompiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.StringWordIndexer;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the predictions of a NextWordIndex to a ranking of every word.
+ */
+public class NextWordIndexTest extends TestCase {
+  private static final int TOP_K = 5;
+
+  private File dir;
+  private StringWordIndexer swi;
+  private BackoffModel model;
+  private NextWordIndex index;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = Files.createTempDirectory("next-word").toFile();
+    swi = KneserNeyLMCompiler.createWordIndexer();
+    TrieKneserNeyLmReaderCallback estimator =
+        new TrieKneserNeyLmReaderCallback(swi, 3, false, new ConfigOptions());
+    new MRKVTextReader(TrieKneserNeyLmReaderCallbackTest.countLines(3, 200)
+        .iterator(), swi).parse(estimator);
+    model = new BackoffModel(3);
+    estimator.parse(model);
+
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path file = new Path(new File(dir, "model.next").getPath());
+    NextWordIndex.write(fs, file, swi, model, TOP_K, 2);
+    index = NextWordIndex.load(fs, file);
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  public void testPredictionsAreTheBestWordsOfTheModel() {
+    assertEquals(2, index.getMaxContextLength());
+    assertPredicts(Collections.<String>emptyList());
+    assertPredicts(Arrays.asList("<s>"));
+    assertPredicts(Arrays.asList("<s>", "cleared"));
+    assertPredicts(Arrays.asList("cleared", "to"));
+
+    // Every context of one or two words, seen or not
+    List<String> words = new ArrayList<String>();
+    for (int word = 0; word < swi.numWords(); word++) {
+      words.add(swi.getWord(word));
+    }
+    for (String first : words) {
+      assertPredicts(Arrays.asList(first));
+      for (String second : words) {
+        assertPredicts(Arrays.asList(first, second));
+      }
+    }
+  }
+
+  public void testUnseenContextsBackOff() {
+    int[] context = { swi.getIndexPossiblyUnk("echo"),
+        swi.getIndexPossiblyUnk("level") };
+    assertTrue(0 > model.getTrie().find(context, 0, 2));
+    assertPredicts(Arrays.asList("echo", "level"));
+    assertEquals(index.predict(Arrays.asList("level")).toString(),
+        index.predict(Arrays.asList("echo", "level")).toString());
+
+    // Words outside the vocabulary are the unknown word
+    assertEquals(index.predict(Arrays.asList("<unk>", "to")).toString(),
+        index.predict(Arrays.asList("squawk", "to")).toString());
+    assertPredicts(Arrays.asList("squawk", "to"));
+  }
+
+  /**
+   * Requires the predictions after context to be the k most likely words of
+   * the model after the context, other than the sentence start symbol.
+   */
+  private void assertPredicts(List<String> context) {
+    int[] ngram = new int[context.size() + 1];
+    for (int i = 0; i < context.size(); i++) {
+      ngram[i] = index.getIndex(context.get(i));
+    }
+    int start = swi.getIndexPossiblyUnk(swi.getStartSymbol());
+    List<Double> ranking = new ArrayList<Double>();
+    for (int word = 0; word < swi.numWords(); word++) {
+      ngram[context.size()] = word;
+      double logProb = model.getLogProb(ngram, 0, ngram.length);
+      if (start != word && Double.NEGATIVE_INFINITY != logProb) {
+        ranking.add(logProb);
+      }
+    }
+    Collections.sort(ranking, Collections.reverseOrder());
+
+    List<NextWordIndex.Prediction> predictions = index.predict(context);
+    assertEquals(context.toString(), Math.min(TOP_K, ranking.size()),
+        predictions.size());
+    for (int i = 0; i < predictions.size(); i++) {
+      NextWordIndex.Prediction prediction = predictions.get(i);
+      assertFalse(swi.getStartSymbol().equals(prediction.getWord()));
+      assertEquals(context.toString(), ranking.get(i),
+          prediction.getLogProb(), 1e-5);
+      ngram[context.size()] = swi.getIndexPossiblyUnk(prediction.getWord());
+      assertEquals(context + " " + prediction.getWord(),
+          model.getLogProb(ngram, 0, ngram.length),
+          prediction.getLogProb(), 1e-5);
+    }
+  }
+}
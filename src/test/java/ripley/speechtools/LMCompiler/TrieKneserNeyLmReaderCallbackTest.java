@@ -0,0 +1,153 @@
+package ripley.speechtools.LMCompiler;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.io.ArpaLmReaderCallback;
+import edu.berkeley.nlp.lm.io.KneserNeyFileWritingLmReaderCallback;
+import edu.berkeley.nlp.lm.io.LmReader;
+import edu.berkeley.nlp.lm.values.ProbBackoffPair;
+
+import junit.framework.TestCase;
+
+/**
+ * Compiles the counts of a toy corpus through the hash and the trie store.
+ */
+public class TrieKneserNeyLmReaderCallbackTest extends TestCase {
+  private static final int ORDER = 3;
+  private static final double[] DISCOUNTS = { 0.5, 0.6, 0.7 };
+
+  public void testStoresAgreeWithFixedDiscounts() {
+    assertStoresAgree(countLines(ORDER, 200), DISCOUNTS);
+  }
+
+  public void testStoresAgreeWithEstimatedDiscounts() {
+    // Enough ngrams for berkeleylm to miscount some one and two count ngrams
+    assertStoresAgree(countLines(ORDER, 200), null);
+    assertStoresAgree(countLines(ORDER, 3000), null);
+  }
+
+  private static void assertStoresAgree(List<String> lines,
+      double[] discounts) {
+    Map<String, String> hash = toMap(compile(lines, "hash", discounts, 1));
+    Map<String, String> trie = toMap(compile(lines, "trie", discounts, 1));
+    Map<String, String> offHeapTrie =
+        toMap(compile(lines, "offheap", discounts, 1));
+
+    assertTrue(hash.size() > 100);
+    assertEquals(hash, trie);
+    assertEquals(hash, offHeapTrie);
+  }
+
+  public void testOutputDoesNotDependOnTheNumberOfThreads() {
+    // Enough ngrams per order for the estimation to be split across threads
+    List<String> lines = countLines(ORDER, 3000);
+    assertTrue(lines.size() > 8000);
+    for (String store : new String[] { "hash", "trie" }) {
+      for (double[] discounts : new double[][] { DISCOUNTS, null }) {
+        String expected = compile(lines, store, discounts, 1);
+        assertEquals(store, expected, compile(lines, store, discounts, 4));
+        assertEquals(store, expected, compile(lines, store, discounts, 7));
+      }
+    }
+  }
+
+  /**
+   * The ngram counts of a deterministic random corpus of the given number of
+   * sentences, as the lines of an ordered count document.
+   */
+  static List<String> countLines(int order, int sentences) {
+    String[] vocabulary = { "cleared", "to", "land", "runway", "two", "seven",
+        "left", "right", "contact", "tower", "hold", "short", "one", "three",
+        "four", "five", "six", "eight", "nine", "zero", "climb", "descend",
+        "maintain", "flight", "level", "heading", "turn", "approach", "ground",
+        "taxi", "via", "alpha", "bravo", "charlie", "delta", "echo" };
+    Random random = new Random(42);
+    List<Map<String, Integer>> counts = new ArrayList<Map<String, Integer>>();
+    for (int n = 0; n < order; n++) {
+      counts.add(new TreeMap<String, Integer>());
+    }
+    for (int s = 0; s < sentences; s++) {
+      List<String> words = new ArrayList<String>();
+      words.add("<s>");
+      int length = 3 + random.nextInt(6);
+      for (int i = 0; i < length; i++) {
+        words.add(vocabulary[random.nextInt(random.nextInt(
+            vocabulary.length) + 1)]);
+      }
+      words.add("</s>");
+      for (int end = 1; end <= words.size(); end++) {
+        for (int n = 1; n <= order && n <= end; n++) {
+          StringBuilder ngram = new StringBuilder();
+          for (int i = end - n; i < end; i++) {
+            ngram.append(end - n < i ? " " : "").append(words.get(i));
+          }
+          Integer count = counts.get(n - 1).get(ngram.toString());
+          counts.get(n - 1).put(ngram.toString(),
+              null == count ? 1 : count + 1);
+        }
+      }
+    }
+    List<String> lines = new ArrayList<String>();
+    for (Map<String, Integer> orderCounts : counts) {
+      for (Map.Entry<String, Integer> entry : orderCounts.entrySet()) {
+        lines.add(entry.getKey() + "\t" + entry.getValue());
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Compiles count lines in the given store ("hash", "trie" or "offheap") to
+   * an ARPA document, with fixed discounts unless discounts is null.
+   */
+  static String compile(List<String> lines, String store, double[] discounts,
+      int numThreads) {
+    ConfigOptions opts = new ConfigOptions();
+    opts.kneserNeyDiscounts = discounts;
+    StringWordIndexer swi = KneserNeyLMCompiler.createWordIndexer();
+    MRKVTextReader reader = new MRKVTextReader(lines.iterator(), swi);
+    LmReader<ProbBackoffPair, ArpaLmReaderCallback<ProbBackoffPair>> estimator;
+    if ("hash".equals(store)) {
+      RipleyKneserNeyLmReaderCallback hashReader =
+          new RipleyKneserNeyLmReaderCallback(swi, ORDER, opts, numThreads);
+      reader.parse(hashReader);
+      estimator = hashReader;
+    } else {
+      TrieKneserNeyLmReaderCallback trieReader =
+          new TrieKneserNeyLmReaderCallback(swi, ORDER,
+              "offheap".equals(store), opts, numThreads);
+      reader.parse(trieReader);
+      estimator = trieReader;
+    }
+    StringWriter arpa = new StringWriter();
+    PrintWriter pw = new PrintWriter(arpa);
+    estimator.parse(new KneserNeyFileWritingLmReaderCallback<String>(pw, swi));
+    pw.flush();
+    return arpa.toString();
+  }
+
+  /**
+   * The probability and backoff fields of every ngram of an ARPA document,
+   * by ngram.
+   */
+  static Map<String, String> toMap(String arpa) {
+    Map<String, String> entries = new HashMap<String, String>();
+    for (String line : arpa.split("\n")) {
+      String[] fields = line.split("\t");
+      if (2 <= fields.length) {
+        entries.put(fields[1], fields[0]
+            + (2 < fields.length ? "\t" + fields[2] : ""));
+      }
+    }
+    return entries;
+  }
+}
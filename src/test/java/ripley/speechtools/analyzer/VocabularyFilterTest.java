@@ -0,0 +1,61 @@
+package ripley.speechtools.analyzer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.util.CharArraySet;
+
+import junit.framework.TestCase;
+
+/**
+ * Applies a vocabulary in the NgramTranscriptAnalyzer.
+ */
+public class VocabularyFilterTest extends TestCase {
+
+  public void testSymbolsPassWithoutBeingInTheVocabulary() throws Exception {
+    CharArraySet vocabulary = new CharArraySet(
+        Arrays.asList("cleared", "to", "land"), false);
+    NgramTranscriptAnalyzer analyzer = new NgramTranscriptAnalyzer(2, 2);
+    analyzer.setVocabulary(vocabulary);
+
+    assertEquals(Arrays.asList("<s>", "<s> <unk>", "<unk>", "<unk> cleared",
+        "cleared", "cleared to", "to", "to land", "land", "land </s>", "</s>"),
+        analyzer.ngrams("<s> Execjat cleared to land </s>"));
+    analyzer.close();
+  }
+
+  public void testWordsAreThoseOfTheNgramAnalyzer() throws Exception {
+    // Upper case letters whose String.toLowerCase(...) differs from the
+    // character by character lower casing of the LowerCaseFilter
+    String transcript = "<s> İstanbul ΟΔΟΣ Cleared 𐐀 </s>";
+    Analyzer wordAnalyzer = NgramTranscriptAnalyzer.createWordAnalyzer();
+    List<String> words = NgramTranscriptAnalyzer.analyze(wordAnalyzer,
+        transcript);
+    wordAnalyzer.close();
+
+    NgramTranscriptAnalyzer analyzer = new NgramTranscriptAnalyzer(2, 2);
+    List<String> unigrams = new ArrayList<String>();
+    for (String ngram : analyzer.ngrams(transcript)) {
+      if (-1 == ngram.indexOf(' ')) {
+        unigrams.add(ngram);
+      }
+    }
+    analyzer.close();
+
+    assertEquals(unigrams, words);
+    assertEquals(6, words.size());
+    assertEquals("istanbul", words.get(1));
+    assertEquals("οδοσ", words.get(2));
+    assertEquals("𐐨", words.get(4));
+
+    // So every word of a vocabulary built from them passes the filter
+    analyzer = new NgramTranscriptAnalyzer(2, 2);
+    analyzer.setVocabulary(VocabularyFilter.createVocabulary(words));
+    for (String ngram : analyzer.ngrams(transcript)) {
+      assertEquals(-1, ngram.indexOf(VocabularyFilter.UNKNOWN_SYMBOL));
+    }
+    analyzer.close();
+  }
+}
@@ -0,0 +1,286 @@
+package ripley.speechtools.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+
+import junit.framework.TestCase;
+
+import ripley.speechtools.LMCompiler.LowerOrderCountDeriver;
+import ripley.speechtools.mapper.NgramMapper;
+import ripley.speechtools.partitioner.NgramOrderPartitioner;
+import ripley.speechtools.reducer.NgramReducer;
+
+/**
+ * Runs the ngram counting job with the local job runner.
+ */
+public class LMTrainerTest extends TestCase {
+  private File dir;
+  // The job of the last runJob(...)
+  private Job job;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = Files.createTempDirectory("lm-trainer").toFile();
+  }
+
+  @Override
+  protected void tearDown() {
+    delete(dir);
+  }
+
+  public void testUntaggedNgramsKeepTheDomainSeparator() throws Exception {
+    File base = runJob("counts", new Configuration(false),
+        Arrays.asList("a|b c"));
+
+    assertEquals(Arrays.asList("a|b\t1", "c\t1"), read(base, "unigram"));
+    assertEquals(Arrays.asList("a|b c\t1"), read(base, "bigram"));
+    assertFalse(new File(base, "a").exists());
+
+    // One reducer per order, the NgramOrderPartitioner routing each order
+    assertEquals(3, job.getNumReduceTasks());
+    assertTrue(new File(base, "unigram-r-00001").exists());
+    assertTrue(new File(base, "bigram-r-00002").exists());
+    assertFalse(new File(base, "unigram-r-00000").exists());
+    assertFalse(new File(base, "bigram-r-00000").exists());
+
+    Configuration conf = new Configuration(false);
+    NgramOrderPartitioner partitioner = new NgramOrderPartitioner();
+    partitioner.setConf(conf);
+    assertEquals(2, partitioner.getPartition(new Text("a|b c"),
+        new IntWritable(1), 3));
+
+    // Tagged keys are still split into their domain and ngram
+    conf.set(NgramMapper.DOMAIN_MODE_KEY, "field");
+    partitioner.setConf(conf);
+    assertEquals((("kbos".hashCode() & Integer.MAX_VALUE) + 2) % 3,
+        partitioner.getPartition(new Text(NgramOrderPartitioner
+            .qualifyWithDomain("kbos", "a|b c")), new IntWritable(1), 3));
+  }
+
+  public void testTaggedNgramsAreWrittenPerDomain() throws Exception {
+    Configuration conf = new Configuration(false);
+    conf.set(NgramMapper.DOMAIN_MODE_KEY, "field");
+    File base = runJob("counts", conf, Arrays.asList("kbos\ta|b c"));
+
+    assertEquals(Arrays.asList("a|b c\t1"), read(new File(base, "kbos"),
+        "bigram"));
+    assertFalse(new File(base, "bigram-r-00000").exists());
+  }
+
+  public void testEachOrderOfADomainIsWrittenByOneReducer() throws Exception {
+    List<String> domains = Arrays.asList("kbos", "kjfk", "klax", "ksfo");
+    List<String> transcripts = new ArrayList<String>();
+    for (String domain : domains) {
+      transcripts.add(domain + "\tcleared to land runway two seven");
+      transcripts.add(domain + "\thold short of runway two seven");
+      transcripts.add(domain + "\tcontact " + domain + " tower");
+    }
+    Configuration conf = new Configuration(false);
+    conf.set(NgramMapper.DOMAIN_MODE_KEY, "field");
+    File base = runJob("domains", conf, transcripts);
+
+    for (String domain : domains) {
+      File domainBase = new File(base, domain);
+      for (int order = 1; order <= 3; order++) {
+        String partition = NgramOrderPartitioner.Partitions.values()[order - 1]
+            .partitionName();
+        int reducer = ((domain.hashCode() & Integer.MAX_VALUE) + order) % 3;
+        String[] files = domainBase.list();
+        Arrays.sort(files);
+        List<String> orderFiles = new ArrayList<String>();
+        for (String file : files) {
+          if (true == file.startsWith(partition + "-r-")) {
+            orderFiles.add(file);
+          }
+        }
+        assertEquals(Arrays.asList(partition + "-r-0000" + reducer),
+            orderFiles);
+
+        List<String> counts = read(domainBase, partition);
+        List<String> sorted = new ArrayList<String>(counts);
+        Collections.sort(sorted);
+        assertEquals(sorted, counts);
+      }
+      assertTrue(read(domainBase, "unigram").contains(domain + "\t1"));
+      assertTrue(read(domainBase, "bigram").contains("two seven\t2"));
+    }
+  }
+
+  public void testDomainsThatAreNotDirectoryNamesAreRejected()
+      throws Exception {
+    assertTrue(NgramMapper.isValidDomain("kbos"));
+    assertTrue(NgramMapper.isValidDomain("boston.logan"));
+    for (String domain : Arrays.asList("", " ", "..", "../kbos", "kbos/..",
+        "a/b", "/kbos", "kbos..old")) {
+      assertFalse(domain, NgramMapper.isValidDomain(domain));
+    }
+
+    Configuration conf = new Configuration(false);
+    conf.set(NgramMapper.DOMAIN_MODE_KEY, "field");
+    createJob("escape", conf, Arrays.asList("kbos\tcleared to land",
+        "../escaped\tcleared to land"));
+    assertFalse(job.waitForCompletion(false));
+    assertFalse(new File(dir, "escaped").exists());
+  }
+
+  public void testMaxOrderOnlyCountsDeriveTheFullCounts() throws Exception {
+    // U+FF41 sorts after U+1F600 in UTF-16, but before it in UTF-8, as in
+    // the Text keys of the reducer output
+    List<String> transcripts = Arrays.asList(
+        "<s> cleared to land runway two seven </s>",
+        "<s> cleared to land runway two seven left </s>",
+        "<s> z\u00fcrich tower cleared to land </s>",
+        "<s> \uff41 \ud83d\ude00 \uff41 cleared to land </s>",
+        "<s> \ud83d\ude00 </s>",
+        "<s> roger </s>");
+    Configuration conf = new Configuration(false);
+    conf.set(NgramMapper.ORDER_KEY, "4");
+    File full = runJob("full", conf, transcripts);
+    conf.set(NgramMapper.MAX_ORDER_ONLY_KEY, "true");
+    File maxOrderOnly = runJob("maxorder", conf, transcripts);
+
+    List<String> fullCounts = new ArrayList<String>();
+    List<String> maxOrderCounts = new ArrayList<String>();
+    for (int i = 0; i < 4; i++) {
+      String partition = NgramOrderPartitioner.Partitions.values()[i]
+          .partitionName();
+      fullCounts.addAll(read(full, partition));
+      maxOrderCounts.addAll(read(maxOrderOnly, partition));
+    }
+    assertTrue(maxOrderCounts.size() < fullCounts.size());
+
+    List<String> derived = new ArrayList<String>();
+    Iterator<String> lines = LowerOrderCountDeriver.derive(
+        maxOrderCounts.iterator(), 4);
+    while (true == lines.hasNext()) {
+      derived.add(lines.next());
+    }
+    assertEquals(fullCounts, derived);
+  }
+
+  public void testLineCacheCountsEqualUncachedCounts() throws Exception {
+    // With two lines cached, repeated lines are merged while cached, and
+    // evicted and cached again later
+    List<String> transcripts = Arrays.asList(
+        "kbos\tcleared to land",
+        "kbos\tcleared to land",
+        "kbos\tCleared  To LAND",
+        "kbos\thold short",
+        "kjfk\tcleared to land",
+        "kbos\ttaxi to gate",
+        "kbos\tcleared to land",
+        "kbos\thold short",
+        "kbos\thold short",
+        "kjfk\tcleared to land",
+        "kbos\troger");
+    Configuration conf = new Configuration(false);
+    conf.set(NgramMapper.DOMAIN_MODE_KEY, "field");
+    conf.setInt(NgramMapper.LINE_CACHE_SIZE_KEY, 0);
+    File uncached = runJob("uncached", conf, transcripts);
+    assertEquals(0, job.getCounters().findCounter(
+        NgramMapper.LineCache.MISSES).getValue());
+    conf.setInt(NgramMapper.LINE_CACHE_SIZE_KEY, 2);
+    File cached = runJob("cached", conf, transcripts);
+    assertEquals(3, job.getCounters().findCounter(
+        NgramMapper.LineCache.HITS).getValue());
+    assertEquals(8, job.getCounters().findCounter(
+        NgramMapper.LineCache.MISSES).getValue());
+
+    for (String domain : Arrays.asList("kbos", "kjfk")) {
+      for (int i = 0; i < 3; i++) {
+        String partition = NgramOrderPartitioner.Partitions.values()[i]
+            .partitionName();
+        List<String> counts = read(new File(cached, domain), partition);
+        assertFalse(counts.isEmpty());
+        assertEquals(read(new File(uncached, domain), partition), counts);
+      }
+    }
+    assertEquals(Arrays.asList("cleared to land\t4", "taxi to gate\t1"),
+        read(new File(cached, "kbos"), "trigram"));
+  }
+
+  /**
+   * Counts the ngrams of the given transcripts with the local job runner.
+   * @param name - name of the run, under which its files are kept
+   * @param conf - job properties
+   * @param transcripts
+   * @return the output base directory of the ngram counts
+   * @throws Exception
+   */
+  File runJob(String name, Configuration conf, List<String> transcripts)
+      throws Exception {
+    File base = createJob(name, conf, transcripts);
+    assertTrue(job.waitForCompletion(false));
+    return base;
+  }
+
+  /**
+   * Creates the job counting the ngrams of the given transcripts, without
+   * submitting it.
+   * @param name - name of the run, under which its files are kept
+   * @param conf - job properties
+   * @param transcripts
+   * @return the output base directory of the ngram counts
+   * @throws Exception
+   */
+  private File createJob(String name, Configuration conf,
+      List<String> transcripts) throws Exception {
+    File input = new File(dir, name + ".txt");
+    Files.write(input.toPath(), transcripts, StandardCharsets.UTF_8);
+    File base = new File(dir, name);
+
+    Configuration jobConf = new Configuration();
+    jobConf.set("fs.defaultFS", "file:///");
+    jobConf.set("mapreduce.framework.name", "local");
+    jobConf.set(NgramReducer.OUTPUT_BASE_KEY, base.getPath());
+    for (Map.Entry<String, String> entry : conf) {
+      jobConf.set(entry.getKey(), entry.getValue());
+    }
+    job = LMTrainer.createJob(jobConf, new Path(input.getPath()),
+        new Path(new File(dir, name + "-job").getPath()));
+    return base;
+  }
+
+  /**
+   * Reads the lines of the output of an ngram order.
+   * @param base
+   * @param partition - e.g., "bigram"
+   * @return
+   * @throws IOException
+   */
+  static List<String> read(File base, String partition) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    File[] files = base.listFiles();
+    Arrays.sort(files);
+    for (File file : files) {
+      if (true == file.getName().startsWith(partition + "-r-")) {
+        lines.addAll(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+      }
+    }
+    return lines;
+  }
+
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (null != children) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,164 @@
+package ripley.speechtools.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+
+import edu.berkeley.nlp.lm.StringWordIndexer;
+
+import junit.framework.TestCase;
+
+import ripley.speechtools.LMCompiler.BackoffModel;
+import ripley.speechtools.LMCompiler.KneserNeyLMCompiler;
+import ripley.speechtools.mapper.NbestRescoreMapper;
+import ripley.speechtools.mapper.NgramMapper;
+
+/**
+ * Rescores N-best lists with a small trigram model and the local job runner.
+ */
+public class NbestRescorerTest extends TestCase {
+  private static final List<String> MODEL = Arrays.asList(
+      "\\data\\",
+      "ngram 1=8",
+      "ngram 2=7",
+      "ngram 3=3",
+      "",
+      "\\1-grams:",
+      "-99.000000\t<s>\t-0.500000",
+      "-1.000000\t</s>",
+      "-0.700000\tcleared\t-0.300000",
+      "-0.800000\tto\t-0.200000",
+      "-0.900000\tland\t-0.250000",
+      "-1.100000\trunway\t-0.100000",
+      "-1.200000\ttwo",
+      "-1.300000\thold\t-0.150000",
+      "",
+      "\\2-grams:",
+      "-0.200000\t<s> cleared\t-0.100000",
+      "-0.100000\tcleared to\t-0.200000",
+      "-0.400000\tto land\t-0.050000",
+      "-0.600000\tto hold",
+      "-0.300000\tland </s>",
+      "-0.500000\tland runway",
+      "-0.400000\trunway two",
+      "",
+      "\\3-grams:",
+      "-0.050000\t<s> cleared to",
+      "-0.200000\tcleared to land",
+      "-0.100000\tto land </s>",
+      "",
+      "\\end\\");
+
+  // Hypotheses sharing prefixes of different lengths, in varying orders
+  private static final List<String> HYPOTHESES = Arrays.asList(
+      "cleared to land runway two",
+      "cleared to land",
+      "cleared to hold",
+      "cleared to land runway two",
+      "cleared to squawk land",
+      "cleared",
+      "runway two cleared to land",
+      "<s> cleared to land </s>",
+      "Cleared To Hold two",
+      "to land",
+      "cleared to land runway");
+
+  private File dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = Files.createTempDirectory("nbest-rescorer").toFile();
+  }
+
+  @Override
+  protected void tearDown() {
+    LMTrainerTest.delete(dir);
+  }
+
+  public void testSharedPrefixesScoreAsWholeHypotheses() throws Exception {
+    File arpa = new File(dir, "model.arpa");
+    Files.write(arpa.toPath(), MODEL, StandardCharsets.UTF_8);
+    StringBuilder nbest = new StringBuilder();
+    for (int i = 0; i < HYPOTHESES.size(); i++) {
+      // Two utterances, the second listing the hypotheses in reverse
+      nbest.append("u1\t-").append(i).append('\t')
+          .append(HYPOTHESES.get(i)).append('\n');
+    }
+    for (int i = HYPOTHESES.size() - 1; 0 <= i; i--) {
+      nbest.append("u2\t-").append(i).append('\t')
+          .append(HYPOTHESES.get(i)).append('\n');
+    }
+    File input = new File(dir, "nbest.txt");
+    Files.write(input.toPath(), nbest.toString().getBytes(StandardCharsets.UTF_8));
+
+    Configuration conf = new Configuration();
+    conf.set("fs.defaultFS", "file:///");
+    conf.set("mapreduce.framework.name", "local");
+    conf.setInt(NgramMapper.ORDER_KEY, 3);
+    Path output = new Path(new File(dir, "rescored").getPath());
+    Path modelPath = NbestRescorer.prepareModel(conf,
+        new Path(arpa.getPath()), output);
+    Job job = NbestRescorer.createJob(conf, modelPath,
+        new Path(input.getPath()), output);
+    assertTrue(job.waitForCompletion(false));
+    assertTrue(0 < job.getCounters().findCounter(
+        NbestRescoreMapper.Rescore.REUSED_WORDS).getValue());
+    assertEquals(2, job.getCounters().findCounter(
+        NbestRescoreMapper.Rescore.OOV_WORDS).getValue());
+
+    StringWordIndexer swi = KneserNeyLMCompiler.createWordIndexer();
+    BackoffModel model = BackoffModel.load(FileSystem.getLocal(conf),
+        modelPath, swi);
+    Map<String, Double> expected = new HashMap<String, Double>();
+    for (String hypothesis : HYPOTHESES) {
+      expected.put(hypothesis, score(model, swi, hypothesis));
+    }
+
+    List<String> lines = Files.readAllLines(
+        new File(output.toString(), "part-r-00000").toPath(),
+        StandardCharsets.UTF_8);
+    assertEquals(2 * HYPOTHESES.size(), lines.size());
+    for (String line : lines) {
+      String[] fields = line.split("\t");
+      assertEquals(line, expected.get(fields[5]),
+          Double.parseDouble(fields[4]), 1e-5);
+    }
+  }
+
+  /**
+   * The log10 probability of a hypothesis summed word by word, leaving out
+   * the words the model cannot score.
+   */
+  private static double score(BackoffModel model, StringWordIndexer swi,
+      String hypothesis) {
+    String sentence = hypothesis.toLowerCase(Locale.ROOT);
+    if (false == sentence.startsWith("<s> ")) {
+      sentence = "<s> " + sentence + " </s>";
+    }
+    String[] words = sentence.split(" ");
+    int[] ngram = new int[words.length];
+    for (int i = 0; i < words.length; i++) {
+      ngram[i] = swi.getIndexPossiblyUnk(words[i]);
+    }
+    double logProb = 0.0;
+    for (int i = 1; i < ngram.length; i++) {
+      double wordLogProb = model.getLogProb(ngram,
+          Math.max(0, i - model.getMaxOrder() + 1), i + 1);
+      if (Double.NEGATIVE_INFINITY != wordLogProb) {
+        logProb += wordLogProb;
+      }
+    }
+    return logProb;
+  }
+}
@@ -0,0 +1,149 @@
+package ripley.speechtools.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.spark.Accumulator;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.storage.StorageLevel;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs the Spark counting backend in Spark local mode.
+ */
+public class SparkLMTrainerTest extends TestCase {
+  private static final List<String> TRANSCRIPTS = Arrays.asList(
+      "<s> cleared to land </s>",
+      "<s> cleared for takeoff </s>",
+      "<s> cleared to land </s>");
+
+  private static final List<String> BIGRAM_COUNTS = Arrays.asList(
+      "</s>\t3", "<s>\t3", "cleared\t3", "for\t1", "land\t2", "takeoff\t1",
+      "to\t2",
+      "<s> cleared\t3", "cleared for\t1", "cleared to\t2", "for takeoff\t1",
+      "land </s>\t2", "takeoff </s>\t1", "to land\t2");
+
+  private static final List<String> TRIGRAMS = Arrays.asList(
+      "<s> cleared for\t1", "<s> cleared to\t2", "cleared for takeoff\t1",
+      "cleared to land\t2", "for takeoff </s>\t1", "to land </s>\t2");
+
+  private File dir;
+  private JavaSparkContext sc;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = Files.createTempDirectory("spark-trainer").toFile();
+    // Several partitions, so that the range partitioned order is checked
+    sc = new JavaSparkContext(new SparkConf()
+        .setMaster("local[2]").setAppName("SparkLMTrainerTest")
+        .set("spark.ui.enabled", "false"));
+  }
+
+  @Override
+  protected void tearDown() {
+    sc.stop();
+    LMTrainerTest.delete(dir);
+  }
+
+  public void testCountsAreOrderedByNgramOrder() throws IOException {
+    File input = new File(dir, "transcripts.txt");
+    Files.write(input.toPath(), TRANSCRIPTS, StandardCharsets.UTF_8);
+    File output = new File(dir, "counts");
+
+    new SparkLMTrainer(2, 3).train(sc, input.getPath(), output.getPath());
+
+    List<String> expected = new ArrayList<String>(BIGRAM_COUNTS);
+    expected.addAll(TRIGRAMS);
+    assertEquals(expected, read(output));
+  }
+
+  public void testPersistedNgramsAreCountedForEveryOrder() throws IOException {
+    SparkLMTrainer trainer = new SparkLMTrainer(2, 3);
+    Accumulator<Integer> analyzed = sc.accumulator(0);
+    JavaRDD<String> ngrams = trainer.persistNgrams(
+        sc.parallelize(TRANSCRIPTS, 2).map(new CountingFunction(analyzed)));
+    assertEquals(StorageLevel.MEMORY_AND_DISK_SER(), ngrams.getStorageLevel());
+
+    File trigrams = new File(dir, "trigrams");
+    File bigrams = new File(dir, "bigrams");
+    try {
+      trainer.train(ngrams, 3, trigrams.getPath());
+      trainer.train(ngrams, 2, bigrams.getPath());
+      // Both trainings read the ngrams persisted by the first
+      assertEquals(TRANSCRIPTS.size(), analyzed.value().intValue());
+    } finally {
+      ngrams.unpersist();
+    }
+    assertEquals(StorageLevel.NONE(), ngrams.getStorageLevel());
+
+    List<String> expected = new ArrayList<String>(BIGRAM_COUNTS);
+    assertEquals(expected, read(bigrams));
+    expected.addAll(TRIGRAMS);
+    assertEquals(expected, read(trigrams));
+
+    try {
+      trainer.count(ngrams, 4);
+      fail("Counted ngrams above the tokenized order");
+    } catch (IllegalArgumentException expectedException) {
+      // The ngrams hold no 4-grams
+    }
+  }
+
+  public void testOrderIsValidated() {
+    SparkConf conf = new SparkConf(false);
+    assertEquals(3, SparkLMTrainer.getOrder(conf));
+    conf.set(SparkLMTrainer.ORDER_KEY, "5");
+    assertEquals(5, SparkLMTrainer.getOrder(conf));
+    for (String order : Arrays.asList("1", "10", "12")) {
+      conf.set(SparkLMTrainer.ORDER_KEY, order);
+      try {
+        SparkLMTrainer.getOrder(conf);
+        fail("Accepted the ngram order " + order);
+      } catch (IllegalArgumentException expected) {
+        assertTrue(expected.getMessage().contains(SparkLMTrainer.ORDER_KEY));
+      }
+    }
+  }
+
+  /**
+   * Passes the transcripts through, counting them.
+   */
+  private static class CountingFunction implements Function<String, String> {
+    private static final long serialVersionUID = 1L;
+    private final Accumulator<Integer> count;
+
+    CountingFunction(Accumulator<Integer> count) {
+      this.count = count;
+    }
+
+    @Override
+    public String call(String transcript) {
+      count.add(1);
+      return transcript;
+    }
+  }
+
+  /**
+   * The lines of the part files of a count listing, in part order.
+   */
+  private static List<String> read(File output) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    File[] parts = output.listFiles();
+    Arrays.sort(parts);
+    for (File part : parts) {
+      if (true == part.getName().startsWith("part-")) {
+        lines.addAll(Files.readAllLines(part.toPath(), StandardCharsets.UTF_8));
+      }
+    }
+    return lines;
+  }
+}
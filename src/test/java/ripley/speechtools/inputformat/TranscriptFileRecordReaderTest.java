@@ -0,0 +1,98 @@
+package ripley.speechtools.inputformat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the per-file record reader of the combined transcript input.
+ */
+public class TranscriptFileRecordReaderTest extends TestCase {
+  private File dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = Files.createTempDirectory("transcript-input").toFile();
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  public void testReadsPlainAndArchivedFilesOfASplit() throws Exception {
+    File plain = new File(dir, "utt1.txt");
+    Files.write(plain.toPath(), "cleared to land\nroger\n".getBytes(
+        StandardCharsets.UTF_8));
+
+    File archive = new File(dir, "batch.tar.gz");
+    TarArchiveOutputStream tar = new TarArchiveOutputStream(
+        new GZIPOutputStream(new FileOutputStream(archive)));
+    try {
+      tar.putArchiveEntry(new TarArchiveEntry("batch/"));
+      tar.closeArchiveEntry();
+      addEntry(tar, "batch/utt2.txt", "say again\n");
+      // The last line of a member need not be terminated
+      addEntry(tar, "batch/utt3.txt", "contact tower\nwilco");
+    } finally {
+      tar.close();
+    }
+
+    CombineFileSplit split = new CombineFileSplit(
+        new Path[] { new Path(plain.getPath()), new Path(archive.getPath()) },
+        new long[] { 0, 0 },
+        new long[] { plain.length(), archive.length() }, new String[0]);
+
+    assertEquals(Arrays.asList("cleared to land", "roger"), read(split, 0));
+    assertEquals(Arrays.asList("say again", "contact tower", "wilco"),
+        read(split, 1));
+  }
+
+  private static void addEntry(TarArchiveOutputStream tar, String name,
+      String text) throws IOException {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    TarArchiveEntry entry = new TarArchiveEntry(name);
+    entry.setSize(bytes.length);
+    tar.putArchiveEntry(entry);
+    tar.write(bytes);
+    tar.closeArchiveEntry();
+  }
+
+  private static List<String> read(CombineFileSplit split, int index)
+      throws Exception {
+    TaskAttemptContext context = new TaskAttemptContextImpl(
+        new Configuration(), new TaskAttemptID());
+    TranscriptFileRecordReader reader =
+        new TranscriptFileRecordReader(split, context, index);
+    List<String> lines = new ArrayList<String>();
+    try {
+      reader.initialize(split, context);
+      while (true == reader.nextKeyValue()) {
+        lines.add(reader.getCurrentValue().toString());
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+}
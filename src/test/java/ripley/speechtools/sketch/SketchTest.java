@@ -0,0 +1,67 @@
+package ripley.speechtools.sketch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.WritableUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the approximate counting sketches.
+ */
+public class SketchTest extends TestCase {
+
+  private static Map<String, Long> addSkewedStream(NgramSketch sketch,
+      long seed, int length) {
+    Map<String, Long> exact = new HashMap<String, Long>();
+    Random random = new Random(seed);
+    for (int i = 0; i < length; i++) {
+      // Roughly Zipf distributed over a few thousand items
+      String item = "ngram " + (int) Math.exp(random.nextDouble() * 8.0);
+      Long count = exact.get(item);
+      exact.put(item, (null == count) ? 1L : count + 1L);
+      sketch.add(item, 1);
+    }
+    return exact;
+  }
+
+  public void testCountMinSketchNeverUnderestimates() {
+    NgramSketch sketch = new NgramSketch(0.001, 0.01, 100);
+    Map<String, Long> exact = addSkewedStream(sketch, 1L, 100000);
+    long bound = (long) (0.001 * sketch.getCounts().getTotalCount());
+
+    for (Map.Entry<String, Long> entry : exact.entrySet()) {
+      long estimate = sketch.getCounts().estimate(entry.getKey());
+      assertTrue(estimate >= entry.getValue());
+      assertTrue(estimate <= entry.getValue() + bound);
+    }
+  }
+
+  public void testMergedSketchesTrackHeavyHitters() throws Exception {
+    NgramSketch first = new NgramSketch(0.001, 0.01, 50);
+    NgramSketch second = new NgramSketch(0.001, 0.01, 50);
+    Map<String, Long> exact = addSkewedStream(first, 2L, 50000);
+    for (Map.Entry<String, Long> entry : addSkewedStream(second, 3L, 50000).entrySet()) {
+      Long count = exact.get(entry.getKey());
+      exact.put(entry.getKey(), entry.getValue() + ((null == count) ? 0L : count));
+    }
+
+    // Sketches are shuffled between map and reduce tasks
+    NgramSketch merged = WritableUtils.clone(first, new Configuration());
+    merged.merge(WritableUtils.clone(second, new Configuration()));
+
+    long total = merged.getCounts().getTotalCount();
+    assertEquals(100000L, total);
+    for (Map.Entry<String, Long> entry : exact.entrySet()) {
+      if (entry.getValue() > total / 50) {
+        long tracked = merged.getHeavyHitters().getCount(entry.getKey());
+        assertTrue(tracked >= entry.getValue());
+        assertTrue(merged.estimate(entry.getKey()) >= entry.getValue());
+      }
+    }
+    assertEquals(50, merged.getHeavyHitters().getTopK().size());
+  }
+}
@@ -0,0 +1,133 @@
+package ripley.speechtools.streaming;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the windowed counts, the directory source and the snapshots
+ * of the streaming trainer.
+ */
+public class StreamingTest extends TestCase {
+
+  public void testWindowExpiryAndDecay() {
+    WindowedNgramCounts counts = new WindowedNgramCounts(1000, 3, 0.5);
+    counts.addAll(Arrays.asList("cleared", "to", "cleared to"), 500);
+    counts.addAll(Arrays.asList("cleared", "to", "cleared to"), 1500);
+    counts.addAll(Arrays.asList("cleared", "land"), 2500);
+
+    // Ages 2, 1 and 0 weigh 0.25, 0.5 and 1
+    Map<String, Long> window = counts.getCounts(2500);
+    assertEquals(Long.valueOf(2), window.get("cleared"));
+    assertEquals(Long.valueOf(1), window.get("to"));
+    assertEquals(Long.valueOf(1), window.get("land"));
+
+    // The first bucket leaves the window, and 'to' rounds to 0 by age 2
+    counts.expire(3500);
+    assertEquals(2, counts.getNumBuckets());
+    window = counts.getCounts(3500);
+    assertNull(window.get("to"));
+    assertEquals(Long.valueOf(1), window.get("cleared"));
+
+    // Transcripts arriving before the window are ignored
+    counts.addAll(Arrays.asList("late"), 100);
+    assertNull(counts.getCounts(3500).get("late"));
+  }
+
+  public void testDirectorySourceTailsCompleteLines() throws IOException {
+    File dir = Files.createTempDirectory("transcripts").toFile();
+    File file = new File(dir, "atc.txt");
+    DirectoryTranscriptSource source = new DirectoryTranscriptSource(
+        FileSystem.getLocal(new Configuration()), new Path(dir.getPath()));
+
+    try {
+      append(file, "delta one two cleared to land\nroger");
+      assertEquals(Arrays.asList("delta one two cleared to land"), source.poll());
+
+      // The partial line is completed by the writer
+      append(file, " wilco\nsay again\n");
+      assertEquals(Arrays.asList("roger wilco", "say again"), source.poll());
+
+      // Unterminated lines are read once the file stops growing
+      append(file, "contact tower");
+      assertTrue(source.poll().isEmpty());
+      assertEquals(Arrays.asList("contact tower"), source.poll());
+      assertTrue(source.poll().isEmpty());
+
+      append(new File(dir, ".pending.txt"), "hidden\n");
+      append(new File(dir, "new.txt"), "climb and maintain\n");
+      assertEquals(Arrays.asList("climb and maintain"), source.poll());
+    } finally {
+      source.close();
+      for (File f : dir.listFiles()) {
+        f.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  public void testTrainerStopsAfterConsecutiveSnapshotFailures()
+      throws Exception {
+    final File models = new File(
+        Files.createTempDirectory("models").toFile(), "models");
+    Configuration conf = new Configuration();
+    conf.set("fs.defaultFS", "file:///");
+    conf.setLong(StreamingLMTrainer.POLL_INTERVAL_KEY, 1);
+    conf.setLong(StreamingLMTrainer.SNAPSHOT_INTERVAL_KEY, 0);
+    conf.setInt(StreamingLMTrainer.SNAPSHOT_FAILURES_KEY, 2);
+    StreamingLMTrainer trainer = new StreamingLMTrainer();
+    trainer.setConf(conf);
+
+    // A file in place of the model directory fails the 1st, 3rd and 4th
+    // snapshots; the 2nd resets the failure count
+    final int[] polls = {0};
+    TranscriptSource source = new TranscriptSource() {
+      public List<String> poll() throws IOException {
+        polls[0]++;
+        FileUtil.fullyDelete(models);
+        if (2 != polls[0]) {
+          append(models, "not a directory");
+        }
+        return (1 == polls[0]
+            ? Arrays.asList("delta one two cleared to land")
+            : Collections.<String>emptyList());
+      }
+
+      public void close() {
+      }
+    };
+
+    try {
+      trainer.train(source, new Path(models.getPath()));
+      fail("Expected the trainer to stop");
+    } catch (IOException ex) {
+      assertEquals(4, polls[0]);
+      assertTrue(ex.getMessage().startsWith("2 consecutive"));
+      assertNotNull(ex.getCause());
+    } finally {
+      FileUtil.fullyDelete(models.getParentFile());
+    }
+  }
+
+  private static void append(File file, String text) throws IOException {
+    FileOutputStream os = new FileOutputStream(file, true);
+    try {
+      os.write(text.getBytes(StandardCharsets.UTF_8));
+    } finally {
+      os.close();
+    }
+  }
+}